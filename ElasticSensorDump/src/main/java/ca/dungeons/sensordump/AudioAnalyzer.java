@@ -0,0 +1,248 @@
+package ca.dungeons.sensordump;
+
+// Turns a buffer of 16 bit PCM samples into the audio features we store in the
+// document: RMS level, dBFS, peak-to-peak loudness, dominant frequency, spectral
+// centroid and the energy in a set of octave bands.
+//
+// Plain Java with no Android dependencies so it can be tried out on a desktop
+// JVM with synthetic tones.  All tables and work arrays are set up in the
+// constructor, analyze() itself never allocates.
+class AudioAnalyzer {
+
+    // Quietest level we report, silence would otherwise be -Infinity
+    static final float MIN_DB = -120f;
+
+    private static final float FULL_SCALE = 32768f;
+
+    private final int sampleRate;
+    private final int fftSize;
+    private final float binHz;
+
+    // Precomputed tables
+    private final float[] window;
+    private final float[] cosTable;
+    private final float[] sinTable;
+    private final int[] bitReverse;
+    private final float windowEnergy;
+
+    // Work arrays, reused for every buffer
+    private final float[] re;
+    private final float[] im;
+    private final float[] power;
+
+    // Octave bands as bin ranges [bandStart, bandEnd)
+    private final int[] bandCenters;
+    private final int[] bandStart;
+    private final int[] bandEnd;
+
+    // Results of the last analyze()
+    private float rms;
+    private float dbfs = MIN_DB;
+    private float loudness;
+    private float dominantFrequency;
+    private float spectralCentroid;
+    private final float[] bandLevels;
+
+    AudioAnalyzer(int sampleRate, int fftSize, int[] bandCenters) {
+        if (fftSize < 2 || (fftSize & (fftSize - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + fftSize);
+        }
+        this.sampleRate = sampleRate;
+        this.fftSize = fftSize;
+        this.binHz = (float) sampleRate / fftSize;
+
+        // Hann window
+        window = new float[fftSize];
+        float energy = 0;
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+            energy += window[i] * window[i];
+        }
+        windowEnergy = energy;
+
+        // Twiddle factors for the largest stage, smaller stages stride through them
+        cosTable = new float[fftSize / 2];
+        sinTable = new float[fftSize / 2];
+        for (int i = 0; i < fftSize / 2; i++) {
+            cosTable[i] = (float) Math.cos(2 * Math.PI * i / fftSize);
+            sinTable[i] = (float) -Math.sin(2 * Math.PI * i / fftSize);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(fftSize);
+        bitReverse = new int[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        re = new float[fftSize];
+        im = new float[fftSize];
+        power = new float[fftSize / 2 + 1];
+
+        // Octave band edges are a half octave either side of the centre
+        this.bandCenters = bandCenters.clone();
+        bandStart = new int[bandCenters.length];
+        bandEnd = new int[bandCenters.length];
+        bandLevels = new float[bandCenters.length];
+        int nyquistBin = fftSize / 2;
+        for (int i = 0; i < bandCenters.length; i++) {
+            double low = bandCenters[i] / Math.sqrt(2);
+            double high = bandCenters[i] * Math.sqrt(2);
+            bandStart[i] = Math.max(1, Math.min(nyquistBin + 1, (int) Math.ceil(low / binHz)));
+            bandEnd[i] = Math.max(bandStart[i], Math.min(nyquistBin + 1, (int) Math.ceil(high / binHz)));
+            bandLevels[i] = MIN_DB;
+        }
+    }
+
+    // Analyse count samples starting at offset.  Levels use the whole buffer, the
+    // spectrum uses the most recent fftSize samples (zero padded if there are fewer).
+    void analyze(short[] samples, int offset, int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        // Time domain: RMS and peak-to-peak in one pass
+        long sumSquares = 0;
+        int lowest = 0;
+        int highest = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int sample = samples[i];
+            sumSquares += sample * sample;
+            if (sample < lowest) {
+                lowest = sample;
+            }
+            if (sample > highest) {
+                highest = sample;
+            }
+        }
+        rms = (float) Math.sqrt((double) sumSquares / count) / FULL_SCALE;
+        dbfs = toDb(rms * rms);
+
+        // Highest and lowest peak difference as a % of the max possible value
+        loudness = (highest - lowest) / 65536f * 100;
+
+        // Frequency domain
+        int frame = Math.min(count, fftSize);
+        int frameStart = offset + count - frame;
+        for (int i = 0; i < fftSize; i++) {
+            int target = bitReverse[i];
+            re[target] = i < frame ? samples[frameStart + i] / FULL_SCALE * window[i] : 0f;
+            im[target] = 0f;
+        }
+        transform();
+
+        int nyquistBin = fftSize / 2;
+        float weightedSum = 0;
+        float powerSum = 0;
+        int peakBin = 1;
+        for (int k = 1; k <= nyquistBin; k++) {
+            float p = re[k] * re[k] + im[k] * im[k];
+            power[k] = p;
+            weightedSum += p * k;
+            powerSum += p;
+            if (p > power[peakBin]) {
+                peakBin = k;
+            }
+        }
+
+        if (powerSum > 0) {
+            spectralCentroid = weightedSum / powerSum * binHz;
+            dominantFrequency = interpolatePeak(peakBin) * binHz;
+        } else {
+            spectralCentroid = 0;
+            dominantFrequency = 0;
+        }
+
+        // Mean square of the signal in each band, from Parseval with the window taken out
+        float scale = 2f / (fftSize * windowEnergy);
+        for (int band = 0; band < bandLevels.length; band++) {
+            float bandPower = 0;
+            for (int k = bandStart[band]; k < bandEnd[band]; k++) {
+                bandPower += power[k];
+            }
+            bandLevels[band] = toDb(bandPower * scale);
+        }
+    }
+
+    // In-place iterative radix-2 FFT over re/im, input already in bit reversed order
+    private void transform() {
+        for (int size = 2; size <= fftSize; size <<= 1) {
+            int half = size >> 1;
+            int stride = fftSize / size;
+            for (int start = 0; start < fftSize; start += size) {
+                for (int j = 0, t = 0; j < half; j++, t += stride) {
+                    int even = start + j;
+                    int odd = even + half;
+                    float tr = re[odd] * cosTable[t] - im[odd] * sinTable[t];
+                    float ti = re[odd] * sinTable[t] + im[odd] * cosTable[t];
+                    re[odd] = re[even] - tr;
+                    im[odd] = im[even] - ti;
+                    re[even] += tr;
+                    im[even] += ti;
+                }
+            }
+        }
+    }
+
+    // Fit a parabola through the peak and its neighbours for a sub-bin estimate
+    private float interpolatePeak(int bin) {
+        if (bin <= 1 || bin >= fftSize / 2) {
+            return bin;
+        }
+        float left = (float) Math.log(power[bin - 1] + 1e-20f);
+        float centre = (float) Math.log(power[bin] + 1e-20f);
+        float right = (float) Math.log(power[bin + 1] + 1e-20f);
+        float denominator = left - 2 * centre + right;
+        if (denominator == 0) {
+            return bin;
+        }
+        return bin + 0.5f * (left - right) / denominator;
+    }
+
+    // Mean square to decibels relative to full scale
+    private static float toDb(float meanSquare) {
+        if (meanSquare <= 0) {
+            return MIN_DB;
+        }
+        return Math.max(MIN_DB, (float) (10 * Math.log10(meanSquare)));
+    }
+
+    float rms() {
+        return rms;
+    }
+
+    float dbfs() {
+        return dbfs;
+    }
+
+    float loudness() {
+        return loudness;
+    }
+
+    float dominantFrequency() {
+        return dominantFrequency;
+    }
+
+    float spectralCentroid() {
+        return spectralCentroid;
+    }
+
+    int bandCount() {
+        return bandLevels.length;
+    }
+
+    int bandCenter(int band) {
+        return bandCenters[band];
+    }
+
+    float bandLevel(int band) {
+        return bandLevels[band];
+    }
+
+    int sampleRate() {
+        return sampleRate;
+    }
+
+    int fftSize() {
+        return fftSize;
+    }
+}
@@ -0,0 +1,102 @@
+package ca.dungeons.sensordump;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single producer / single consumer ring of per-buffer audio analysis, so a
+// bang that only lasts one buffer still makes it into the document.  The audio
+// thread writes one entry per buffer it reads, the ingest thread takes them
+// out a window at a time.  Like SensorRingBuffer nothing is locked or
+// allocated, and when the ring is full the newest entry is dropped and counted.
+class AudioFeatureRing {
+
+    // Value numbers within an entry, in the order the recorder writes them.
+    // The octave band levels follow from BANDS on.
+    static final int LOUDNESS = 0;
+    static final int FREQUENCY = 1;
+    static final int RMS = 2;
+    static final int DBFS = 3;
+    static final int SPECTRAL_CENTROID = 4;
+    static final int BANDS = 5;
+
+    private final int capacity;
+    private final int mask;
+    private final int stride;
+
+    private final long[] times;
+    private final float[] values;
+
+    // head is only written by the consumer, tail only by the producer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile long overflows = 0;
+
+    AudioFeatureRing(int minimumCapacity, int bandCount) {
+        int size = 1;
+        while (size < minimumCapacity) {
+            size <<= 1;
+        }
+        capacity = size;
+        mask = size - 1;
+        stride = BANDS + bandCount;
+        times = new long[size];
+        values = new float[size * stride];
+    }
+
+    // Producer side.  Returns false if the entry had to be dropped.
+    boolean offer(long time, float loudness, float frequency, float rms, float dbfs,
+                  float spectralCentroid, float[] bandLevels) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= capacity) {
+            overflows++;
+            return false;
+        }
+
+        int slot = (int) (currentTail & mask);
+        int base = slot * stride;
+        times[slot] = time;
+        values[base + LOUDNESS] = loudness;
+        values[base + FREQUENCY] = frequency;
+        values[base + RMS] = rms;
+        values[base + DBFS] = dbfs;
+        values[base + SPECTRAL_CENTROID] = spectralCentroid;
+        for (int i = 0; i < stride - BANDS; i++) {
+            values[base + BANDS + i] = i < bandLevels.length ? bandLevels[i] : AudioAnalyzer.MIN_DB;
+        }
+
+        // Publish the entry once it's all written
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    // Consumer side.  True if there's an entry to look at, which stays put
+    // until take() hands its slot back to the producer.
+    boolean peek() {
+        return head.get() < tail.get();
+    }
+
+    void take() {
+        head.lazySet(head.get() + 1);
+    }
+
+    long time() {
+        return times[(int) (head.get() & mask)];
+    }
+
+    float value(int field) {
+        return values[(int) (head.get() & mask) * stride + field];
+    }
+
+    // Values per entry, BANDS plus the band count
+    int valueCount() {
+        return stride;
+    }
+
+    long overflows() {
+        return overflows;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -5,14 +5,287 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 class AudioLogger {
 
-    // These are the values we will store in the ES document
-    float loudness = 0;
-    float frequency = 0;
+    // Octave bands we report energy for unless the user picks their own
+    static final String DEFAULT_BANDS = "125,250,500,1000,2000,4000,8000";
+
+    // A copy of the values we will store in the ES document, owned by whoever reads them
+    static class Levels {
+        float loudness;
+        float frequency;
+        float rms;
+        float dbfs;
+        float spectralCentroid;
+        int[] bandCenters = new int[0];
+        float[] bandLevels = new float[0];
+        int bandCount;
+
+        // Every buffer read during the last window that closed.  readWindow()
+        // also fills in the values above from the last of them.
+        int bufferCount;
+        float loudnessPeak;
+        float loudnessMean;
+        float rmsPeak;
+        float rmsMean;
+        float dbfsPeak;
+    }
+
+    // Buffers wait in the ring until their window closes.  It's sized for the
+    // longest wait at the shortest buffer AudioRecord hands over, low latency
+    // devices go down to about 10 ms, and never smaller than this.
+    private static final int MIN_FEATURE_CAPACITY = 1024;
+    private static final int MIN_BUFFER_MILLIS = 10;
+
+    // The latest analysis is published seqlock style: the sequence is odd while
+    // the audio thread is writing, and a reader that saw it odd or saw it move
+    // copies again.  Everything is volatile so no write can drift outside the
+    // sequence bumps, and the reader never blocks the audio thread.
+    private volatile int sequence = 0;
+    private volatile float loudness = 0;
+    private volatile float frequency = 0;
+    private volatile float rms = 0;
+    private volatile float dbfs = AudioAnalyzer.MIN_DB;
+    private volatile float spectralCentroid = 0;
+    private volatile int[] bandCenters = new int[0];
+    private volatile AtomicIntegerArray bandLevels = new AtomicIntegerArray(0);
+
+    // Per-buffer analysis waiting for its document window, only replaced
+    // between recordings.  The last window closed is kept as running peaks and
+    // sums, so a long window costs no more than a short one.  The window side
+    // belongs to the ingest thread, or the replay.
+    private AudioFeatureRing features = new AudioFeatureRing(MIN_FEATURE_CAPACITY, 0);
+    private int featureCapacity = MIN_FEATURE_CAPACITY;
+    private int windowCount = 0;
+    private float loudnessPeak;
+    private double loudnessSum;
+    private float rmsPeak;
+    private double rmsSum;
+    private float dbfsPeak;
+
+    // The last buffer in a window that had any, so the document shows the
+    // sound at the end of its window and not whatever came in since
+    private float windowLoudness = 0;
+    private float windowFrequency = 0;
+    private float windowRms = 0;
+    private float windowDbfs = AudioAnalyzer.MIN_DB;
+    private float windowSpectralCentroid = 0;
+    private float[] windowBandLevels = new float[0];
+
+    // Kept from one recording to the next, only rebuilt if the size or bands change
+    private Thread audioThread;
+    private short[] audioBuffer;
+    private AudioAnalyzer analyzer;
+    private int[] analyzerBands;
+    private float[] analyzerLevels;
 
     private final int SAMPLE_RATE = 44100; // The sampling rate
-    private boolean isRunning = false; // Indicates if recording / playback should stop
+    private final int FFT_SIZE = 1024; // ~23ms of audio per spectrum
+    private volatile boolean isRunning = false; // Indicates if recording / playback should stop
+
+    AudioLogger() {
+        setBands(parseBands(DEFAULT_BANDS));
+    }
+
+    // Octave band centres in Hz, as a comma separated list
+    static int[] parseBands(String bands) {
+        String[] parts = bands.split(",");
+        int[] centers = new int[parts.length];
+        int count = 0;
+        for (String part : parts) {
+            try {
+                int center = Integer.parseInt(part.trim());
+                if (center > 0) {
+                    centers[count++] = center;
+                }
+            } catch (NumberFormatException e) {
+                Log.v("Bad audio band", part);
+            }
+        }
+        int[] parsed = new int[count];
+        System.arraycopy(centers, 0, parsed, 0, count);
+        return parsed;
+    }
+
+    // Pick the octave bands for the next recording.  The last recording may
+    // still be publishing its final buffer, and the sequence only works with
+    // one writer, so that has to be done first.
+    void setBands(int[] centers) {
+        if (isRunning || !awaitAudioThread()) {
+            return;
+        }
+        AtomicIntegerArray levels = new AtomicIntegerArray(centers.length);
+        for (int i = 0; i < centers.length; i++) {
+            levels.set(i, Float.floatToRawIntBits(AudioAnalyzer.MIN_DB));
+        }
+        sequence++;
+        bandCenters = centers;
+        bandLevels = levels;
+        sequence++;
+        features = new AudioFeatureRing(featureCapacity, centers.length);
+        windowLoudness = 0;
+        windowFrequency = 0;
+        windowRms = 0;
+        windowDbfs = AudioAnalyzer.MIN_DB;
+        windowSpectralCentroid = 0;
+        windowBandLevels = new float[centers.length];
+        Arrays.fill(windowBandLevels, AudioAnalyzer.MIN_DB);
+    }
+
+    // Make room for every buffer read in millis, the longest one can wait for
+    // its window to close.  Only between recordings, like the bands.
+    void setLongestWait(long millis) {
+        if (isRunning || !awaitAudioThread()) {
+            return;
+        }
+        featureCapacity = (int) Math.min(1 << 20, Math.max(MIN_FEATURE_CAPACITY, millis / MIN_BUFFER_MILLIS));
+        if (features.capacity() < featureCapacity) {
+            features = new AudioFeatureRing(featureCapacity, bandCenters.length);
+        }
+    }
+
+    // The last recording has to be done with the ring and the sequence.  False
+    // if we were interrupted waiting.
+    private boolean awaitAudioThread() {
+        if (audioThread != null) {
+            try {
+                audioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // New values from the audio thread, or from a recorded session.  Only one
+    // thread publishes at a time, so a plain increment is fine.
+    void publish(float newLoudness, float newFrequency, float newRms, float newDbfs,
+                 float newSpectralCentroid, float[] newBandLevels) {
+        AtomicIntegerArray levels = bandLevels;
+        sequence++;
+        loudness = newLoudness;
+        frequency = newFrequency;
+        rms = newRms;
+        dbfs = newDbfs;
+        spectralCentroid = newSpectralCentroid;
+        for (int i = 0; i < levels.length() && i < newBandLevels.length; i++) {
+            levels.set(i, Float.floatToRawIntBits(newBandLevels[i]));
+        }
+        sequence++;
+    }
+
+    int[] bandCenters() {
+        return bandCenters;
+    }
+
+    // One analysed buffer, from the audio thread or a recorded session.  Only
+    // one of them adds at a time.
+    void addBuffer(long time, float newLoudness, float newFrequency, float newRms, float newDbfs,
+                   float newSpectralCentroid, float[] newBandLevels) {
+        features.offer(time, newLoudness, newFrequency, newRms, newDbfs, newSpectralCentroid, newBandLevels);
+    }
+
+    // Fold every buffer from before the end of the window into its peaks and
+    // sums, handing each to the recorder on the way if there is one.  Later
+    // ones wait for the next window.
+    void closeWindow(long before, SessionRecorder recorder) {
+        windowCount = 0;
+        loudnessPeak = 0;
+        loudnessSum = 0;
+        rmsPeak = 0;
+        rmsSum = 0;
+        dbfsPeak = 0;
+        while (features.peek() && features.time() < before) {
+            float bufferLoudness = features.value(AudioFeatureRing.LOUDNESS);
+            float bufferRms = features.value(AudioFeatureRing.RMS);
+            float bufferDbfs = features.value(AudioFeatureRing.DBFS);
+            if (windowCount == 0) {
+                loudnessPeak = bufferLoudness;
+                rmsPeak = bufferRms;
+                dbfsPeak = bufferDbfs;
+            } else {
+                loudnessPeak = Math.max(loudnessPeak, bufferLoudness);
+                rmsPeak = Math.max(rmsPeak, bufferRms);
+                dbfsPeak = Math.max(dbfsPeak, bufferDbfs);
+            }
+            loudnessSum += bufferLoudness;
+            rmsSum += bufferRms;
+            windowLoudness = bufferLoudness;
+            windowFrequency = features.value(AudioFeatureRing.FREQUENCY);
+            windowRms = bufferRms;
+            windowDbfs = bufferDbfs;
+            windowSpectralCentroid = features.value(AudioFeatureRing.SPECTRAL_CENTROID);
+            for (int i = 0; i < windowBandLevels.length; i++) {
+                windowBandLevels[i] = features.value(AudioFeatureRing.BANDS + i);
+            }
+            if (recorder != null) {
+                recorder.audioBuffer(features);
+            }
+            features.take();
+            windowCount++;
+        }
+    }
+
+    // The levels at the end of the last window closed, with its peak, mean and
+    // count.  A window without buffers keeps the levels of the one before.
+    void readWindow(Levels into) {
+        into.loudness = windowLoudness;
+        into.frequency = windowFrequency;
+        into.rms = windowRms;
+        into.dbfs = windowDbfs;
+        into.spectralCentroid = windowSpectralCentroid;
+        int count = Math.min(bandCenters.length, windowBandLevels.length);
+        if (into.bandLevels.length < count) {
+            into.bandLevels = new float[count];
+        }
+        System.arraycopy(windowBandLevels, 0, into.bandLevels, 0, count);
+        into.bandCenters = bandCenters;
+        into.bandCount = count;
+        into.bufferCount = windowCount;
+        into.loudnessPeak = loudnessPeak;
+        into.loudnessMean = windowCount > 0 ? (float) (loudnessSum / windowCount) : 0;
+        into.rmsPeak = rmsPeak;
+        into.rmsMean = windowCount > 0 ? (float) (rmsSum / windowCount) : 0;
+        into.dbfsPeak = dbfsPeak;
+    }
+
+    long droppedBuffers() {
+        return features.overflows();
+    }
+
+    // Copy the latest values, all from the same analysis.  Only allocates when
+    // there are more bands than last time.
+    void read(Levels into) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                into.loudness = loudness;
+                into.frequency = frequency;
+                into.rms = rms;
+                into.dbfs = dbfs;
+                into.spectralCentroid = spectralCentroid;
+                int[] centers = bandCenters;
+                AtomicIntegerArray levels = bandLevels;
+                int count = Math.min(centers.length, levels.length());
+                if (into.bandLevels.length < count) {
+                    into.bandLevels = new float[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    into.bandLevels[i] = Float.intBitsToFloat(levels.get(i));
+                }
+                into.bandCenters = centers;
+                into.bandCount = count;
+                if (sequence == before) {
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
 
     void startRecording() {
 
@@ -25,9 +298,20 @@ class AudioLogger {
             isRunning = true;
         }
 
-        Thread audio_thread = new Thread(new Runnable() {
+        // The last recording may still be finishing its read, it has to be done
+        // with the buffers before this one picks them up
+        final Thread previousThread = audioThread;
+        audioThread = new Thread(new Runnable() {
             @Override
             public void run() {
+                if (previousThread != null) {
+                    try {
+                        previousThread.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
                 // buffer size in bytes
                 int bufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
                         AudioFormat.CHANNEL_IN_MONO,
@@ -37,7 +321,9 @@ class AudioLogger {
                     bufferSize = SAMPLE_RATE * 2;
                 }
 
-                short[] audioBuffer = new short[bufferSize / 2];
+                if (audioBuffer == null || audioBuffer.length != bufferSize / 2) {
+                    audioBuffer = new short[bufferSize / 2];
+                }
 
                 AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
                         SAMPLE_RATE,
@@ -52,48 +338,33 @@ class AudioLogger {
 
                 record.startRecording();
 
-                long shortsRead = 0;
-                while (isRunning) {
-                    record.read(audioBuffer, 0, audioBuffer.length);
-
-                    float lowest = 0;
-                    float highest = 0;
-                    int zeroes = 0;
-                    int last_value = 0;
-
-                    for (short anAudioBuffer : audioBuffer) {
-
-                        // Detect lowest in sample
-                        if (anAudioBuffer < lowest) {
-                            lowest = anAudioBuffer;
-                        }
-
-                        // Detect highest in sample
-                        if (anAudioBuffer > highest) {
-                            highest = anAudioBuffer;
-                        }
-
-                        // Down and coming up
-                        if (anAudioBuffer > 0 && last_value < 0) {
-                            zeroes++;
-                        }
-
-                        // Up and down
-                        if (anAudioBuffer < 0 && last_value > 0) {
-                            zeroes++;
-                        }
+                int[] centers = bandCenters;
+                if (analyzer == null || !Arrays.equals(analyzerBands, centers)) {
+                    analyzer = new AudioAnalyzer(SAMPLE_RATE, FFT_SIZE, centers);
+                    analyzerBands = centers;
+                    analyzerLevels = new float[centers.length];
+                }
+                float[] levels = analyzerLevels;
 
-                        last_value = anAudioBuffer;
+                while (isRunning) {
+                    int samplesRead = record.read(audioBuffer, 0, audioBuffer.length);
+                    if (samplesRead < 0) {
+                        Log.e("Audio Error", "Read failed: " + samplesRead);
+                        break;
+                    } else if (samplesRead == 0) {
+                        continue;
                     }
+                    long readTime = System.currentTimeMillis();
 
-                    // Calculate highest and lowest peak difference as a % of the max possible
-                    // value
-                    loudness = (highest - lowest) / 65536 * 100;
+                    analyzer.analyze(audioBuffer, 0, samplesRead);
 
-                    // Take the count of the peaks in the time that we had based on the sample
-                    // rate to calculate frequency
-                    float seconds = (float) audioBuffer.length / (float) SAMPLE_RATE;
-                    frequency = (float) zeroes / seconds / 2;
+                    for (int i = 0; i < levels.length; i++) {
+                        levels[i] = analyzer.bandLevel(i);
+                    }
+                    publish(analyzer.loudness(), analyzer.dominantFrequency(), analyzer.rms(),
+                            analyzer.dbfs(), analyzer.spectralCentroid(), levels);
+                    addBuffer(readTime, analyzer.loudness(), analyzer.dominantFrequency(), analyzer.rms(),
+                            analyzer.dbfs(), analyzer.spectralCentroid(), levels);
                 }
 
                 record.stop();
@@ -102,7 +373,7 @@ class AudioLogger {
             }
         });
 
-        audio_thread.start();
+        audioThread.start();
     }
 
     void stopRecording() {
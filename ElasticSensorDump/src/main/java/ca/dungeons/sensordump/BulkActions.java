@@ -0,0 +1,106 @@
+package ca.dungeons.sensordump;
+
+import java.nio.charset.StandardCharsets;
+
+// Builds the _bulk action line in front of every document.  The _id is the
+// session and the timestamp, plus the bucket width for a rollup, so sending a
+// document again can't make a second copy.
+//
+// The line is written into a scratch buffer that's reused for the next one,
+// so only the sink thread may call write().
+class BulkActions {
+
+    private static final byte[] ACTION_END = "\"}}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final String index;
+    private final boolean daily;
+    private final String type;
+    private final String sessionId;
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+
+    // The index documents go to right now, with the start of its action line
+    private volatile IndexDay indexDay;
+    private byte[] scratch = new byte[256];
+
+    BulkActions(String index, boolean daily, String type, String sessionId) {
+        this.index = index;
+        this.daily = daily;
+        this.type = type;
+        this.sessionId = sessionId;
+    }
+
+    // The action line for a document at this time, in buffer().  Returns the length.
+    int write(long timestamp, int rollupSeconds) {
+        byte[] actionStart = indexDay(timestamp).actionStart;
+        int needed = actionStart.length + 48;
+        if (scratch.length < needed) {
+            scratch = new byte[needed];
+        }
+        System.arraycopy(actionStart, 0, scratch, 0, actionStart.length);
+        int length = writeDecimal(scratch, actionStart.length, timestamp);
+        if (rollupSeconds > 0) {
+            scratch[length++] = '-';
+            scratch[length++] = 'r';
+            length = writeDecimal(scratch, length, rollupSeconds);
+        }
+        System.arraycopy(ACTION_END, 0, scratch, length, ACTION_END.length);
+        return length + ACTION_END.length;
+    }
+
+    // Good until the next write()
+    byte[] buffer() {
+        return scratch;
+    }
+
+    // A standalone action line with its own _id suffix, safe from any thread
+    byte[] line(long timestamp, String suffix) {
+        return (new String(indexDay(timestamp).actionStart, StandardCharsets.UTF_8) + timestamp + suffix + "\"}}\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Every document in a day shares the same index, a new one is worked out
+    // when the day changes
+    private IndexDay indexDay(long timestamp) {
+        IndexDay day = indexDay;
+        if (day == null || timestamp < day.start || timestamp >= day.end) {
+            day = new IndexDay(timestamp);
+            indexDay = day;
+        }
+        return day;
+    }
+
+    private static int writeDecimal(byte[] into, int offset, long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            into[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    // One day's index name and the action line up to the timestamp in the _id,
+    // never changed once it's built.  Without daily indexes it covers all of time.
+    private class IndexDay {
+        final long start;
+        final long end;
+        final byte[] actionStart;
+
+        IndexDay(long timestamp) {
+            String dayIndex = index;
+            if (daily) {
+                end = timestampFormatter.nextDayStart(timestamp);
+                start = timestampFormatter.nextDayStart(end - 36 * 3600 * 1000L);
+                dayIndex = index + "-" + timestampFormatter.formatDay(timestamp);
+            } else {
+                start = Long.MIN_VALUE;
+                end = Long.MAX_VALUE;
+            }
+            // create rather than index, so a document that's already there is left alone
+            actionStart = ("{\"create\":{\"_index\":\"" + dayIndex + "\",\"_type\":\"" + type
+                    + "\",\"_id\":\"" + sessionId + "-").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ca.dungeons.sensordump;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Collects documents into one NDJSON _bulk body and hands it off once we hit
+// the document count, byte size or linger time limit.  One HTTP request per
+// batch instead of one per document saves a lot of radio time.
+//
+// A body handed to the listener belongs to it until it gives it back with
+// recycle(), and then it's filled again for a later batch.
+class BulkBatcher {
+
+    interface Listener {
+        void onBatchReady(byte[] body, int length, int docCount);
+    }
+
+    // Don't let a tiny linger setting turn into a busy loop
+    private static final long MIN_LINGER_CHECK = 10;
+
+    // Bodies kept for reuse, about as many as are out at once when things go well
+    private static final int MAX_POOLED = 4;
+
+    private final Listener listener;
+    private final int maxDocs;
+    private final int maxBytes;
+    private final long lingerMillis;
+
+    // Flow control can shrink the batch below the configured limits when the cluster struggles
+    private int docLimit;
+    private int byteLimit;
+
+    private byte[] buffer;
+    private int length = 0;
+    private int docCount = 0;
+    private long firstDocTime = 0;
+
+    private ScheduledExecutorService lingerTimer;
+
+    // Bodies the listener is done with
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+    BulkBatcher(int maxDocs, int maxBytes, long lingerMillis, Listener listener) {
+        this.maxDocs = Math.max(1, maxDocs);
+        this.maxBytes = Math.max(1024, maxBytes);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.docLimit = this.maxDocs;
+        this.byteLimit = this.maxBytes;
+        this.listener = listener;
+        this.buffer = new byte[Math.min(this.maxBytes, 64 * 1024)];
+    }
+
+    // Kick off the timer that makes sure a quiet batch still goes out on time.
+    // A linger time of 0 has no timer, whoever adds documents calls
+    // flushIfLingering once they run out.
+    synchronized void start() {
+        if (lingerTimer != null || lingerMillis == 0) {
+            return;
+        }
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bulk-linger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long checkPeriod = Math.max(MIN_LINGER_CHECK, lingerMillis / 4);
+        lingerTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushIfLingering(System.currentTimeMillis());
+            }
+        }, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    // Send whatever is left and stop the linger timer
+    void stop() {
+        Batch batch;
+        synchronized (this) {
+            batch = takeBatch();
+            if (lingerTimer != null) {
+                lingerTimer.shutdownNow();
+                lingerTimer = null;
+            }
+        }
+        send(batch);
+    }
+
+    // Append one action line and its document to the batch.  Full batches are
+    // handed off after the lock is let go, so a listener that has to wait for
+    // a free sender doesn't hold up the senders calling setDocLimit.
+    void add(byte[] action, int actionLength, byte[] doc, int docOffset, int docLength) {
+        Batch before = null;
+        Batch after = null;
+        synchronized (this) {
+            int needed = actionLength + docLength + 1;
+
+            // Flush first if this document would push us past the size limit
+            if (docCount > 0 && length + needed > byteLimit) {
+                before = takeBatch();
+            }
+
+            ensureCapacity(length + needed);
+            System.arraycopy(action, 0, buffer, length, actionLength);
+            length += actionLength;
+            System.arraycopy(doc, docOffset, buffer, length, docLength);
+            length += docLength;
+            buffer[length++] = '\n';
+
+            if (docCount++ == 0) {
+                firstDocTime = System.currentTimeMillis();
+            }
+
+            if (docCount >= docLimit || length >= byteLimit) {
+                after = takeBatch();
+            }
+        }
+        send(before);
+        send(after);
+    }
+
+    void flushIfLingering(long now) {
+        Batch batch = null;
+        synchronized (this) {
+            if (docCount > 0 && now - firstDocTime >= lingerMillis) {
+                batch = takeBatch();
+            }
+        }
+        send(batch);
+    }
+
+    void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = takeBatch();
+        }
+        send(batch);
+    }
+
+    // The listener is done with a body it was given, the batch went out or is
+    // somewhere else now.  Nothing may touch it after this.
+    synchronized void recycle(byte[] body) {
+        if (body.length >= buffer.length && pool.size() < MAX_POOLED) {
+            pool.push(body);
+        }
+    }
+
+    // Take the filled buffer out and start on another one, null if it's empty.
+    // One the buffer has grown past since it went in the pool isn't worth having.
+    private Batch takeBatch() {
+        if (docCount == 0) {
+            return null;
+        }
+        Batch batch = new Batch(buffer, length, docCount);
+        byte[] next = pool.poll();
+        while (next != null && next.length < buffer.length) {
+            next = pool.poll();
+        }
+        buffer = next != null ? next : new byte[buffer.length];
+        length = 0;
+        docCount = 0;
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        if (batch != null) {
+            listener.onBatchReady(batch.body, batch.length, batch.docCount);
+        }
+    }
+
+    // A batch on its way from under the lock to the listener
+    private static class Batch {
+        final byte[] body;
+        final int length;
+        final int docCount;
+
+        Batch(byte[] body, int length, int docCount) {
+            this.body = body;
+            this.length = length;
+            this.docCount = docCount;
+        }
+    }
+
+    // Batch size from the next document on, never above what the user configured.
+    // The byte limit shrinks in proportion.  Called from the sender threads, so
+    // this never flushes itself.
+    synchronized void setDocLimit(int docs) {
+        docLimit = Math.max(1, Math.min(maxDocs, docs));
+        byteLimit = Math.max(1024, (int) ((long) maxBytes * docLimit / maxDocs));
+    }
+
+    synchronized int docLimit() {
+        return docLimit;
+    }
+
+    synchronized int pendingDocs() {
+        return docCount;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ca.dungeons.sensordump;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Pulls the status of every item out of a _bulk response as it streams in.
+// A _bulk request can come back 200 with some of its items failed, and only
+// the items say which.
+//
+// This isn't a general JSON parser, it only follows nesting and strings well
+// enough to find items[n].<action>.status:
+//
+//   {"took":3,"errors":true,"items":[{"create":{"_id":"..","status":201}}, ...]}
+//
+// Nothing else is kept, so a big response costs one int per item.
+class BulkResponseParser {
+
+    private static final byte[] ITEMS = {'i', 't', 'e', 'm', 's'};
+    private static final byte[] STATUS = {'s', 't', 'a', 't', 'u', 's'};
+
+    // Nesting depth of the interesting parts
+    private static final int ROOT_DEPTH = 1;
+    private static final int ITEMS_DEPTH = 2;
+    private static final int ITEM_DEPTH = 3;
+    private static final int ACTION_DEPTH = 4;
+
+    private static final int KEY_OTHER = 0;
+    private static final int KEY_ITEMS = 1;
+    private static final int KEY_STATUS = 2;
+
+    private final byte[] scratch = new byte[4096];
+    private int[] statuses;
+    private int items;
+
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private int stringLength;
+    private boolean maybeItems;
+    private boolean maybeStatus;
+    private int lastKey;
+    private boolean itemsNext;
+    private boolean inItems;
+    private boolean readingStatus;
+    private int statusDigits;
+    private int status;
+
+    BulkResponseParser(int expectedItems) {
+        statuses = new int[Math.max(1, expectedItems)];
+    }
+
+    // Read the whole stream, which leaves the connection ready for reuse
+    void parse(InputStream in) throws IOException {
+        items = 0;
+        depth = 0;
+        inString = false;
+        escaped = false;
+        lastKey = KEY_OTHER;
+        itemsNext = false;
+        inItems = false;
+        readingStatus = false;
+
+        int read;
+        while ((read = in.read(scratch)) != -1) {
+            for (int i = 0; i < read; i++) {
+                accept(scratch[i]);
+            }
+        }
+    }
+
+    // Items found, in the same order as the request
+    int items() {
+        return items;
+    }
+
+    // HTTP style status of one item, 0 if the item had none
+    int status(int item) {
+        return statuses[item];
+    }
+
+    private void accept(byte b) {
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+                mismatch();
+            } else if (b == '\\') {
+                escaped = true;
+                mismatch();
+            } else if (b == '"') {
+                inString = false;
+                if (maybeItems && stringLength == ITEMS.length) {
+                    lastKey = KEY_ITEMS;
+                } else if (maybeStatus && stringLength == STATUS.length) {
+                    lastKey = KEY_STATUS;
+                } else {
+                    lastKey = KEY_OTHER;
+                }
+            } else {
+                maybeItems = maybeItems && stringLength < ITEMS.length && b == ITEMS[stringLength];
+                maybeStatus = maybeStatus && stringLength < STATUS.length && b == STATUS[stringLength];
+                stringLength++;
+            }
+            return;
+        }
+
+        if (readingStatus) {
+            if (b >= '0' && b <= '9') {
+                status = status * 10 + (b - '0');
+                statusDigits++;
+                return;
+            } else if (statusDigits > 0) {
+                statuses[items - 1] = status;
+                readingStatus = false;
+            } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                // Not a number after all
+                readingStatus = false;
+            }
+        }
+
+        switch (b) {
+            case '"':
+                inString = true;
+                stringLength = 0;
+                maybeItems = depth == ROOT_DEPTH;
+                maybeStatus = inItems && depth == ACTION_DEPTH;
+                break;
+            case ':':
+                if (lastKey == KEY_ITEMS) {
+                    itemsNext = true;
+                } else if (lastKey == KEY_STATUS && items > 0) {
+                    readingStatus = true;
+                    statusDigits = 0;
+                    status = 0;
+                }
+                lastKey = KEY_OTHER;
+                break;
+            case '[':
+                depth++;
+                if (itemsNext && depth == ITEMS_DEPTH) {
+                    inItems = true;
+                }
+                itemsNext = false;
+                break;
+            case ']':
+                if (inItems && depth == ITEMS_DEPTH) {
+                    inItems = false;
+                }
+                depth--;
+                break;
+            case '{':
+                depth++;
+                itemsNext = false;
+                if (inItems && depth == ITEM_DEPTH) {
+                    if (items == statuses.length) {
+                        int[] grown = new int[items * 2];
+                        System.arraycopy(statuses, 0, grown, 0, items);
+                        statuses = grown;
+                    }
+                    statuses[items++] = 0;
+                }
+                break;
+            case '}':
+                depth--;
+                break;
+            case ',':
+                lastKey = KEY_OTHER;
+                itemsNext = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void mismatch() {
+        maybeItems = false;
+        maybeStatus = false;
+        stringLength++;
+    }
+}
@@ -0,0 +1,76 @@
+package ca.dungeons.sensordump;
+
+// Running min/max/mean/stddev/count for every sensor channel over one document
+// window.  Everything lives in flat primitive arrays indexed by channel slot,
+// and the mean and variance are kept with Welford's method so a long window
+// doesn't lose precision.
+class ChannelAggregator {
+
+    private final int[] count;
+    private final float[] min;
+    private final float[] max;
+    private final double[] mean;
+    private final double[] m2;
+
+    ChannelAggregator(int channelCount) {
+        count = new int[channelCount];
+        min = new float[channelCount];
+        max = new float[channelCount];
+        mean = new double[channelCount];
+        m2 = new double[channelCount];
+    }
+
+    void add(int slot, float value) {
+        int n = ++count[slot];
+        if (n == 1) {
+            min[slot] = value;
+            max[slot] = value;
+            mean[slot] = value;
+            m2[slot] = 0;
+            return;
+        }
+
+        if (value < min[slot]) {
+            min[slot] = value;
+        }
+        if (value > max[slot]) {
+            max[slot] = value;
+        }
+        double delta = value - mean[slot];
+        mean[slot] += delta / n;
+        m2[slot] += delta * (value - mean[slot]);
+    }
+
+    // Start a new window
+    void reset() {
+        for (int i = 0; i < count.length; i++) {
+            count[i] = 0;
+        }
+    }
+
+    // Start a new window for one channel
+    void reset(int slot) {
+        count[slot] = 0;
+    }
+
+    int count(int slot) {
+        return count[slot];
+    }
+
+    float min(int slot) {
+        return min[slot];
+    }
+
+    float max(int slot) {
+        return max[slot];
+    }
+
+    float mean(int slot) {
+        return (float) mean[slot];
+    }
+
+    // Population standard deviation over the window
+    float stddev(int slot) {
+        return count[slot] > 0 ? (float) Math.sqrt(m2[slot] / count[slot]) : 0f;
+    }
+}
@@ -0,0 +1,57 @@
+package ca.dungeons.sensordump;
+
+import java.util.List;
+
+// Where the ingest thread hands its documents.  Each one is encoded once and
+// copied into the queue of every sink, and every sink works through its own
+// queue on its own thread.  A sink that is slow or down only loses its own
+// oldest documents, the sensors and the other sinks carry on.
+class DocumentFanout {
+
+    // How long stop() waits for the sinks to catch up, all together
+    private static final long STOP_TIMEOUT = 2000;
+
+    private final SinkQueue[] queues;
+    private final byte[] tagValue;
+
+    // The user's tag goes in every document, blockWhenFull is for replays that
+    // would rather wait than drop anything
+    DocumentFanout(List<DocumentSink> sinks, String tag, int queueBytes, boolean blockWhenFull) {
+        queues = new SinkQueue[sinks.size()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new SinkQueue(sinks.get(i), queueBytes, blockWhenFull);
+        }
+        tagValue = tag.equals("") ? null : SensorDocument.stringValue(tag);
+    }
+
+    void start() {
+        for (SinkQueue queue : queues) {
+            queue.start();
+        }
+    }
+
+    // Stops every sink, each one gets to empty its queue first
+    void stop() {
+        for (SinkQueue queue : queues) {
+            queue.requestStop();
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (SinkQueue queue : queues) {
+            queue.awaitStop(deadline);
+        }
+    }
+
+    // The document, then whatever rollup buckets it finished off
+    void index(SensorDocument document) {
+        long timestamp = document.timestamp();
+        int length = document.encode(tagValue);
+        for (SinkQueue queue : queues) {
+            queue.offer(timestamp, document.buffer(), length, 0);
+        }
+        while ((length = document.encodeRollup(tagValue)) > 0) {
+            for (SinkQueue queue : queues) {
+                queue.offer(document.rollupStart(), document.buffer(), length, document.rollupSeconds());
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ca.dungeons.sensordump;
+
+// Somewhere encoded documents go: an Elastic cluster, a local file, a UDP
+// listener.  Each sink sits behind its own SinkQueue and is only ever called
+// from that queue's thread, so a sink may take its time without holding up
+// the sensors or the other sinks.
+interface DocumentSink {
+
+    // One encoded document.  rollupSeconds is 0 for a full resolution document,
+    // otherwise the width of the rollup bucket starting at timestamp.  doc is
+    // only good until this returns.
+    void write(long timestamp, byte[] doc, int length, int rollupSeconds);
+
+    // The queue is empty for now, a good time to push out anything buffered.
+    // Also called every so often while nothing comes in.
+    void idle();
+
+    // Nothing more is coming
+    void stop();
+
+    String name();
+}
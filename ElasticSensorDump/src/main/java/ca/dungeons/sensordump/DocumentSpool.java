@@ -0,0 +1,405 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only on-disk spool for bulk bodies that could not be sent.  Data is
+// kept as raw NDJSON in memory-mapped segment files, so it survives the app
+// being killed and can be replayed in big _bulk chunks once we're back online.
+//
+// Each segment starts with a small header holding the write and replay
+// offsets, followed by action/document line pairs.  A body is never split
+// across segments, so every replay offset sits on a pair boundary.
+class DocumentSpool {
+
+    // A slice of spooled data handed out for replay.  Nothing is removed from
+    // the spool until the chunk is committed.
+    static class Chunk {
+        final byte[] data;
+        final int length;
+        final int docCount;
+
+        private final long[] segments;
+        private final int[] readOffsets;
+        private final int[] readDocs;
+
+        private Chunk(byte[] data, int length, int docCount, long[] segments, int[] readOffsets, int[] readDocs) {
+            this.data = data;
+            this.length = length;
+            this.docCount = docCount;
+            this.segments = segments;
+            this.readOffsets = readOffsets;
+            this.readDocs = readDocs;
+        }
+    }
+
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // Header layout
+    private static final int MAGIC = 0x45534431; // ESD1
+    private static final int HEADER_SIZE = 32;
+    private static final int POS_MAGIC = 0;
+    private static final int POS_WRITE_OFFSET = 4;
+    private static final int POS_READ_OFFSET = 8;
+    private static final int POS_WRITE_DOCS = 12;
+    private static final int POS_READ_DOCS = 16;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    // Oldest segment first, the last one is the one we append to
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSequence = 0;
+    private long droppedDocs = 0;
+
+    DocumentSpool(File dir, int segmentBytes, long maxBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        open();
+    }
+
+    // Pick up whatever a previous session left behind
+    private synchronized void open() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e("Spool Error", "Can't create " + dir);
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long[] sequences = new long[files.length];
+        int found = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    sequences[found++] = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    Log.v("Spool", "Ignoring " + name);
+                }
+            }
+        }
+        Arrays.sort(sequences, 0, found);
+
+        for (int i = 0; i < found; i++) {
+            try {
+                Segment segment = Segment.open(segmentFile(sequences[i]));
+                if (segment == null) {
+                    Log.v("Spool", "Dropping unreadable segment " + sequences[i]);
+                    segmentFile(sequences[i]).delete();
+                } else if (segment.isConsumed()) {
+                    segment.file.delete();
+                } else {
+                    segment.sequence = sequences[i];
+                    segments.add(segment);
+                }
+            } catch (IOException e) {
+                Log.e("Spool Error", e.toString());
+            }
+            nextSequence = sequences[i] + 1;
+        }
+
+        Log.v("Spool", "Recovered " + pendingDocs() + " docs");
+    }
+
+    // Store a whole bulk body.  Returns false if the spool could not take it.
+    synchronized boolean append(byte[] data, int length, int docCount) {
+        try {
+            Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (tail == null || tail.remaining() < length) {
+                tail = roll(length);
+            }
+            tail.append(data, length, docCount);
+            return true;
+        } catch (IOException e) {
+            Log.e("Spool Error", e.toString());
+            return false;
+        }
+    }
+
+    // Start a new segment, making room in the byte budget by throwing away the oldest data
+    private Segment roll(int needed) throws IOException {
+        int size = Math.max(segmentBytes, needed + HEADER_SIZE);
+
+        while (!segments.isEmpty() && totalBytes() + size > maxBytes) {
+            Segment oldest = segments.remove(0);
+            droppedDocs += oldest.pendingDocs();
+            Log.v("Spool", "Over budget, dropped " + oldest.pendingDocs() + " docs");
+            oldest.file.delete();
+        }
+
+        Segment segment = Segment.create(segmentFile(nextSequence), size);
+        segment.sequence = nextSequence++;
+        segments.add(segment);
+        return segment;
+    }
+
+    // Copy out up to maxLength bytes of whole documents, oldest first.  Always
+    // at least one document, however small maxLength is.
+    synchronized Chunk drain(int maxLength) {
+        // A crash can leave a torn document at the end of a segment.  Once we've
+        // moved on to the next segment it can never be sent, so let it go.
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            int start = oldest.readOffset();
+            if (oldest.pendingBytes() == 0 || oldest.firstPairEnd(start) != start) {
+                break;
+            }
+            segments.remove(0);
+            droppedDocs += oldest.pendingDocs();
+            Log.v("Spool", "Dropped a torn segment end, " + oldest.pendingBytes() + " bytes");
+            oldest.file.delete();
+        }
+
+        int total = 0;
+        int segmentCount = 0;
+        int[] ends = new int[segments.size()];
+        for (Segment segment : segments) {
+            if (total >= maxLength) {
+                break;
+            }
+            int start = segment.readOffset();
+            int end = segment.pairBoundary(start, Math.min(segment.writeOffset(), start + (maxLength - total)));
+            if (end == start && total == 0) {
+                end = segment.firstPairEnd(start);
+            }
+            ends[segmentCount++] = end;
+            total += end - start;
+
+            // Don't skip past a segment we couldn't fully drain
+            if (end < segment.writeOffset()) {
+                break;
+            }
+        }
+        if (total == 0) {
+            return null;
+        }
+
+        byte[] data = new byte[total];
+        long[] chunkSegments = new long[segmentCount];
+        int[] readOffsets = new int[segmentCount];
+        int[] readDocs = new int[segmentCount];
+        int length = 0;
+        int docCount = 0;
+
+        for (int i = 0; i < segmentCount; i++) {
+            Segment segment = segments.get(i);
+            int start = segment.readOffset();
+            int docs = segment.copy(start, ends[i], data, length);
+
+            length += ends[i] - start;
+            docCount += docs;
+            chunkSegments[i] = segment.sequence;
+            readOffsets[i] = ends[i];
+            readDocs[i] = segment.readDocs() + docs;
+        }
+
+        if (docCount == 0) {
+            return null;
+        }
+        return new Chunk(data, length, docCount, chunkSegments, readOffsets, readDocs);
+    }
+
+    // The chunk made it to the cluster, move the replay offsets past it
+    synchronized void commit(Chunk chunk) {
+        for (int i = 0; i < chunk.segments.length; i++) {
+            for (int j = 0; j < segments.size(); j++) {
+                Segment segment = segments.get(j);
+                if (segment.sequence == chunk.segments[i]) {
+                    segment.markRead(chunk.readOffsets[i], chunk.readDocs[i]);
+
+                    // Fully replayed segments can go, unless we're still appending to it
+                    if (segment.isConsumed() && j < segments.size() - 1) {
+                        segments.remove(j);
+                        segment.file.delete();
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // Push the mapped pages out to disk
+    synchronized void sync() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    synchronized int pendingDocs() {
+        int pending = 0;
+        for (Segment segment : segments) {
+            pending += segment.pendingDocs();
+        }
+        return pending;
+    }
+
+    synchronized long droppedDocs() {
+        return droppedDocs;
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.buffer.capacity();
+        }
+        return total;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(dir, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+    }
+
+    // One memory-mapped segment file
+    private static class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        long sequence;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            Segment segment = new Segment(file, map(file, size));
+            segment.buffer.putInt(POS_MAGIC, MAGIC);
+            segment.buffer.putInt(POS_WRITE_OFFSET, HEADER_SIZE);
+            segment.buffer.putInt(POS_READ_OFFSET, HEADER_SIZE);
+            segment.buffer.putInt(POS_WRITE_DOCS, 0);
+            segment.buffer.putInt(POS_READ_DOCS, 0);
+            return segment;
+        }
+
+        static Segment open(File file) throws IOException {
+            long size = file.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            Segment segment = new Segment(file, map(file, (int) size));
+            int writeOffset = segment.writeOffset();
+            int readOffset = segment.readOffset();
+            if (segment.buffer.getInt(POS_MAGIC) != MAGIC || writeOffset > size
+                    || readOffset < HEADER_SIZE || readOffset > writeOffset) {
+                return null;
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                // The mapping stays valid after the channel is closed
+                raf.close();
+            }
+        }
+
+        void append(byte[] data, int length, int docCount) {
+            int offset = writeOffset();
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.put(data, 0, length);
+            // Only publish the new offset once the data is in place
+            buffer.putInt(POS_WRITE_DOCS, writeDocs() + docCount);
+            buffer.putInt(POS_WRITE_OFFSET, offset + length);
+        }
+
+        // Walk forward from start and return the last offset at or before limit that
+        // ends an action/document pair
+        int pairBoundary(int start, int limit) {
+            int newlines = 0;
+            int boundary = start;
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n' && (++newlines & 1) == 0) {
+                    boundary = i + 1;
+                }
+            }
+            return boundary;
+        }
+
+        // Where the first action/document pair from start ends, start if there
+        // isn't a whole one
+        int firstPairEnd(int start) {
+            int newlines = 0;
+            int end = writeOffset();
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == '\n' && ++newlines == 2) {
+                    return i + 1;
+                }
+            }
+            return start;
+        }
+
+        // Copy [start, end) into dest and return the number of documents in it
+        int copy(int start, int end, byte[] dest, int destOffset) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.get(dest, destOffset, end - start);
+
+            int newlines = 0;
+            for (int i = destOffset; i < destOffset + end - start; i++) {
+                if (dest[i] == '\n') {
+                    newlines++;
+                }
+            }
+            return newlines / 2;
+        }
+
+        void markRead(int offset, int docs) {
+            buffer.putInt(POS_READ_DOCS, docs);
+            buffer.putInt(POS_READ_OFFSET, offset);
+        }
+
+        int writeOffset() {
+            return buffer.getInt(POS_WRITE_OFFSET);
+        }
+
+        int readOffset() {
+            return buffer.getInt(POS_READ_OFFSET);
+        }
+
+        int writeDocs() {
+            return buffer.getInt(POS_WRITE_DOCS);
+        }
+
+        int readDocs() {
+            return buffer.getInt(POS_READ_DOCS);
+        }
+
+        int remaining() {
+            return buffer.capacity() - writeOffset();
+        }
+
+        int pendingBytes() {
+            return writeOffset() - readOffset();
+        }
+
+        int pendingDocs() {
+            return writeDocs() - readDocs();
+        }
+
+        boolean isConsumed() {
+            return readOffset() == writeOffset();
+        }
+    }
+}
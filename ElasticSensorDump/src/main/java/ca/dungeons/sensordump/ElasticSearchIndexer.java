@@ -1,64 +1,195 @@
 package ca.dungeons.sensordump;
 
 import android.content.SharedPreferences;
+import android.util.Base64;
 import android.util.Log;
+import org.json.JSONException;
 import org.json.JSONObject;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Authenticator;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
 import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class ElasticSearchIndexer {
+// One Elastic cluster as a DocumentSink.  Documents are batched into _bulk
+// requests for a small pool of senders, with flow control, a spool for what
+// fails and a backfill for what waits out a metered link.
+class ElasticSearchIndexer implements DocumentSink {
 
-    private static int MAX_FAILED_DOCS = 1000;
+    // On-disk spool for failed documents
+    private static int SPOOL_SEGMENT_BYTES = 1024 * 1024;
+    private static int DEFAULT_SPOOL_MAX_MB = 64;
+    private static int REPLAY_CHUNK_BYTES = 4 * 1024 * 1024;
+    // Outright refusals of the same replay before it's let go
+    private static final int MAX_REPLAY_REFUSALS = 3;
     private static int LAST_RESPONSE_CODE = 299;
 
-    long failedIndex = 0;
-    long indexRequests = 0;
-    long indexSuccess = 0;
+    // HTTP timeouts.  The cluster has to parse and index the whole body before
+    // it answers, so the read timeout grows with the body at a pace even a slow
+    // cluster keeps up with.  A 4 MB replay chunk gets about 18 seconds.
+    private static int CONNECT_TIMEOUT_MS = 2000;
+    private static int READ_TIMEOUT_MS = 2000;
+    private static int SLOWEST_BYTES_PER_MS = 256;
+
+    // Default bulk batching limits, the user can override these in preferences
+    private static int DEFAULT_BULK_MAX_DOCS = 100;
+    private static int DEFAULT_BULK_MAX_KB = 512;
+    private static int DEFAULT_BULK_LINGER_MS = 2000;
+
+    // Default sender pool size and how many requests may wait for a free sender
+    private static int DEFAULT_SENDER_THREADS = 2;
+    private static int DEFAULT_SENDER_QUEUE = 8;
+
+    // What to do with a new request when the sender queue is full
+    static final String QUEUE_FULL_BLOCK = "block";
+    // How long "block" waits for room before the request goes to the spool
+    private static final int QUEUE_FULL_WAIT_MS = 5000;
+    static final String QUEUE_FULL_DROP_OLDEST = "drop_oldest";
+    static final String QUEUE_FULL_SPILL = "spill";
+
+    // Retry and flow control defaults
+    private static int DEFAULT_MAX_RETRIES = 4;
+    private static int DEFAULT_TARGET_LATENCY_MS = 1000;
+    private static int BASE_BACKOFF_MS = 500;
+    private static int MAX_BACKOFF_MS = 30000;
+
+    // A create that finds its _id already taken, an earlier attempt got through
+    private static final int ALREADY_INDEXED = 409;
+
+    // How often a self-monitoring document goes out, if the user wants them
+    private static int DEFAULT_SELF_MONITORING_SECONDS = 60;
+
+    // Index settings for the template, tuned for lots of small writes
+    private static int DEFAULT_INDEX_SHARDS = 1;
+    private static int DEFAULT_INDEX_REPLICAS = 1;
+    private static String DEFAULT_REFRESH_INTERVAL = "30s";
+
+    // Batches kept in memory while the template goes in, the rest go to the spool
+    private static int MAX_HELD_BATCHES = 16;
+
+    // Full resolution documents kept on the phone while only rollups go out
+    private static int BACKFILL_SEGMENT_BYTES = 8 * 1024 * 1024;
+    private static int DEFAULT_BACKFILL_MAX_MB = 256;
+
+    private final Metrics metrics;
+
+    // Connection preferences are read with this in front, "" for the primary cluster
+    private final String prefix;
+
+    // Starts every _id, so documents from different phones and sessions never clash
+    private final String sessionId;
     private String esHost;
     private String esPort;
     private String esIndex;
+    private boolean esIndexDaily;
     private String esTag;
     private String esType;
-    private String esUsername;
-    private String esPassword;
+    private String esAuthHeader;
     private boolean esSSL;
     private boolean es7;
+    // Only the self-monitoring thread writes timestamps with this
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+
+    // Fixed pool of sender threads with a bounded queue in front of it
+    private ThreadPoolExecutor senderPool;
+    private String queueFullPolicy;
+
+    // Backoff and AIMD on batch size and sender count, fed by how the cluster responds
+    private FlowControl flowControl;
+    private int maxRetries;
 
-    // We store all the failed index operations here, so we can replay them
-    // at a later time.  This is to handle occasional disconnects in areas where
-    // we may not have data or connection to the carrier network.
-    private List<String> failedJSONDocs = new ArrayList<>();
-    private boolean isLastIndexSuccessful = false;
+    // Requests waiting out a backoff before they go back to the senders
+    private ScheduledExecutorService retryTimer;
+    private final List<ElasticRequest> pendingRetries = new ArrayList<>();
 
-    // Control variable to prevent sensors from being written before mapping created
-    // Multi-threading is fun :(
-    private boolean isCreatingMapping = true;
+    // Documents are queued up here and go out as a single _bulk request
+    private BulkBatcher bulkBatcher;
 
-    // Another control variable, because threading is hate.
-    private boolean isRetryingFailedIndexes = false;
+    // The action line in front of each document, rebuilt when the index settings change
+    private volatile BulkActions bulkActions;
 
+    // We spool all the failed bulk bodies to disk here, so we can replay them
+    // at a later time, even after a restart.  This is to handle long disconnects
+    // in areas where we may not have data or connection to the carrier network.
+    private final File filesDir;
+    private DocumentSpool failedDocSpool;
 
-    ElasticSearchIndexer() {
+    // In rollup mode, full resolution documents wait here while the link is
+    // metered or down, and are backfilled once we're on an unmetered network
+    private DocumentSpool backfillSpool;
+    private boolean rollupMode;
+    private volatile boolean metered = false;
+    private byte[] backfillScratch = new byte[4096];
+
+    // Batches that were ready before the index template was in place
+    private final List<byte[]> heldBulkBodies = new ArrayList<>();
+    private final List<Integer> heldBulkDocs = new ArrayList<>();
+    private IndexBootstrap indexBootstrap;
+    private int bootstrapAttempt;
+
+    // Periodic documents about the indexer itself
+    private ScheduledExecutorService selfMonitor;
+    private long[] lastSensorEvents;
+    private long lastSelfMonitoring;
+
+    // Written by the senders, read on the sink thread
+    private volatile boolean isLastIndexSuccessful = false;
+
+    // Nothing is sent until the index template is in.  Only changes under the
+    // heldBulkBodies lock, so a batch can't be held after the held ones are sent.
+    private volatile boolean indexReady = false;
+
+    // Another control variable, because threading is hate.  Only one replay
+    // at a time, whoever flips it from false gets to start one.
+    private final AtomicBoolean retryingFailedIndexes = new AtomicBoolean(false);
+
+    // Replays get smaller while the cluster can't read them or they're too big,
+    // down to a single document, and grow again as they go through
+    private volatile int replayChunkBytes = REPLAY_CHUNK_BYTES;
+    // Only one replay is out at a time, so only one sender touches this
+    private volatile int replayRefusals = 0;
+
+
+    // Each cluster needs its own filesDir, the spools live there.  sessionId has
+    // to be the same every time the same session is sent.
+    ElasticSearchIndexer(File filesDir, Metrics metrics, String prefix, String sessionId) {
+        this.filesDir = filesDir;
+        this.metrics = metrics;
+        this.prefix = prefix;
+        this.sessionId = sessionId;
     }
 
     void updateURL(SharedPreferences sharedPrefs) {
         // Extract config information to build connection strings
-        esHost = sharedPrefs.getString("host", "localhost");
-        esPort = sharedPrefs.getString("port", "9200");
-        esIndex = sharedPrefs.getString("index", "sensor_dump");
+        esHost = sharedPrefs.getString(prefix + "host", "localhost");
+        esPort = sharedPrefs.getString(prefix + "port", "9200");
+        esIndex = sharedPrefs.getString(prefix + "index", "sensor_dump");
         esTag = sharedPrefs.getString("tag", "phone_data");
-        esSSL = sharedPrefs.getBoolean("ssl", false);
-        esUsername = sharedPrefs.getString("user", "");
-        esPassword = sharedPrefs.getString("pass", "");
-        es7 = sharedPrefs.getBoolean("es7", false);
+        esSSL = sharedPrefs.getBoolean(prefix + "ssl", false);
+        String esUsername = sharedPrefs.getString(prefix + "user", "");
+        String esPassword = sharedPrefs.getString(prefix + "pass", "");
+        es7 = sharedPrefs.getBoolean(prefix + "es7", false);
+
+        // Build the basic auth header once per session instead of on every request
+        if (esUsername.length() > 0 && esPassword.length() > 0) {
+            byte[] credentials = (esUsername + ":" + esPassword).getBytes(StandardCharsets.UTF_8);
+            esAuthHeader = "Basic " + Base64.encodeToString(credentials, Base64.NO_WRAP);
+        } else {
+            esAuthHeader = null;
+        }
 
         // This was configurable in early versions.  With multiple types goign away in
         // Elastic 6.0, I've decided to make a single type and call it ESD.  Users
@@ -72,203 +203,855 @@ class ElasticSearchIndexer {
 
 
         // Tag the current date stamp on the index name if set in preferences
-        // Thanks GlenRSmith for this idea
-        if (sharedPrefs.getBoolean("index_date", false)) {
-            Date logDate = new Date(System.currentTimeMillis());
-            SimpleDateFormat logDateFormat = new SimpleDateFormat("yyyyMMdd");
-            String dateString = logDateFormat.format(logDate);
-            esIndex = esIndex + "-" + dateString;
+        // Thanks GlenRSmith for this idea.  The date goes by each document's
+        // timestamp, so a session running past midnight moves to the next index.
+        esIndexDaily = sharedPrefs.getBoolean(prefix + "index_date", false);
+        bulkActions = new BulkActions(esIndex, esIndexDaily, esType, sessionId);
+
+        // Sender pool, the old one finishes whatever it already has queued
+        int senderThreads = Math.max(1, getIntPref(sharedPrefs, "sender_threads", DEFAULT_SENDER_THREADS));
+        int senderQueue = Math.max(1, getIntPref(sharedPrefs, "sender_queue", DEFAULT_SENDER_QUEUE));
+        queueFullPolicy = sharedPrefs.getString("queue_full_policy", QUEUE_FULL_BLOCK);
+        if (senderPool != null) {
+            senderPool.shutdown();
         }
+        senderPool = new ThreadPoolExecutor(senderThreads, senderThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(senderQueue),
+                new ThreadFactory() {
+                    private int count = 0;
 
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        return new Thread(r, "es-sender-" + count++);
+                    }
+                },
+                new QueueFullHandler());
+
+        // Retries wait here, outside the sender pool, so a backoff never ties up a sender
+        if (retryTimer != null) {
+            retryTimer.shutdown();
+        }
+        retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "es-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maxRetries = Math.max(0, getIntPref(sharedPrefs, "max_retries", DEFAULT_MAX_RETRIES));
+
+        // Failed documents go to disk, up to the configured budget
+        if (failedDocSpool == null) {
+            long spoolMaxMB = getIntPref(sharedPrefs, "spool_max_mb", DEFAULT_SPOOL_MAX_MB);
+            failedDocSpool = new DocumentSpool(new File(filesDir, "spool"), SPOOL_SEGMENT_BYTES, spoolMaxMB * 1024 * 1024);
+        }
+
+        // Opened even when rollups are off, so anything left over still gets backfilled
+        rollupMode = sharedPrefs.getBoolean("rollups", false);
+        if (backfillSpool == null) {
+            long backfillMaxMB = getIntPref(sharedPrefs, "backfill_max_mb", DEFAULT_BACKFILL_MAX_MB);
+            backfillSpool = new DocumentSpool(new File(filesDir, "backfill"), BACKFILL_SEGMENT_BYTES, backfillMaxMB * 1024 * 1024);
+        }
+
+        // Batch limits for the _bulk pipeline
+        int bulkMaxDocs = getIntPref(sharedPrefs, "bulk_max_docs", DEFAULT_BULK_MAX_DOCS);
+        int bulkMaxKB = getIntPref(sharedPrefs, "bulk_max_kb", DEFAULT_BULK_MAX_KB);
+        int bulkLingerMs = getIntPref(sharedPrefs, "bulk_linger_ms", DEFAULT_BULK_LINGER_MS);
+
+        if (bulkBatcher != null) {
+            bulkBatcher.stop();
+        }
+        bulkBatcher = new BulkBatcher(bulkMaxDocs, bulkMaxKB * 1024, bulkLingerMs,
+                new BulkBatcher.Listener() {
+                    @Override
+                    public void onBatchReady(byte[] body, int length, int docCount) {
+                        sendBulk(body, length, docCount);
+                    }
+                });
+        bulkBatcher.start();
+
+        int targetLatency = getIntPref(sharedPrefs, "target_latency_ms", DEFAULT_TARGET_LATENCY_MS);
+        flowControl = new FlowControl(bulkMaxDocs, senderThreads, targetLatency, BASE_BACKOFF_MS, MAX_BACKOFF_MS);
+
+        // Template first, batches are held until it's in
+        indexReady = false;
+        bootstrapAttempt = 0;
+        indexBootstrap = new IndexBootstrap(buildBaseURL(), esAuthHeader, esIndex, esIndexDaily, es7,
+                sharedPrefs.getBoolean("composable_template", false),
+                getIntPref(sharedPrefs, "index_shards", DEFAULT_INDEX_SHARDS),
+                getIntPref(sharedPrefs, "index_replicas", DEFAULT_INDEX_REPLICAS),
+                sharedPrefs.getString("index_refresh_interval", DEFAULT_REFRESH_INTERVAL));
+        scheduleBootstrap(0);
+
+        // Ship our own counters alongside the sensor data
+        if (selfMonitor != null) {
+            selfMonitor.shutdown();
+            selfMonitor = null;
+        }
+        if (sharedPrefs.getBoolean(prefix + "self_monitoring", false)) {
+            int interval = Math.max(1, getIntPref(sharedPrefs, "self_monitoring_seconds", DEFAULT_SELF_MONITORING_SECONDS));
+            lastSensorEvents = new long[metrics.sensorCount()];
+            lastSelfMonitoring = System.currentTimeMillis();
+            selfMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "es-self-monitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            selfMonitor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    indexSelfMonitoring();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
     }
 
-    // Stop/start should reset counters
-    public void resetCounters() {
-        failedIndex = 0;
-        indexRequests = 0;
-        indexSuccess = 0;
+    // EditTextPreference only stores strings, so numbers need a little help
+    static int getIntPref(SharedPreferences sharedPrefs, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(sharedPrefs.getString(key, "" + defaultValue).trim());
+        } catch (NumberFormatException e) {
+            Log.v("Bad preference", key);
+            return defaultValue;
+        }
     }
 
-    private void callElasticAPI(final String verb, final String url,
-                                final String jsonData, final boolean isBulk) {
-        indexRequests++;
+    static float getFloatPref(SharedPreferences sharedPrefs, String key, float defaultValue) {
+        try {
+            return Float.parseFloat(sharedPrefs.getString(key, "" + defaultValue).trim());
+        } catch (NumberFormatException e) {
+            Log.v("Bad preference", key);
+            return defaultValue;
+        }
+    }
 
-        // Send authentication if required
-        if (esUsername.length() > 0 && esPassword.length() > 0) {
-            Authenticator.setDefault(new Authenticator() {
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(esUsername, esPassword.toCharArray());
+    // Push out any partial batch, we're done logging for now.  The senders are
+    // allowed to finish what is already queued.
+    @Override
+    public void stop() {
+        if (selfMonitor != null) {
+            selfMonitor.shutdown();
+        }
+        if (bulkBatcher != null) {
+            bulkBatcher.stop();
+        }
+        if (retryTimer != null) {
+            retryTimer.shutdownNow();
+            spoolPendingRetries();
+        }
+        spoolHeldBatches();
+        if (senderPool != null) {
+            senderPool.shutdown();
+        }
+        if (failedDocSpool != null) {
+            failedDocSpool.sync();
+        }
+        if (backfillSpool != null) {
+            backfillSpool.sync();
+        }
+    }
+
+    // Metered or no network at all.  In rollup mode that keeps full resolution on the phone.
+    void setMetered(boolean metered) {
+        this.metered = metered;
+    }
+
+    // mayWait is false on the retry timer, which has other requests to look
+    // after and mustn't sit waiting for a free sender
+    private void callElasticAPI(final String verb, final String url, final byte[] data, final int length,
+                                final int docCount, final DocumentSpool replaySpool, final DocumentSpool.Chunk replayChunk,
+                                boolean mayWait) {
+
+        // Hang on to the batch until the template is in
+        if (!indexReady && holdBatch(data, length, docCount)) {
+            return;
+        }
+
+        // Hand it to the senders unless the cluster has asked us to back off
+        ElasticRequest request = new ElasticRequest(verb, url, data, length, docCount, replaySpool, replayChunk);
+        long wait = flowControl.backoffRemaining(System.currentTimeMillis());
+        if (wait > 0) {
+            retryAfter(request, wait);
+        } else {
+            execute(request, mayWait);
+        }
+    }
+
+    // Keep a batch back while the template goes in.  Returns false if the index
+    // is ready after all and the batch can go now.
+    private boolean holdBatch(byte[] data, int length, int docCount) {
+        synchronized (heldBulkBodies) {
+            if (indexReady) {
+                return false;
+            }
+            if (heldBulkBodies.size() < MAX_HELD_BATCHES) {
+                heldBulkBodies.add(trim(data, length));
+                heldBulkDocs.add(docCount);
+            } else {
+                // Don't pile up in memory if the cluster is out of reach, the
+                // spool replays these once we're going
+                metrics.docsFailed(docCount);
+                storeFailedBulk(data, length, docCount);
+            }
+            return true;
+        }
+    }
+
+    // Put the index template in on the retry thread, and keep trying with backoff
+    // while the cluster is out of reach.  A cluster that answers but won't take
+    // the template (too old, no permission) still gets the data, like before.
+    private void scheduleBootstrap(long delay) {
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    bootstrapIndex();
                 }
-            });
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime, stop() spools whatever was held
+        }
+    }
+
+    private void bootstrapIndex() {
+        try {
+            int responseCode = indexBootstrap.install();
+            if (FlowControl.isRetryable(responseCode)) {
+                Log.v("Template Code", "" + responseCode);
+                scheduleBootstrap(flowControl.backoffDelay(++bootstrapAttempt));
+                return;
+            } else if (responseCode > LAST_RESPONSE_CODE) {
+                Log.v("Template Rejected", "" + responseCode);
+            }
+        } catch (IOException e) {
+            Log.v("Template Error", e.toString());
+            scheduleBootstrap(flowControl.backoffDelay(++bootstrapAttempt));
+            return;
         }
+        sendHeldBatches();
+    }
 
-        // Spin up a thread for http connection
-        Runnable r = new Runnable() {
-            public void run() {
+    private void execute(ElasticRequest request, boolean mayWait) {
+        metrics.queueDepth.record(senderPool.getQueue().size());
+        try {
+            senderPool.execute(request);
+        } catch (RejectedExecutionException e) {
+            // Every sender is busy and the policy is to wait.  Not forever though,
+            // and not at all on the retry timer.
+            if (!mayWait || !waitForRoom(request)) {
+                spoolRequest(request);
+            }
+        }
+    }
 
-                HttpURLConnection httpCon;
-                OutputStreamWriter osw;
-                URL u;
+    // Wait a while for the sender queue to have room.  False if it never did.
+    private boolean waitForRoom(ElasticRequest request) {
+        try {
+            return senderPool.getQueue().offer(request, QUEUE_FULL_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-                try {
-                    u = new URL(url);
-                    httpCon = (HttpURLConnection) u.openConnection();
-                    httpCon.setRequestProperty("Content-Type", "application/json");
-                    httpCon.setConnectTimeout(2000);
-                    httpCon.setReadTimeout(2000);
-                    httpCon.setDoOutput(true);
-                    httpCon.setRequestMethod(verb);
-                    osw = new OutputStreamWriter(httpCon.getOutputStream());
-                    osw.write(jsonData);
-                    osw.close();
+    // Couldn't send it, so a new batch goes to the spool.  A replay is still in
+    // its spool and just gives up for now.
+    private void spoolRequest(ElasticRequest request) {
+        if (request.isReplay) {
+            retryingFailedIndexes.set(false);
+            return;
+        }
+        if (request.docCount > 0) {
+            metrics.docsFailed(request.docCount);
+            storeFailedBulk(request.data, request.length, request.docCount);
+        }
+        release(request);
+    }
 
-                    int responseCode = httpCon.getResponseCode();
-                    httpCon.disconnect();
+    // A new batch is done with its body, sent, spooled or lost, so the batcher
+    // can fill it again.  Replays bring their own from the spool.
+    private void release(ElasticRequest request) {
+        if (!request.isReplay) {
+            bulkBatcher.recycle(request.data);
+        }
+    }
 
-                    // Something bad happened. I expect only the finest of 200's
-                    if (responseCode > LAST_RESPONSE_CODE) {
-                        if (!isCreatingMapping) {
-                            failedIndex++;
-                            isLastIndexSuccessful = false;
-                            Log.v("Fail Code", "" + responseCode);
+    // Park a request until the delay is up, then send it again
+    private void retryAfter(final ElasticRequest request, long delay) {
+        synchronized (pendingRetries) {
+            pendingRetries.add(request);
+        }
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pendingRetries) {
+                        if (!pendingRetries.remove(request)) {
+                            return;
                         }
-                    } else {
-                        isLastIndexSuccessful = true;
-                        indexSuccess++;
                     }
+                    execute(request, false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime, stop() takes care of it
+        }
+    }
 
+    // We're stopping, whatever was waiting for a retry goes to the spool
+    private void spoolPendingRetries() {
+        synchronized (pendingRetries) {
+            for (ElasticRequest request : pendingRetries) {
+                spoolRequest(request);
+            }
+            pendingRetries.clear();
+        }
+    }
 
-                } catch (Exception e) {
+    // The cluster is struggling or unreachable.  New batches try again after a
+    // backoff, and go to the spool once they run out of attempts.  Replays are
+    // still in the spool, so they just give up for now.
+    private void retryOrSpool(ElasticRequest request) {
+        if (request.isReplay) {
+            retryingFailedIndexes.set(false);
+        } else if (request.attempt < maxRetries) {
+            request.attempt++;
+            metrics.retries.increment();
+            retryAfter(request, Math.max(flowControl.backoffRemaining(System.currentTimeMillis()),
+                    flowControl.backoffDelay(request.attempt)));
+        } else {
+            metrics.docsFailed(request.docCount);
+            storeFailedBulk(request.data, request.length, request.docCount);
+            release(request);
+        }
+    }
 
-                    // Probably a connection error.  Maybe.  Lets just buffer up the json
-                    // docs so we can try them again later
-                    if (e instanceof IOException) {
-                        if (!isCreatingMapping && !isBulk) {
-                            isLastIndexSuccessful = false;
-                            // Store up to MAX_FAILED_DOCS worth of data before dumping it
-                            if(failedJSONDocs.size() < MAX_FAILED_DOCS) {
-                                failedJSONDocs.add(jsonData);
-                            }
-                        }
-                    }
+    // Follow flow control with the batch size and the number of senders.  When
+    // shrinking, the core size has to go down before the maximum, and the other
+    // way around when growing.
+    private void applyFlowControl() {
+        bulkBatcher.setDocLimit(flowControl.batchDocs());
+        int senders = flowControl.senders();
+        synchronized (senderPool) {
+            if (senders < senderPool.getCorePoolSize()) {
+                senderPool.setCorePoolSize(senders);
+                senderPool.setMaximumPoolSize(senders);
+            } else if (senders > senderPool.getCorePoolSize()) {
+                senderPool.setMaximumPoolSize(senders);
+                senderPool.setCorePoolSize(senders);
+            }
+        }
+    }
+
+    // One HTTP request, run on the sender pool
+    private class ElasticRequest implements Runnable {
+
+        private final String verb;
+        private final String url;
+        private final byte[] data;
+        private final int length;
+        private final int docCount;
+        private final DocumentSpool replaySpool;
+        private final DocumentSpool.Chunk replayChunk;
+        private final boolean isReplay;
+
+        // Retries so far, only touched by whichever thread has the request at the time
+        private int attempt = 0;
+
+        ElasticRequest(String verb, String url, byte[] data, int length, int docCount,
+                       DocumentSpool replaySpool, DocumentSpool.Chunk replayChunk) {
+            this.verb = verb;
+            this.url = url;
+            this.data = data;
+            this.length = length;
+            this.docCount = docCount;
+            this.replaySpool = replaySpool;
+            this.replayChunk = replayChunk;
+            this.isReplay = replayChunk != null;
+        }
+
+        public void run() {
+
+            HttpURLConnection httpCon;
+            OutputStream os;
+            URL u;
+            long started = System.nanoTime();
+
+            try {
+                u = new URL(url);
+                httpCon = (HttpURLConnection) u.openConnection();
+                httpCon.setRequestProperty("Content-Type", "application/x-ndjson");
+                httpCon.setRequestProperty("Connection", "keep-alive");
+                if (esAuthHeader != null) {
+                    httpCon.setRequestProperty("Authorization", esAuthHeader);
+                }
+                httpCon.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                httpCon.setReadTimeout(READ_TIMEOUT_MS + length / SLOWEST_BYTES_PER_MS);
+                httpCon.setDoOutput(true);
+                httpCon.setFixedLengthStreamingMode(length);
+                httpCon.setRequestMethod(verb);
+                os = httpCon.getOutputStream();
+                os.write(data, 0, length);
+                os.close();
 
-                    // Only show errors for index requests, not the mapping request
-                    if (isCreatingMapping) {
-                        isCreatingMapping = false;
+                int responseCode = httpCon.getResponseCode();
+
+                // Read the whole response so the connection goes back in the
+                // keep-alive pool instead of being torn down
+                BulkResponseParser response = readResponse(httpCon, responseCode, docCount);
+                long latency = (System.nanoTime() - started) / 1000;
+                metrics.requestLatency.record(latency);
+
+                if (FlowControl.isRetryable(responseCode)) {
+                    // The cluster is overloaded or having a bad day, give it some room
+                    Log.v("Retryable Code", "" + responseCode);
+                    isLastIndexSuccessful = false;
+                    metrics.rejections.increment();
+                    flowControl.onCongestion(System.currentTimeMillis());
+                    retryOrSpool(this);
+                } else if (responseCode > LAST_RESPONSE_CODE) {
+                    // Something bad happened. I expect only the finest of 200's
+                    Log.v("Fail Code", "" + responseCode);
+                    isLastIndexSuccessful = false;
+                    flowControl.onRefused(System.currentTimeMillis());
+                    if (isReplay) {
+                        onReplayRefused(responseCode);
+                    } else if (isSettingsProblem(responseCode) || isBodyProblem(responseCode)) {
+                        // Nothing wrong with the documents, or not with all of
+                        // them.  The spool keeps them, and its replay splits a body
+                        // the cluster won't take.
+                        metrics.docsFailed(docCount);
+                        storeFailedBulk(data, length, docCount);
+                        release(this);
                     } else {
-                        Log.v("Index Request", "" + indexRequests);
-                        Log.v("Fail Reason", e.toString());
-                        Log.v("Fail URL", url);
-                        Log.v("Fail Data", jsonData);
-                        failedIndex++;
+                        metrics.docsFailed(docCount);
+                        release(this);
                     }
+                } else {
+                    isLastIndexSuccessful = true;
+                    onItems(response, latency);
+                    release(this);
+                }
+
+            } catch (Exception e) {
+                Log.v("Index Request", "" + metrics.indexRequests.sum());
+                Log.v("Fail Reason", e.toString());
+                Log.v("Fail URL", url);
+
+                // Probably a connection error.  Maybe.  Back off and try again, the
+                // batch ends up in the spool if the cluster stays out of reach.
+                isLastIndexSuccessful = false;
+                if (e instanceof IOException) {
+                    flowControl.onCongestion(System.currentTimeMillis());
+                    retryOrSpool(this);
+                } else if (!isReplay) {
+                    metrics.docsFailed(docCount);
+                    release(this);
+                }
+            }
+
+            if (isReplay) {
+                retryingFailedIndexes.set(false);
+            }
+            applyFlowControl();
+        }
+
+        // A replay the cluster won't take at all.  One it can't read or that's too
+        // big is split until the bad document is on its own, and then let go.
+        // Anything else is most likely a setting, and replays only start after a
+        // batch went through, so it only gets a few goes.  Either way one chunk
+        // can't hold up the rest of the spool.
+        private void onReplayRefused(int responseCode) {
+            Log.v("Replay Refused", docCount + " " + responseCode);
+            if (isBodyProblem(responseCode) && docCount > 1) {
+                replayChunkBytes = Math.max(1, length / 2);
+                return;
+            }
+            if (!isBodyProblem(responseCode) && ++replayRefusals < MAX_REPLAY_REFUSALS) {
+                return;
+            }
+            Log.v("Replay Dropped", "" + docCount);
+            replayRefusals = 0;
+            replaySpool.commit(replayChunk);
+        }
+
+        // Go through the items of a _bulk that came back 2xx.  Only the items that
+        // failed for a full queue or a struggling node go again, the ones the
+        // cluster will never take are counted as lost.
+        private void onItems(BulkResponseParser response, long latency) {
+            int retryable = 0;
+            int rejected = 0;
+            int rejectedStatus = 0;
+            for (int i = 0; i < docCount; i++) {
+                int status = itemStatus(response, i);
+                if (isRetryableItem(status)) {
+                    retryable++;
+                } else if (!isIndexedItem(status)) {
+                    rejected++;
+                    rejectedStatus = status;
                 }
-                // We are no longer creating the mapping.  Time for sensor readings!
-                if (isCreatingMapping) {
-                    isCreatingMapping = false;
+            }
+            int indexed = docCount - retryable - rejected;
+
+            if (retryable > 0) {
+                // Some items bounced off a full write queue, slow down
+                Log.v("Retryable Docs", "" + retryable);
+                metrics.rejections.increment();
+                flowControl.onCongestion(System.currentTimeMillis());
+            } else {
+                flowControl.onSuccess(latency);
+            }
+            if (rejected > 0) {
+                Log.v("Rejected Docs", rejected + " " + rejectedStatus);
+                metrics.docsFailed(rejected);
+            }
+            metrics.indexSuccess.add(indexed);
+
+            if (isReplay) {
+                replaySpool.commit(replayChunk);
+                replayRefusals = 0;
+                replayChunkBytes = (int) Math.min(REPLAY_CHUNK_BYTES, replayChunkBytes * 2L);
+                if (replaySpool == failedDocSpool) {
+                    metrics.docsRecovered(indexed);
                 }
+            }
+            if (retryable == 0) {
+                return;
+            }
 
-                // Bulk success!
-                if (isBulk) {
-                    // Clear failed log and update our stats
-                    failedIndex -= failedJSONDocs.size();
-                    indexSuccess += failedJSONDocs.size();
-                    failedJSONDocs.clear();
-                    isRetryingFailedIndexes = false;
+            byte[] retryBody = retryableItems(data, length, response);
+            if (isReplay) {
+                // Back in the spool it came from, behind everything else
+                if (!replaySpool.append(retryBody, retryBody.length, retryable)) {
+                    Log.v("Spool Full", "" + retryable);
                 }
+            } else {
+                ElasticRequest retry = new ElasticRequest(verb, url, retryBody, retryBody.length, retryable, null, null);
+                retry.attempt = attempt;
+                retryOrSpool(retry);
             }
-        };
+        }
+    }
+
+    // Auth, proxy auth or a wrong URL.  A setting is wrong, not the documents.
+    private static boolean isSettingsProblem(int responseCode) {
+        return responseCode == 401 || responseCode == 403 || responseCode == 404 || responseCode == 407;
+    }
 
-        // Only allow posts if we're not creating mapping
-        if (isCreatingMapping) {
-            if (verb.equals("PUT")) {
-                Thread t = new Thread(r);
-                t.start();
+    // A body the cluster couldn't read, or a proxy found too big
+    private static boolean isBodyProblem(int responseCode) {
+        return responseCode == 400 || responseCode == 413;
+    }
+
+    private static int itemStatus(BulkResponseParser response, int item) {
+        return item < response.items() ? response.status(item) : 0;
+    }
+
+    // An item the response didn't mention is worth another go too.  The _id
+    // makes sure it can't turn into a second copy.
+    private static boolean isRetryableItem(int status) {
+        return status == 0 || FlowControl.isRetryable(status);
+    }
+
+    private static boolean isIndexedItem(int status) {
+        return (status >= 200 && status <= LAST_RESPONSE_CODE) || status == ALREADY_INDEXED;
+    }
+
+    // The action and document lines of every item worth another go.  Each item
+    // is exactly two lines, the encoder never writes a raw newline.
+    private static byte[] retryableItems(byte[] data, int length, BulkResponseParser response) {
+        byte[] retry = new byte[length];
+        int retryLength = 0;
+        int item = 0;
+        int itemStart = 0;
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n' && ++lines % 2 == 0) {
+                if (isRetryableItem(itemStatus(response, item))) {
+                    System.arraycopy(data, itemStart, retry, retryLength, i + 1 - itemStart);
+                    retryLength += i + 1 - itemStart;
+                }
+                item++;
+                itemStart = i + 1;
+            }
+        }
+        return trim(retry, retryLength);
+    }
+
+    // Read the whole response body.  A 2xx is a _bulk answer and its items are
+    // kept, anything else is thrown away.
+    private static BulkResponseParser readResponse(HttpURLConnection httpCon, int responseCode, int docCount)
+            throws IOException {
+        BulkResponseParser response = new BulkResponseParser(docCount);
+        InputStream is = responseCode > LAST_RESPONSE_CODE ? httpCon.getErrorStream() : httpCon.getInputStream();
+        if (is == null) {
+            return response;
+        }
+        if (responseCode > LAST_RESPONSE_CODE) {
+            byte[] scratch = new byte[1024];
+            while (is.read(scratch) != -1) {
+                // Just emptying it so the connection can be reused
             }
         } else {
-            // We're not creating a mapping, just go nuts
-            Thread t = new Thread(r);
-            t.start();
+            response.parse(is);
+        }
+        is.close();
+        return response;
+    }
+
+    // Decides what happens to a request when every sender is busy and the queue
+    // is full.  Waiting is left to execute(), which knows whether the caller can.
+    private class QueueFullHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                // A new session has its own senders, keep this for them
+                spoolRequest((ElasticRequest) r);
+                return;
+            }
+
+            if (QUEUE_FULL_DROP_OLDEST.equals(queueFullPolicy)) {
+                // Throw away the oldest queued request to make room for the newest data
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    dropRequest(oldest);
+                }
+                executor.execute(r);
+            } else if (QUEUE_FULL_SPILL.equals(queueFullPolicy)) {
+                // Park the batch in the spool, it gets replayed later
+                spoolRequest((ElasticRequest) r);
+            } else {
+                // Block, the caller waits for a free sender if it can
+                throw new RejectedExecutionException("Sender queue full");
+            }
+        }
+
+        private void dropRequest(Runnable r) {
+            ElasticRequest request = (ElasticRequest) r;
+            if (request.isReplay) {
+                // Still safe in the spool
+                retryingFailedIndexes.set(false);
+            } else {
+                Log.v("Dropped Request", "" + request.docCount);
+                metrics.docsFailed(request.docCount);
+                release(request);
+            }
         }
     }
 
+    // Write a failed bulk body to the spool for replay
+    private void storeFailedBulk(byte[] data, int length, int docCount) {
+        if (!failedDocSpool.append(data, length, docCount)) {
+            Log.v("Spool Full", "" + docCount);
+        }
+    }
+
+    // The template is in, let the batches that were waiting on it go.  Runs on
+    // the retry timer, so with every sender busy they go to the spool instead.
+    private void sendHeldBatches() {
+        List<byte[]> bodies;
+        List<Integer> docs;
+        synchronized (heldBulkBodies) {
+            indexReady = true;
+            bodies = new ArrayList<>(heldBulkBodies);
+            docs = new ArrayList<>(heldBulkDocs);
+            heldBulkBodies.clear();
+            heldBulkDocs.clear();
+        }
+        for (int i = 0; i < bodies.size(); i++) {
+            byte[] body = bodies.get(i);
+            callElasticAPI("POST", buildBulkURL(), body, body.length, docs.get(i), null, null, false);
+        }
+    }
+
+    // We're stopping before the template went in, keep the held batches for next time
+    private void spoolHeldBatches() {
+        synchronized (heldBulkBodies) {
+            for (int i = 0; i < heldBulkBodies.size(); i++) {
+                byte[] body = heldBulkBodies.get(i);
+                metrics.docsFailed(heldBulkDocs.get(i));
+                storeFailedBulk(body, body.length, heldBulkDocs.get(i));
+            }
+            heldBulkBodies.clear();
+            heldBulkDocs.clear();
+        }
+    }
+
+    private static byte[] trim(byte[] data, int length) {
+        if (data.length == length) {
+            return data;
+        }
+        byte[] trimmed = new byte[length];
+        System.arraycopy(data, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
     // Build the URL based on the config data
-    private String buildURL() {
+    private String buildBaseURL() {
         if (esSSL) {
-            return "https://" + esHost + ":" + esPort + "/" + esIndex + "/";
+            return "https://" + esHost + ":" + esPort + "/";
         } else {
-            return "http://" + esHost + ":" + esPort + "/" + esIndex + "/";
+            return "http://" + esHost + ":" + esPort + "/";
         }
     }
 
-    // Send mapping to elastic for sensor index using PUT
-    // I'm sorry this is ugly.
-    private void createMapping() {
-        String es_mapping;
-        if(es7) {
-            es_mapping = "{\"mappings\": {\"dynamic_templates\": [{\"long_to_float\": {\"match_mapping_type\": \"long\",\"mapping\": {\"type\": \"float\"}}}],\"properties\":{\"start_location\":{\"type\":\"geo_point\"},\"location\":{\"type\":\"geo_point\"},\"tag\":{\"type\":\"keyword\"},\"gps_provider\":{\"type\":\"keyword\"}}}}";
+    // Bulk index url
+    private String buildBulkURL() {
+        if (esSSL) {
+            return "https://" + esHost + ":" + esPort + "/_bulk";
         } else {
-            es_mapping = "{\"mappings\": {\"esd\": {\"dynamic_templates\": [{\"long_to_float\": {\"match_mapping_type\": \"long\",\"mapping\": {\"type\": \"float\"}}}],\"properties\":{\"start_location\":{\"type\":\"geo_point\"},\"location\":{\"type\":\"geo_point\"},\"tag\":{\"type\":\"keyword\"},\"gps_provider\":{\"type\":\"keyword\"}}}}}";
+            return "http://" + esHost + ":" + esPort + "/_bulk";
         }
-        Log.v("Mapping", es_mapping);
-        callElasticAPI("PUT", buildURL(), es_mapping, false);
+    }
+
+    // A full batch is ready to go
+    private void sendBulk(byte[] body, int length, int docCount) {
+        metrics.bulkBytes.record(length);
+        metrics.bulkDocs.record(docCount);
+        callElasticAPI("POST", buildBulkURL(), body, length, docCount, null, null, true);
     }
 
     // Spam those failed docs!
-    // Maybe this should be a bulk operation... one day
+    // The spool is already NDJSON, so a chunk of it goes straight out as a _bulk body
     private void indexFailedDocuments() {
-        String url;
-        StringBuilder bulkDataList = new StringBuilder();
-
-        // Bulk index url
-        if (esSSL) {
-            url = "https://" + esHost + ":" + esPort + "/_bulk";
-        } else {
-            url = "http://" + esHost + ":" + esPort + "/_bulk";
+        DocumentSpool.Chunk chunk = failedDocSpool.drain(replayChunkBytes);
+        if (chunk == null) {
+            retryingFailedIndexes.set(false);
+            return;
         }
 
-        for (String failedJsonDoc : failedJSONDocs) {
-            bulkDataList.append("{\"index\":{\"_index\":\"").append(esIndex)
-                    .append("\",\"_type\":\"").append(esType).append("\"}}\n");
-            bulkDataList.append(failedJsonDoc).append("\n");
+        Log.v("Bulk Replay", "" + chunk.docCount);
+        metrics.retries.increment();
+        callElasticAPI("POST", buildBulkURL(), chunk.data, chunk.length, chunk.docCount, failedDocSpool, chunk, true);
+    }
+
+    // Same again for the full resolution documents that waited for a better link
+    private void indexBackfill() {
+        DocumentSpool.Chunk chunk = backfillSpool.drain(replayChunkBytes);
+        if (chunk == null) {
+            retryingFailedIndexes.set(false);
+            return;
         }
 
-        String bulkData = bulkDataList.toString();
+        Log.v("Backfill", "" + chunk.docCount);
+        callElasticAPI("POST", buildBulkURL(), chunk.data, chunk.length, chunk.docCount, backfillSpool, chunk, true);
+    }
 
-        Log.v("Bulk Data", bulkData);
-        callElasticAPI("POST", url, bulkData, true);
+    // Keep one document on the phone for later, as a bulk body of its own
+    private void storeBackfill(byte[] action, int actionLength, byte[] doc, int docLength) {
+        int needed = actionLength + docLength + 1;
+        if (backfillScratch.length < needed) {
+            backfillScratch = new byte[Math.max(needed, backfillScratch.length * 2)];
+        }
+        System.arraycopy(action, 0, backfillScratch, 0, actionLength);
+        System.arraycopy(doc, 0, backfillScratch, actionLength, docLength);
+        backfillScratch[needed - 1] = '\n';
+        if (!backfillSpool.append(backfillScratch, needed, 1)) {
+            Log.v("Backfill Full", "1");
+        }
     }
 
-    // Send JSON data to elastic using POST
-    void index(JSONObject joIndex) {
+    // Queue a document up for the next _bulk request.  Runs on our sink thread,
+    // so a send that blocks only holds up this cluster.
+    @Override
+    public void write(long timestamp, byte[] doc, int length, int rollupSeconds) {
+        BulkActions actions = bulkActions;
+        int actionLength = actions.write(timestamp, rollupSeconds);
+        if (rollupSeconds > 0) {
+            // Finished rollup buckets go out whatever the link, so there's always a
+            // coarse live view
+            bulkBatcher.add(actions.buffer(), actionLength, doc, 0, length);
+            return;
+        }
 
-        // Create the mapping on first request
-        if (isCreatingMapping && indexRequests == 0) {
-            createMapping();
+        metrics.indexRequests.increment();
+        if (rollupMode && metered) {
+            // Full resolution waits on the phone, only the rollups go out
+            storeBackfill(actions.buffer(), actionLength, doc, length);
+        } else {
+            bulkBatcher.add(actions.buffer(), actionLength, doc, 0, length);
         }
 
-        // Before indexing, make sure the user tag is in the document if they've made one
-        try {
-            if(!esTag.equals("")) {
-                joIndex.put("tag", esTag);
+        // Try it again!  Failed documents first, then the backfill once we're
+        // off the metered link.
+        if (isLastIndexSuccessful && !retryingFailedIndexes.get()
+                && flowControl.backoffRemaining(System.currentTimeMillis()) == 0) {
+            if (failedDocSpool.pendingDocs() > 0) {
+                if (retryingFailedIndexes.compareAndSet(false, true)) {
+                    indexFailedDocuments();
+                }
+            } else if (!metered && backfillSpool.pendingDocs() > 0
+                    && retryingFailedIndexes.compareAndSet(false, true)) {
+                indexBackfill();
             }
-        } catch (Exception e) {
-            Log.v("JSON Logging error", e.toString());
         }
+    }
 
-        String jsonData = joIndex.toString();
-        String url = buildURL() + esType + "/";
+    // Nothing else is waiting, so a batch that has lingered long enough goes now
+    // rather than on the linger timer's next round.  With a linger time of 0
+    // that's any batch at all, there's no timer then.
+    @Override
+    public void idle() {
+        bulkBatcher.flushIfLingering(System.currentTimeMillis());
+    }
 
-        // If we have some data, it's good to post
-        if (jsonData != null) {
-            callElasticAPI("POST", url, jsonData, false);
-        }
+    @Override
+    public String name() {
+        return prefix.length() == 0 ? "es" : "es-" + prefix.replace("_", "");
+    }
+
+    // Counters, percentiles and per-sensor event rates as one document under the
+    // user's tag.  Runs on the self-monitoring thread, it's only a few a minute so
+    // JSONObject is fine here.
+    private void indexSelfMonitoring() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastSelfMonitoring) / 1000.0;
+        lastSelfMonitoring = now;
 
-        // Try it again!
-        if (isLastIndexSuccessful && failedJSONDocs.size() > 0 && !isRetryingFailedIndexes) {
-            isRetryingFailedIndexes = true;
-            indexFailedDocuments();
+        JSONObject doc = new JSONObject();
+        try {
+            doc.put("@timestamp", timestampFormatter.format(now));
+            doc.put("metric_type", "self_monitoring");
+            doc.put("index_requests", metrics.indexRequests.sum());
+            doc.put("index_success", metrics.indexSuccess.sum());
+            doc.put("index_failed", metrics.failedDocs());
+            doc.put("retries", metrics.retries.sum());
+            doc.put("rejections", metrics.rejections.sum());
+            doc.put("batch_docs_limit", flowControl.batchDocs());
+            doc.put("senders", flowControl.senders());
+            doc.put("request_latency_p50_us", metrics.requestLatency.percentile(0.5));
+            doc.put("request_latency_p99_us", metrics.requestLatency.percentile(0.99));
+            doc.put("request_latency_max_us", metrics.requestLatency.max());
+            doc.put("bulk_bytes_p50", metrics.bulkBytes.percentile(0.5));
+            doc.put("bulk_bytes_p99", metrics.bulkBytes.percentile(0.99));
+            doc.put("bulk_docs_p50", metrics.bulkDocs.percentile(0.5));
+            doc.put("bulk_docs_p99", metrics.bulkDocs.percentile(0.99));
+            doc.put("queue_depth_p50", metrics.queueDepth.percentile(0.5));
+            doc.put("queue_depth_p99", metrics.queueDepth.percentile(0.99));
+            doc.put("spool_pending_docs", failedDocSpool.pendingDocs());
+            doc.put("spool_dropped_docs", failedDocSpool.droppedDocs());
+            doc.put("backfill_pending_docs", backfillSpool.pendingDocs());
+            doc.put("backfill_dropped_docs", backfillSpool.droppedDocs());
+            for (int i = 0; i < metrics.sensorCount(); i++) {
+                long events = metrics.sensorEvents(i);
+                doc.put(metrics.sensorName(i) + "_events_per_second", (events - lastSensorEvents[i]) / seconds);
+                lastSensorEvents[i] = events;
+            }
+            if (!esTag.equals("")) {
+                doc.put("tag", esTag);
+            }
+        } catch (JSONException e) {
+            Log.v("JSON Logging error", e.toString());
+            return;
         }
-    }
 
+        byte[] encoded = doc.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] action = bulkActions.line(now, "-m");
+        bulkBatcher.add(action, action.length, encoded, 0, encoded.length);
+    }
 }
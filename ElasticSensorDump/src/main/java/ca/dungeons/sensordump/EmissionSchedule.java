@@ -0,0 +1,154 @@
+package ca.dungeons.sensordump;
+
+import android.content.SharedPreferences;
+
+// Which parts of the document are due in each window.  GPS, audio and every
+// sensor without an interval of its own go out once per refresh period, the
+// full document, same as always.  A sensor with its own interval runs on its
+// own clock, faster or slower than that.  Each window ends at whatever is due
+// first, so a fast accelerometer gets small documents of its own in between
+// the full ones and a slow barometer only turns up when it's due.
+//
+// Switched off sensors never get registered, so they don't wake anything up.
+//
+// A trigger can start a burst, full documents at the burst interval for a
+// while, starting from a point that may be before the window now filling.
+class EmissionSchedule {
+
+    // Interval setting for a sensor that goes out with every full document
+    static final int FOLLOW_REFRESH = 0;
+
+    // Nothing gets its own clock faster than this
+    static final int MIN_INTERVAL = 10;
+
+    private final boolean[] enabled;
+    private final int[] intervals;
+    private final long[] nextDue;
+    private final boolean[] due;
+
+    private long nextFull;
+    private boolean fullDue;
+    private long lastEnd;
+
+    // Full documents go out every burstInterval until burstUntil
+    private long burstUntil;
+    private int burstInterval;
+
+    EmissionSchedule(boolean[] enabled, int[] intervals) {
+        this.enabled = enabled.clone();
+        this.intervals = new int[intervals.length];
+        for (int i = 0; i < intervals.length; i++) {
+            this.intervals[i] = intervals[i] <= FOLLOW_REFRESH ? FOLLOW_REFRESH : Math.max(MIN_INTERVAL, intervals[i]);
+        }
+        nextDue = new long[intervals.length];
+        due = new boolean[intervals.length];
+    }
+
+    // Settings from SettingsActivity, keyed by the sensor's name in the documents
+    static EmissionSchedule fromPreferences(SharedPreferences sharedPrefs, SensorRegistry registry) {
+        boolean[] enabled = new boolean[registry.sensorCount()];
+        int[] intervals = new int[registry.sensorCount()];
+        for (int i = 0; i < enabled.length; i++) {
+            String name = registry.sensorName(i);
+            enabled[i] = sharedPrefs.getBoolean(enabledKey(name), true);
+            intervals[i] = ElasticSearchIndexer.getIntPref(sharedPrefs, intervalKey(name), FOLLOW_REFRESH);
+        }
+        return new EmissionSchedule(enabled, intervals);
+    }
+
+    static String enabledKey(String sensorName) {
+        return "sensor_" + sensorName;
+    }
+
+    static String intervalKey(String sensorName) {
+        return "sensor_" + sensorName + "_ms";
+    }
+
+    // Everything starts counting from the session start
+    void start(long startTime, int refreshTime) {
+        lastEnd = startTime;
+        burstUntil = 0;
+        nextFull = startTime + refreshTime;
+        for (int i = 0; i < intervals.length; i++) {
+            nextDue[i] = startTime + intervals[i];
+        }
+    }
+
+    // End of the next window.  Nothing moves until it's closed, so a burst can
+    // still bring it forward.
+    long nextEnd() {
+        long windowEnd = nextFull;
+        for (int i = 0; i < intervals.length; i++) {
+            if (enabled[i] && intervals[i] > 0 && nextDue[i] < windowEnd) {
+                windowEnd = nextDue[i];
+            }
+        }
+        return windowEnd;
+    }
+
+    // The window ending here is going out, work out what's due in it.  A new
+    // refresh time takes over from the next full document.
+    void close(long windowEnd, int refreshTime) {
+        fullDue = nextFull <= windowEnd;
+        if (fullDue) {
+            nextFull += nextFull < burstUntil ? burstInterval : refreshTime;
+        }
+        for (int i = 0; i < intervals.length; i++) {
+            if (intervals[i] > 0) {
+                due[i] = nextDue[i] <= windowEnd;
+                if (due[i]) {
+                    nextDue[i] += intervals[i];
+                }
+            } else {
+                due[i] = fullDue;
+            }
+        }
+        lastEnd = windowEnd;
+    }
+
+    // Full documents every interval from from until until, or from the last
+    // window that went out if that's later.  A burst that's already running is
+    // just made longer.
+    void burst(long from, long until, int interval) {
+        burstInterval = Math.max(MIN_INTERVAL, interval);
+        burstUntil = Math.max(burstUntil, until);
+        long first = Math.max(from, lastEnd) + burstInterval;
+        if (first < nextFull) {
+            nextFull = first;
+        }
+    }
+
+    boolean isBursting(long time) {
+        return time < burstUntil;
+    }
+
+    // After a long gap pick the clocks up just short of time, keeping their phase
+    void skipTo(long time, int refreshTime) {
+        if (nextFull < time) {
+            nextFull += (time - nextFull) / refreshTime * refreshTime;
+        }
+        for (int i = 0; i < intervals.length; i++) {
+            if (intervals[i] > 0 && nextDue[i] < time) {
+                nextDue[i] += (time - nextDue[i]) / intervals[i] * intervals[i];
+            }
+        }
+    }
+
+    // GPS, audio and the refresh period sensors go in this window
+    boolean isFull() {
+        return fullDue;
+    }
+
+    boolean isDue(int sensorIndex) {
+        return due[sensorIndex] && enabled[sensorIndex];
+    }
+
+    boolean isEnabled(int sensorIndex) {
+        return enabled[sensorIndex];
+    }
+
+    // The sensor's own interval in ms, or FOLLOW_REFRESH
+    int interval(int sensorIndex) {
+        return intervals[sensorIndex];
+    }
+}
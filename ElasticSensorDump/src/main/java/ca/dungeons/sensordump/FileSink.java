@@ -0,0 +1,138 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Every document as one line of a local NDJSON file, for when there's no
+// cluster at all or as a copy to pull off the phone later.  A new file is
+// started when the current one reaches its size limit, and only the newest
+// few are kept.
+class FileSink implements DocumentSink {
+
+    private static final String FILE_PREFIX = "sensors-";
+    private static final String FILE_SUFFIX = ".ndjson";
+
+    // Buffered lines go to disk at least this often
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final File dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private OutputStream out;
+    private long fileBytes;
+    private long lastFlush;
+    private boolean failing = false;
+
+    FileSink(File dir, long maxFileBytes, int maxFiles) {
+        this.dir = dir;
+        this.maxFileBytes = Math.max(64 * 1024, maxFileBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    @Override
+    public void write(long timestamp, byte[] doc, int length, int rollupSeconds) {
+        if (out == null || (fileBytes > 0 && fileBytes + length + 1 > maxFileBytes)) {
+            rotate(timestamp);
+            if (out == null) {
+                return;
+            }
+        }
+        try {
+            out.write(doc, 0, length);
+            out.write('\n');
+            fileBytes += length + 1;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void idle() {
+        long now = System.currentTimeMillis();
+        if (out != null && now - lastFlush >= FLUSH_INTERVAL) {
+            lastFlush = now;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        close();
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    // Start a new file named for the first document in it, and make room for it
+    private void rotate(long timestamp) {
+        close();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            failed(new IOException("Can't create " + dir));
+            return;
+        }
+        File file = new File(dir, FILE_PREFIX + timestamp + FILE_SUFFIX);
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+            fileBytes = file.length();
+            failing = false;
+        } catch (IOException e) {
+            failed(e);
+            return;
+        }
+        deleteOldFiles();
+    }
+
+    // Same width timestamps, so the names sort oldest first
+    private void deleteOldFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        Arrays.sort(files, 0, count);
+        for (int i = 0; i < count - maxFiles; i++) {
+            if (!files[i].delete()) {
+                Log.v("File Sink", "Can't delete " + files[i]);
+            }
+        }
+    }
+
+    private void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.v("File Sink Error", e.toString());
+        }
+        out = null;
+    }
+
+    // Try again with a new file on the next document, but only say so once
+    private void failed(IOException e) {
+        if (!failing) {
+            Log.v("File Sink Error", e.toString());
+            failing = true;
+        }
+        close();
+    }
+}
@@ -0,0 +1,107 @@
+package ca.dungeons.sensordump;
+
+import java.util.Random;
+
+// Decides how hard we push the cluster.  Batch size and sender count grow a
+// little with every quick success and are cut in half when the cluster pushes
+// back (AIMD, like TCP).  Push back also starts a shared backoff window so every
+// sender goes quiet together, with full jitter so a crowd of phones that lost
+// the cluster at the same moment don't all come back at the same moment.
+class FlowControl {
+
+    // Bad responses that are worth trying again, everything else over 299 is permanent
+    static boolean isRetryable(int responseCode) {
+        return responseCode == 429 || responseCode >= 500;
+    }
+
+    // Never shrink a batch below this, unless the user asked for smaller
+    private static final int MIN_BATCH_DOCS = 10;
+
+    // Quick successes needed before we add another sender
+    private static final int SUCCESSES_PER_SENDER = 8;
+
+    private final int maxBatchDocs;
+    private final int maxSenders;
+    private final long targetLatencyMicros;
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final Random random = new Random();
+
+    private int batchDocs;
+    private int senders;
+    private int quickSuccesses = 0;
+    private int congestionCount = 0;
+    private long backoffUntil = 0;
+
+    FlowControl(int maxBatchDocs, int maxSenders, long targetLatencyMillis,
+                long baseBackoffMillis, long maxBackoffMillis) {
+        this.maxBatchDocs = Math.max(1, maxBatchDocs);
+        this.maxSenders = Math.max(1, maxSenders);
+        this.targetLatencyMicros = Math.max(1, targetLatencyMillis) * 1000;
+        this.baseBackoff = Math.max(1, baseBackoffMillis);
+        this.maxBackoff = Math.max(baseBackoff, maxBackoffMillis);
+        this.batchDocs = this.maxBatchDocs;
+        this.senders = this.maxSenders;
+    }
+
+    // The cluster took a request.  Grow slowly while it stays quick, ease off
+    // before it starts rejecting when it gets slow.
+    synchronized void onSuccess(long latencyMicros) {
+        congestionCount = 0;
+        if (latencyMicros > targetLatencyMicros) {
+            quickSuccesses = 0;
+            batchDocs = Math.max(minBatchDocs(), batchDocs * 3 / 4);
+            senders = Math.max(1, senders - 1);
+            return;
+        }
+
+        batchDocs = Math.min(maxBatchDocs, batchDocs + Math.max(1, maxBatchDocs / 10));
+        if (++quickSuccesses >= SUCCESSES_PER_SENDER && senders < maxSenders) {
+            quickSuccesses = 0;
+            senders++;
+        }
+    }
+
+    // 429, rejected execution, 5xx or no answer at all
+    synchronized void onCongestion(long now) {
+        quickSuccesses = 0;
+        batchDocs = Math.max(minBatchDocs(), batchDocs / 2);
+        senders = Math.max(1, senders / 2);
+        congestionCount++;
+        backoffUntil = Math.max(backoffUntil, now + backoffDelay(congestionCount));
+    }
+
+    // 401, 403, 404 and the like, a setting is wrong rather than the cluster
+    // busy.  Pushing less won't help, but there's no point asking again
+    // straight away either.
+    synchronized void onRefused(long now) {
+        congestionCount++;
+        backoffUntil = Math.max(backoffUntil, now + backoffDelay(congestionCount));
+    }
+
+    // How long everyone should still hold off, 0 if we're clear to send
+    synchronized long backoffRemaining(long now) {
+        return Math.max(0, backoffUntil - now);
+    }
+
+    // Random delay between 0 and base * 2^attempt, capped
+    synchronized long backoffDelay(int attempt) {
+        long ceiling = baseBackoff << Math.min(attempt, 20);
+        if (ceiling <= 0 || ceiling > maxBackoff) {
+            ceiling = maxBackoff;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    synchronized int batchDocs() {
+        return batchDocs;
+    }
+
+    synchronized int senders() {
+        return senders;
+    }
+
+    private int minBatchDocs() {
+        return Math.min(MIN_BATCH_DOCS, maxBatchDocs);
+    }
+}
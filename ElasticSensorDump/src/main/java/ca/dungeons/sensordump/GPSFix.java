@@ -0,0 +1,65 @@
+package ca.dungeons.sensordump;
+
+// Everything we know after one GPS fix.  GPSLogger builds a new one per fix and
+// publishes it through a volatile field, so a reader on another thread always
+// sees every value from the same fix.  Nothing here changes after construction.
+final class GPSFix {
+
+    // Wall clock time the fix came in, the same clock the document windows use
+    final long time;
+    final double lat;
+    final double lon;
+    final double altitude;
+    final float accuracy;
+    final float bearing;
+    final boolean hasBearing;
+    final String provider;
+    final float speed;
+    final boolean hasSpeed;
+    final float speedKMH;
+    final float speedMPH;
+    final int updates;
+    final double latStart;
+    final double lonStart;
+    final float acceleration;
+    final float accelerationKMH;
+    final float accelerationMPH;
+    final double distanceMetres;
+    final double distanceFeet;
+    final double totalDistance;
+    final double totalDistanceKM;
+    final double totalDistanceMiles;
+
+    GPSFix(long time, double lat, double lon, double altitude, float accuracy, float bearing, boolean hasBearing,
+           String provider, float speed, boolean hasSpeed, int updates, double latStart, double lonStart,
+           float acceleration, double distanceMetres, double totalDistance) {
+        this.time = time;
+        this.lat = lat;
+        this.lon = lon;
+        this.altitude = altitude;
+        this.accuracy = accuracy;
+        this.bearing = bearing;
+        this.hasBearing = hasBearing;
+        this.provider = provider;
+        this.updates = updates;
+        this.latStart = latStart;
+        this.lonStart = lonStart;
+
+        // Metre per second is not ideal. Adding km/hr and mph as well
+        this.speed = speed;
+        this.hasSpeed = hasSpeed;
+        this.speedKMH = speed * (float) 3.6;
+        this.speedMPH = speed * (float) 2.23694;
+
+        this.acceleration = acceleration;
+        this.accelerationKMH = acceleration * (float) 3.6;
+        this.accelerationMPH = acceleration * (float) 2.23694;
+
+        this.distanceMetres = distanceMetres;
+        this.distanceFeet = distanceMetres * 3.28084;
+
+        this.totalDistance = totalDistance;
+        this.totalDistanceKM = totalDistance * 0.001;
+        this.totalDistanceMiles = totalDistance * 0.000621371;
+    }
+}
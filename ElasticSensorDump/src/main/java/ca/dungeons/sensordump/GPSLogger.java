@@ -6,89 +6,160 @@ import android.os.Bundle;
 
 class GPSLogger implements LocationListener {
 
-    boolean gpsHasData = false;
-    double gpsLat;
-    double gpsLong;
-    double gpsAlt;
-    float gpsAccuracy;
-    float gpsBearing;
-    String gpsProvider;
-    float gpsSpeed;
-    float gpsSpeedKMH;
-    float gpsSpeedMPH;
-    int gpsUpdates = 0;
-    double gpsLatStart;
-    double gpsLongStart;
-    float gpsAcceleration;
-    float gpsAccelerationKMH;
-    float gpsAccelerationMPH;
-    double gpsDistanceMetres;
-    double gpsDistanceFeet;
-    double gpsTotalDistance;
-    double gpsTotalDistanceKM;
-    double gpsTotalDistanceMiles;
-
+    // The latest fix, null until we get one.  Readers take one reference and use
+    // it for the whole document, so they never mix values from two fixes.
+    private volatile GPSFix fix;
+
+    // The last few fixes, oldest first, for documents held back a while behind
+    // the latest one.  A new array per fix, they never change once published.
+    private static final int FIX_HISTORY = 64;
+    private volatile GPSFix[] recentFixes = new GPSFix[0];
+
+    // Only touched on the thread location updates are delivered on
+    private int gpsUpdates = 0;
+    private double gpsLatStart;
+    private double gpsLongStart;
+    private double gpsTotalDistance;
     private float lastSpeed;
     private double lastLat;
     private double lastLong;
 
+    // Below this filtered speed we call it parked and stop adding up distance
+    private static final float STATIONARY_SPEED = 0.5f;
+
+    // Optional smoothing of the fixes, with the accelerometer filling in between them
+    private volatile PositionFilter positionFilter;
+    private final double[] filtered = new double[3];
+
     @Override
     public void onLocationChanged(Location location) {
+        onFix(location.getLatitude(), location.getLongitude(), location.getAltitude(),
+                location.getAccuracy(), location.hasBearing() ? location.getBearing() : Float.NaN,
+                location.hasSpeed() ? location.getSpeed() : Float.NaN, location.getProvider(),
+                System.currentTimeMillis());
+    }
 
-        gpsLat = location.getLatitude();
-        gpsLong = location.getLongitude();
-        gpsAlt = location.getAltitude();
-        gpsAccuracy = location.getAccuracy();
-        gpsBearing = location.getBearing();
-        gpsProvider = location.getProvider();
-        gpsSpeed = location.getSpeed();
+    // A fix from the GPS, or from a recorded session.  A NaN bearing or speed
+    // means the fix didn't have one.
+    void onFix(double gpsLat, double gpsLong, double gpsAlt, float gpsAccuracy, float bearing,
+               float speed, String gpsProvider, long fixTime) {
+        boolean hasBearing = !Float.isNaN(bearing);
+        boolean hasSpeed = !Float.isNaN(speed);
+        float gpsBearing = hasBearing ? bearing : 0;
+        float gpsSpeed = hasSpeed ? speed : 0;
+
+        // Distance and acceleration come from the filtered track if we have one
+        double trackLat = gpsLat;
+        double trackLong = gpsLong;
+        float trackSpeed = gpsSpeed;
+        boolean moving = true;
+        PositionFilter filter = positionFilter;
+        if (filter != null) {
+            filter.update(gpsLat, gpsLong, gpsAccuracy, hasSpeed ? gpsSpeed : -1,
+                    hasBearing ? gpsBearing : Float.NaN, fixTime);
+            filter.estimate(fixTime, filtered);
+            trackLat = filtered[0];
+            trackLong = filtered[1];
+            trackSpeed = (float) filtered[2];
+            moving = trackSpeed >= STATIONARY_SPEED;
+        }
 
         // Store the lat/long for the first reading we got
         if (gpsUpdates == 0) {
             gpsLatStart = gpsLat;
             gpsLongStart = gpsLong;
-            lastSpeed = gpsSpeed;
-            lastLat = gpsLat;
-            lastLong = gpsLong;
+            lastSpeed = trackSpeed;
+            lastLat = trackLat;
+            lastLong = trackLong;
         }
 
         this.gpsUpdates += 1;
 
-        // Metre per second is not ideal. Adding km/hr and mph as well
-        gpsSpeedKMH = gpsSpeed * (float) 3.6;
-        gpsSpeedMPH = gpsSpeed * (float) 2.23694;
-
         // Calculate acceleration
-        gpsAcceleration = gpsSpeed - lastSpeed;
-        gpsAccelerationKMH = gpsAcceleration * (float) 3.6;
-        gpsAccelerationMPH = gpsAcceleration * (float) 2.23694;
-        lastSpeed = gpsSpeed;
-
-        // Calculate distance
-        Location currentLocation = new Location("current");
-        currentLocation.setLatitude(gpsLat);
-        currentLocation.setLongitude(gpsLong);
-
-        Location lastLocation = new Location("last");
-        lastLocation.setLatitude(lastLat);
-        lastLocation.setLongitude(lastLong);
-
-        gpsDistanceMetres = currentLocation.distanceTo(lastLocation);
-        gpsDistanceFeet = gpsDistanceMetres * 3.28084;
-        lastLat = gpsLat;
-        lastLong = gpsLong;
+        float gpsAcceleration = trackSpeed - lastSpeed;
+        lastSpeed = trackSpeed;
+
+        // Calculate distance.  While parked the last point stays put, so jitter
+        // around it never adds up.
+        double gpsDistanceMetres = 0;
+        if (moving) {
+            gpsDistanceMetres = Geodesic.distance(lastLat, lastLong, trackLat, trackLong);
+            lastLat = trackLat;
+            lastLong = trackLong;
+        }
 
         // Track total distance
         gpsTotalDistance += gpsDistanceMetres;
-        gpsTotalDistanceKM = gpsTotalDistance * 0.001;
-        gpsTotalDistanceMiles = gpsTotalDistance * 0.000621371;
 
         // We're live!
-        gpsHasData = true;
+        GPSFix newFix = new GPSFix(fixTime, gpsLat, gpsLong, gpsAlt, gpsAccuracy, gpsBearing, hasBearing,
+                gpsProvider, gpsSpeed, hasSpeed, gpsUpdates, gpsLatStart, gpsLongStart,
+                gpsAcceleration, gpsDistanceMetres, gpsTotalDistance);
+        GPSFix[] older = recentFixes;
+        int kept = Math.min(older.length, FIX_HISTORY - 1);
+        GPSFix[] fixes = new GPSFix[kept + 1];
+        System.arraycopy(older, older.length - kept, fixes, 0, kept);
+        fixes[kept] = newFix;
+        recentFixes = fixes;
+        fix = newFix;
+    }
+
+    // Latest fix, or null if there hasn't been one
+    GPSFix fix() {
+        return fix;
+    }
+
+    // The fix we had at time, for a document window ending then.  Null if
+    // there wasn't one yet, the oldest we still have if it's further back.
+    GPSFix fixAt(long time) {
+        GPSFix[] fixes = recentFixes;
+        for (int i = fixes.length - 1; i >= 0; i--) {
+            if (fixes[i].time <= time) {
+                return fixes[i];
+            }
+        }
+        return fixes.length == FIX_HISTORY ? fixes[0] : null;
+    }
+
+    // Oldest first, don't change it
+    GPSFix[] recentFixes() {
+        return recentFixes;
     }
 
     void resetGPS() {
         gpsUpdates = 0;
+        recentFixes = new GPSFix[0];
+        PositionFilter filter = positionFilter;
+        if (filter != null) {
+            filter.reset();
+        }
+    }
+
+    // Smooth fixes with a Kalman filter, and interpolate between them
+    void setFiltering(boolean filtering) {
+        if (filtering && positionFilter == null) {
+            positionFilter = new PositionFilter();
+        } else if (!filtering) {
+            positionFilter = null;
+        }
+    }
+
+    boolean isFiltering() {
+        return positionFilter != null;
+    }
+
+    // World frame acceleration from the sensor pipeline, east and north in m/s^2
+    void onAcceleration(double east, double north, long time) {
+        PositionFilter filter = positionFilter;
+        if (filter != null) {
+            filter.accelerate(east, north, time);
+        }
+    }
+
+    // Filtered position and speed at a time between fixes, false until the first fix
+    boolean estimate(long time, double[] latLonSpeed) {
+        PositionFilter filter = positionFilter;
+        return filter != null && filter.estimate(time, latLonSpeed);
     }
 
     @Override
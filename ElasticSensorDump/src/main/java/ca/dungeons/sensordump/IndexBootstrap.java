@@ -0,0 +1,129 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+// Puts an index template in place before any documents go out, so every index
+// we write to (including each new daily index) is created with our mapping and
+// with settings tuned for a steady stream of small writes.
+//
+// Legacy _template works from Elastic 6 on.  Composable _index_template needs
+// 7.8 or newer, so that one is opt in.
+class IndexBootstrap {
+
+    private final String baseURL;
+    private final String authHeader;
+    private final String indexName;
+    private final String indexPattern;
+    private final boolean es7;
+    private final boolean composable;
+    private final int shards;
+    private final int replicas;
+    private final String refreshInterval;
+
+    IndexBootstrap(String baseURL, String authHeader, String indexName, boolean daily, boolean es7,
+                   boolean composable, int shards, int replicas, String refreshInterval) {
+        this.baseURL = baseURL;
+        this.authHeader = authHeader;
+        this.indexName = indexName;
+        this.indexPattern = daily ? indexName + "-*" : indexName;
+        this.es7 = es7;
+        this.composable = composable && es7;
+        this.shards = Math.max(1, shards);
+        this.replicas = Math.max(0, replicas);
+        this.refreshInterval = refreshInterval;
+    }
+
+    // PUT the template and wait for the answer.  Returns the HTTP response code.
+    int install() throws IOException {
+        byte[] body;
+        try {
+            body = templateBody().toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            // Only constants and numbers go in, this can't really happen
+            Log.v("Template Error", e.toString());
+            return 400;
+        }
+        String url = baseURL + (composable ? "_index_template/" : "_template/") + indexName;
+        Log.v("Template", url);
+
+        HttpURLConnection httpCon = (HttpURLConnection) new URL(url).openConnection();
+        httpCon.setRequestProperty("Content-Type", "application/json");
+        if (authHeader != null) {
+            httpCon.setRequestProperty("Authorization", authHeader);
+        }
+        httpCon.setConnectTimeout(2000);
+        httpCon.setReadTimeout(5000);
+        httpCon.setDoOutput(true);
+        httpCon.setFixedLengthStreamingMode(body.length);
+        httpCon.setRequestMethod("PUT");
+        OutputStream os = httpCon.getOutputStream();
+        os.write(body);
+        os.close();
+
+        int responseCode = httpCon.getResponseCode();
+        InputStream is = responseCode >= 300 ? httpCon.getErrorStream() : httpCon.getInputStream();
+        if (is != null) {
+            byte[] scratch = new byte[1024];
+            while (is.read(scratch) != -1) {
+                // Just emptying it so the connection can be reused
+            }
+            is.close();
+        }
+        return responseCode;
+    }
+
+    JSONObject templateBody() throws JSONException {
+        // Refreshes are the expensive part of a write heavy index, and nobody is
+        // watching the data to the second
+        JSONObject settings = new JSONObject();
+        settings.put("number_of_shards", shards);
+        settings.put("number_of_replicas", replicas);
+        settings.put("refresh_interval", refreshInterval);
+
+        JSONObject template = new JSONObject();
+        template.put("index_patterns", new JSONArray().put(indexPattern));
+        if (composable) {
+            JSONObject inner = new JSONObject();
+            inner.put("settings", settings);
+            inner.put("mappings", mapping());
+            template.put("template", inner);
+            template.put("priority", 100);
+        } else {
+            template.put("settings", settings);
+            if (es7) {
+                template.put("mappings", mapping());
+            } else {
+                template.put("mappings", new JSONObject().put("esd", mapping()));
+            }
+        }
+        return template;
+    }
+
+    // Whole numbers are floats too, and the locations are geo points
+    private static JSONObject mapping() throws JSONException {
+        JSONObject longToFloat = new JSONObject()
+                .put("match_mapping_type", "long")
+                .put("mapping", new JSONObject().put("type", "float"));
+
+        JSONObject properties = new JSONObject();
+        properties.put("start_location", new JSONObject().put("type", "geo_point"));
+        properties.put("location", new JSONObject().put("type", "geo_point"));
+        properties.put("filtered_location", new JSONObject().put("type", "geo_point"));
+        properties.put("tag", new JSONObject().put("type", "keyword"));
+        properties.put("gps_provider", new JSONObject().put("type", "keyword"));
+
+        JSONObject mapping = new JSONObject();
+        mapping.put("dynamic_templates", new JSONArray().put(new JSONObject().put("long_to_float", longToFloat)));
+        mapping.put("properties", properties);
+        return mapping;
+    }
+}
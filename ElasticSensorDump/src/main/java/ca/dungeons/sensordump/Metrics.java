@@ -0,0 +1,161 @@
+package ca.dungeons.sensordump;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and histograms for one logging session.  Everything here is safe to
+// bump from any thread: the sender pool, the ingest thread and the capture
+// thread all write to it while the UI reads it.
+class Metrics {
+
+    // Counter spread over a few padded cells so threads don't fight over one cache line
+    static class Counter {
+        private static final int STRIPES = 8;
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        void add(long value) {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            cells.addAndGet(stripe * PADDING, value);
+        }
+
+        void increment() {
+            add(1);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    // Log-linear histogram in the style of HdrHistogram: every power of two is
+    // split into 16 linear buckets, which keeps any percentile within ~6%.
+    static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int HALF_SUB_COUNT = SUB_COUNT / 2;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF_SUB_COUNT + HALF_SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final Counter total = new Counter();
+        private volatile long max = 0;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(bucket(value));
+            total.increment();
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        // Value below which the given fraction of recordings fall, e.g. 0.99
+        long percentile(double fraction) {
+            long count = total.sum();
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min(max, highestInBucket(i));
+                }
+            }
+            return max;
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int bucket(long value) {
+            int msb = 63 - Long.numberOfLeadingZeros(value | (SUB_COUNT - 1));
+            int shift = msb - (SUB_BITS - 1);
+            return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+        }
+
+        private static long highestInBucket(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int shift = bucket / HALF_SUB_COUNT - 1;
+            long lowest = (long) (bucket - shift * HALF_SUB_COUNT) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    // Indexing
+    final Counter indexRequests = new Counter();
+    final Counter indexSuccess = new Counter();
+    final Counter retries = new Counter();
+
+    // 429s, 5xx and rejected bulk items, anything that made us back off
+    final Counter rejections = new Counter();
+
+    // Failures only happen now and then, and replays take them back off again
+    private final AtomicLong failedDocs = new AtomicLong();
+
+    // Microseconds from opening the connection to reading the last byte of the response
+    final Histogram requestLatency = new Histogram();
+    final Histogram bulkBytes = new Histogram();
+    final Histogram bulkDocs = new Histogram();
+    final Histogram queueDepth = new Histogram();
+
+    // Events per sensor, indexed like the SensorRegistry.  Only the capture thread writes these.
+    private final AtomicLongArray sensorEvents;
+    private final String[] sensorNames;
+
+    Metrics(SensorRegistry sensorRegistry) {
+        sensorNames = new String[sensorRegistry.sensorCount()];
+        for (int i = 0; i < sensorNames.length; i++) {
+            sensorNames[i] = sensorRegistry.sensorName(i);
+        }
+        sensorEvents = new AtomicLongArray(sensorNames.length);
+    }
+
+    void sensorEvent(int sensorIndex) {
+        sensorEvents.lazySet(sensorIndex, sensorEvents.get(sensorIndex) + 1);
+    }
+
+    long sensorEvents(int sensorIndex) {
+        return sensorEvents.get(sensorIndex);
+    }
+
+    int sensorCount() {
+        return sensorNames.length;
+    }
+
+    String sensorName(int sensorIndex) {
+        return sensorNames[sensorIndex];
+    }
+
+    void docsFailed(int docCount) {
+        failedDocs.addAndGet(docCount);
+    }
+
+    // Replayed docs were counted as errors the first time around, unless they
+    // came from an earlier session, so don't go below zero
+    void docsRecovered(int docCount) {
+        long current;
+        do {
+            current = failedDocs.get();
+        } while (!failedDocs.compareAndSet(current, Math.max(0, current - docCount)));
+    }
+
+    long failedDocs() {
+        return failedDocs.get();
+    }
+}
@@ -0,0 +1,71 @@
+package ca.dungeons.sensordump;
+
+// Readings that have been taken off the ring but belong to a document window
+// that hasn't closed yet.  With hardware batching every sensor's FIFO is
+// delivered in its own burst, so readings turn up out of order across sensors
+// and sometimes well ahead of the window we're filling.  They wait here until
+// their window comes around.
+//
+// Flat primitive arrays in arrival order, nothing is allocated once it's built.
+class PendingReadings {
+
+    private final int capacity;
+    private final int[] sensorIndexes;
+    private final int[] valueCounts;
+    private final long[] times;
+    private final float[] values;
+    private int size = 0;
+
+    PendingReadings(int capacity) {
+        this.capacity = capacity;
+        sensorIndexes = new int[capacity];
+        valueCounts = new int[capacity];
+        times = new long[capacity];
+        values = new float[capacity * SensorRegistry.MAX_VALUES];
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    // Copy the reading the ring is looking at, stamped with its wall clock time
+    void add(SensorRingBuffer ringBuffer, long time) {
+        int count = ringBuffer.valueCount();
+        sensorIndexes[size] = ringBuffer.sensorIndex();
+        valueCounts[size] = count;
+        times[size] = time;
+        int base = size * SensorRegistry.MAX_VALUES;
+        for (int i = 0; i < count; i++) {
+            values[base + i] = ringBuffer.value(i);
+        }
+        size++;
+    }
+
+    // Fold every reading from before the end of the window into the document and
+    // keep the rest, still in arrival order.  With before = Long.MAX_VALUE
+    // everything goes.  The recorder, if there is one, sees each reading as it
+    // goes in.
+    void applyBefore(long before, SensorDocument document, SessionRecorder recorder) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int base = i * SensorRegistry.MAX_VALUES;
+            if (times[i] < before) {
+                if (recorder != null) {
+                    recorder.reading(sensorIndexes[i], times[i], values, base, valueCounts[i]);
+                }
+                for (int v = 0; v < valueCounts[i]; v++) {
+                    document.setChannel(SensorRegistry.slot(sensorIndexes[i], v), values[base + v]);
+                }
+            } else {
+                if (kept != i) {
+                    sensorIndexes[kept] = sensorIndexes[i];
+                    valueCounts[kept] = valueCounts[i];
+                    times[kept] = times[i];
+                    System.arraycopy(values, base, values, kept * SensorRegistry.MAX_VALUES, valueCounts[i]);
+                }
+                kept++;
+            }
+        }
+        size = kept;
+    }
+}
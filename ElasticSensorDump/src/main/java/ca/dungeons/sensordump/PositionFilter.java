@@ -0,0 +1,251 @@
+package ca.dungeons.sensordump;
+
+// Kalman filter over position and velocity, so GPS jitter doesn't turn into
+// distance and the position can be estimated between fixes.
+//
+// Positions are kept in metres east and north of a local origin near the first
+// fix, and each axis is its own two state [position, velocity] filter.  World
+// frame acceleration from the phone's sensors drives the prediction step when
+// we have it; without it this is a plain constant velocity model.
+//
+// Plain Java with no Android dependencies, so it can be run over recorded
+// tracks on a desktop JVM.  Nothing is allocated after construction.
+class PositionFilter {
+
+    // How much we trust the prediction, as acceleration noise in m/s^2
+    private static final double ACCEL_NOISE_FUSED = 1.0;
+    private static final double ACCEL_NOISE_UNFUSED = 3.0;
+
+    // Speed measurements, in m/s
+    private static final double SPEED_NOISE = 1.0;
+
+    // Don't let accuracy claims below this make the filter overconfident
+    private static final double MIN_POSITION_NOISE = 1.0;
+
+    // Acceleration older than this since the last reading doesn't drive the prediction
+    private static final long ACCEL_TIMEOUT = 500;
+
+    // Move the origin once we're this far from it, the flat earth maths gets poor further out
+    private static final double REANCHOR_DISTANCE = 20000;
+
+    private static final int EAST = 0;
+    private static final int NORTH = 1;
+
+    // States kept after every fix and acceleration, so a document held back
+    // for its window gets where we were at its end and not where we are now.
+    // Enough for several seconds of acceleration readings.
+    private static final int HISTORY = 1024;
+
+    private boolean initialised = false;
+    private double originLat;
+    private double originLon;
+    private double metresPerLat;
+    private double metresPerLon;
+    private long time;
+
+    // Per axis state and covariance
+    private final double[] position = new double[2];
+    private final double[] velocity = new double[2];
+    private final double[] p00 = new double[2];
+    private final double[] p01 = new double[2];
+    private final double[] p11 = new double[2];
+
+    // Latest world frame acceleration and when it was measured
+    private final double[] acceleration = new double[2];
+    private long accelerationTime = Long.MIN_VALUE;
+
+    // Ring of past states, newest at historyNext - 1
+    private final long[] historyTimes = new long[HISTORY];
+    private final double[] historyLat = new double[HISTORY];
+    private final double[] historyLon = new double[HISTORY];
+    private final double[] historyVelocity = new double[HISTORY * 2];
+    private final double[] historyAcceleration = new double[HISTORY * 2];
+    private int historyNext = 0;
+    private int historyCount = 0;
+
+    synchronized void reset() {
+        initialised = false;
+        accelerationTime = Long.MIN_VALUE;
+        historyCount = 0;
+    }
+
+    // A GPS fix.  Speed below zero or a NaN bearing means we don't have one.
+    synchronized void update(double lat, double lon, float accuracy, float speed, float bearing, long fixTime) {
+        if (!initialised) {
+            setOrigin(lat, lon);
+            for (int axis = 0; axis < 2; axis++) {
+                position[axis] = 0;
+                velocity[axis] = 0;
+                p00[axis] = accuracy * accuracy;
+                p01[axis] = 0;
+                p11[axis] = 100;
+            }
+            time = fixTime;
+            initialised = true;
+        } else {
+            advance(fixTime);
+        }
+
+        double positionNoise = Math.max(MIN_POSITION_NOISE, accuracy);
+        double r = positionNoise * positionNoise;
+        updatePosition(EAST, (lon - originLon) * metresPerLon, r);
+        updatePosition(NORTH, (lat - originLat) * metresPerLat, r);
+
+        if (speed >= 0 && !Float.isNaN(bearing)) {
+            double heading = Math.toRadians(bearing);
+            double speedVariance = SPEED_NOISE * SPEED_NOISE;
+            updateVelocity(EAST, speed * Math.sin(heading), speedVariance);
+            updateVelocity(NORTH, speed * Math.cos(heading), speedVariance);
+        }
+
+        if (Math.abs(position[EAST]) > REANCHOR_DISTANCE || Math.abs(position[NORTH]) > REANCHOR_DISTANCE) {
+            reanchor();
+        }
+        remember();
+    }
+
+    // World frame acceleration in m/s^2 east and north, gravity already removed
+    synchronized void accelerate(double east, double north, long readingTime) {
+        if (!initialised || readingTime < time) {
+            return;
+        }
+        advance(readingTime);
+        acceleration[EAST] = east;
+        acceleration[NORTH] = north;
+        accelerationTime = readingTime;
+        remember();
+    }
+
+    // Where we think we are at a given time, without changing the filter.
+    // Fills in lat, lon and speed and returns false if there's no fix yet.
+    // A time the filter has already moved past starts from the last state
+    // at or before it.
+    synchronized boolean estimate(long at, double[] latLonSpeed) {
+        if (!initialised) {
+            return false;
+        }
+        if (at >= time || historyCount == 0) {
+            boolean fused = isFused();
+            extrapolate(originLat + position[NORTH] / metresPerLat, originLon + position[EAST] / metresPerLon,
+                    velocity[EAST], velocity[NORTH], fused ? acceleration[EAST] : 0, fused ? acceleration[NORTH] : 0,
+                    Math.max(0, at - time), latLonSpeed);
+            return true;
+        }
+
+        int slot = historyNext;
+        for (int i = 0; i < historyCount; i++) {
+            slot = (slot + HISTORY - 1) % HISTORY;
+            if (historyTimes[slot] <= at) {
+                extrapolate(historyLat[slot], historyLon[slot],
+                        historyVelocity[slot * 2 + EAST], historyVelocity[slot * 2 + NORTH],
+                        historyAcceleration[slot * 2 + EAST], historyAcceleration[slot * 2 + NORTH],
+                        at - historyTimes[slot], latLonSpeed);
+                return true;
+            }
+        }
+
+        // Before the first fix, or further back than we remember
+        if (historyCount < HISTORY) {
+            return false;
+        }
+        extrapolate(historyLat[slot], historyLon[slot], historyVelocity[slot * 2 + EAST],
+                historyVelocity[slot * 2 + NORTH], 0, 0, 0, latLonSpeed);
+        return true;
+    }
+
+    private void extrapolate(double lat, double lon, double vEast, double vNorth, double aEast, double aNorth,
+                             long millis, double[] latLonSpeed) {
+        double dt = millis / 1000.0;
+        double east = vEast * dt + 0.5 * aEast * dt * dt;
+        double north = vNorth * dt + 0.5 * aNorth * dt * dt;
+        vEast += aEast * dt;
+        vNorth += aNorth * dt;
+        latLonSpeed[0] = lat + north / metresPerLat;
+        latLonSpeed[1] = lon + east / metresPerLon;
+        latLonSpeed[2] = Math.sqrt(vEast * vEast + vNorth * vNorth);
+    }
+
+    // Keep the state as it is now, for estimates that reach back
+    private void remember() {
+        int slot = historyNext;
+        boolean fused = isFused();
+        historyTimes[slot] = time;
+        historyLat[slot] = originLat + position[NORTH] / metresPerLat;
+        historyLon[slot] = originLon + position[EAST] / metresPerLon;
+        historyVelocity[slot * 2 + EAST] = velocity[EAST];
+        historyVelocity[slot * 2 + NORTH] = velocity[NORTH];
+        historyAcceleration[slot * 2 + EAST] = fused ? acceleration[EAST] : 0;
+        historyAcceleration[slot * 2 + NORTH] = fused ? acceleration[NORTH] : 0;
+        historyNext = (slot + 1) % HISTORY;
+        historyCount = Math.min(HISTORY, historyCount + 1);
+    }
+
+    // Acceleration fresh enough to drive the prediction.  Not a subtraction
+    // from the no acceleration yet value, that wraps round and looks fresh.
+    private boolean isFused() {
+        return accelerationTime != Long.MIN_VALUE && time - accelerationTime <= ACCEL_TIMEOUT;
+    }
+
+    // Prediction step up to the given time, using the last acceleration if it's fresh
+    private void advance(long to) {
+        double dt = (to - time) / 1000.0;
+        if (dt <= 0) {
+            return;
+        }
+        boolean fused = isFused();
+        double noise = fused ? ACCEL_NOISE_FUSED : ACCEL_NOISE_UNFUSED;
+        double q = noise * noise;
+        double dt2 = dt * dt;
+        for (int axis = 0; axis < 2; axis++) {
+            double a = fused ? acceleration[axis] : 0;
+            position[axis] += velocity[axis] * dt + 0.5 * a * dt2;
+            velocity[axis] += a * dt;
+
+            // P = F P F' + Q for F = [1 dt; 0 1]
+            p00[axis] += dt * 2 * p01[axis] + dt2 * p11[axis] + q * dt2 * dt2 / 4;
+            p01[axis] += dt * p11[axis] + q * dt2 * dt / 2;
+            p11[axis] += q * dt2;
+        }
+        time = to;
+    }
+
+    private void updatePosition(int axis, double measured, double r) {
+        double s = p00[axis] + r;
+        double k0 = p00[axis] / s;
+        double k1 = p01[axis] / s;
+        double innovation = measured - position[axis];
+        position[axis] += k0 * innovation;
+        velocity[axis] += k1 * innovation;
+        p11[axis] -= k1 * p01[axis];
+        p01[axis] *= 1 - k0;
+        p00[axis] *= 1 - k0;
+    }
+
+    private void updateVelocity(int axis, double measured, double r) {
+        double s = p11[axis] + r;
+        double k0 = p01[axis] / s;
+        double k1 = p11[axis] / s;
+        double innovation = measured - velocity[axis];
+        position[axis] += k0 * innovation;
+        velocity[axis] += k1 * innovation;
+        p00[axis] -= k0 * p01[axis];
+        p01[axis] *= 1 - k1;
+        p11[axis] *= 1 - k1;
+    }
+
+    private void setOrigin(double lat, double lon) {
+        originLat = lat;
+        originLon = lon;
+        metresPerLat = Geodesic.metresPerDegreeLat(lat);
+        metresPerLon = Math.max(1, Geodesic.metresPerDegreeLon(lat));
+    }
+
+    // Put the origin where we are now and keep the state
+    private void reanchor() {
+        double lat = originLat + position[NORTH] / metresPerLat;
+        double lon = originLon + position[EAST] / metresPerLon;
+        setOrigin(lat, lon);
+        position[EAST] = 0;
+        position[NORTH] = 0;
+    }
+}
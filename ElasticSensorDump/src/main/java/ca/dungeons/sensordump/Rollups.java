@@ -0,0 +1,131 @@
+package ca.dungeons.sensordump;
+
+// Time bucketed summaries of every numeric field, for when the link is metered
+// or flaky and the full resolution documents wait on the phone.  There are 1,
+// 10 and 60 second levels.
+//
+// Each level has one bucket being filled and one finished bucket waiting to be
+// sent, both fixed size, so memory doesn't grow however long we run.  Values
+// are folded in as they arrive, nothing is kept per reading.
+class Rollups {
+
+    static final int[] LEVELS = {1, 10, 60};
+
+    private final int fieldCount;
+    private final byte[][] statFieldNames;
+    private final Level[] levels;
+
+    private static class Level {
+        final long width;
+        final int seconds;
+        ChannelAggregator filling;
+        ChannelAggregator finished;
+        long bucketStart = Long.MIN_VALUE;
+        long finishedStart;
+        int fillingDocs = 0;
+        int finishedDocs;
+        boolean pending = false;
+
+        Level(int seconds, int fieldCount) {
+            this.seconds = seconds;
+            this.width = seconds * 1000L;
+            filling = new ChannelAggregator(fieldCount);
+            finished = new ChannelAggregator(fieldCount);
+        }
+    }
+
+    Rollups(String[] fieldNames, int[] levelSeconds) {
+        fieldCount = fieldNames.length;
+        statFieldNames = new byte[fieldCount * SensorRegistry.STAT_SUFFIXES.length][];
+        for (int field = 0; field < fieldCount; field++) {
+            for (int stat = 0; stat < SensorRegistry.STAT_SUFFIXES.length; stat++) {
+                statFieldNames[field * SensorRegistry.STAT_SUFFIXES.length + stat] =
+                        SensorDocument.fieldName(fieldNames[field] + SensorRegistry.STAT_SUFFIXES[stat]);
+            }
+        }
+        levels = new Level[levelSeconds.length];
+        for (int i = 0; i < levelSeconds.length; i++) {
+            levels[i] = new Level(Math.max(1, levelSeconds[i]), fieldCount);
+        }
+    }
+
+    void add(int field, float value) {
+        if (field >= fieldCount) {
+            return;
+        }
+        for (Level level : levels) {
+            level.filling.add(field, value);
+        }
+    }
+
+    // Close every bucket that ends before this document.  A document stamped T
+    // covers the window up to T, so it belongs to the bucket holding T - 1.
+    void roll(long timestamp) {
+        long t = timestamp - 1;
+        for (Level level : levels) {
+            long bucketStart = t - ((t % level.width) + level.width) % level.width;
+            if (level.bucketStart == Long.MIN_VALUE) {
+                level.bucketStart = bucketStart;
+                continue;
+            } else if (t < level.bucketStart + level.width) {
+                continue;
+            }
+            if (level.fillingDocs > 0) {
+                ChannelAggregator done = level.filling;
+                level.filling = level.finished;
+                level.finished = done;
+                level.finishedStart = level.bucketStart;
+                level.finishedDocs = level.fillingDocs;
+                level.pending = true;
+            }
+            level.filling.reset();
+            level.fillingDocs = 0;
+            level.bucketStart = bucketStart;
+        }
+    }
+
+    // One more document's worth of values has gone in
+    void documentDone() {
+        for (Level level : levels) {
+            level.fillingDocs++;
+        }
+    }
+
+    // The first level with a finished bucket to send, or -1
+    int nextFinished() {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].pending) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void sent(int level) {
+        levels[level].pending = false;
+    }
+
+    long start(int level) {
+        return levels[level].finishedStart;
+    }
+
+    int seconds(int level) {
+        return levels[level].seconds;
+    }
+
+    int documents(int level) {
+        return levels[level].finishedDocs;
+    }
+
+    ChannelAggregator stats(int level) {
+        return levels[level].finished;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    byte[] statFieldName(int field, int stat) {
+        return statFieldNames[field * SensorRegistry.STAT_SUFFIXES.length + stat];
+    }
+}
@@ -0,0 +1,869 @@
+package ca.dungeons.sensordump;
+
+// Builds the sensor document straight into a reusable byte buffer.  The layout
+// is fixed (timestamps, GPS block, audio, then one field per sensor channel) so
+// we don't need a JSONObject, boxed Floats or an intermediate String per event.
+//
+// Numbers and strings are written the same way org.json writes them: whole
+// numbers as longs, everything else in the shortest form that reads back to the
+// same value, and strings with the same escaping.
+class SensorDocument {
+
+    private static final int INITIAL_CAPACITY = 2048;
+
+    // Powers of ten that are exact as doubles
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Shortest digits we'll search for.  Past 15 digits a double can't be checked
+    // exactly with double maths, so those fall back to Double.toString.
+    private static final int MAX_FLOAT_DIGITS = 9;
+    private static final int MAX_DOUBLE_DIGITS = 15;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    // Pre-encoded field names
+    private static final byte[] FIELD_TIMESTAMP = fieldName("@timestamp");
+    private static final byte[] FIELD_START_TIME = fieldName("start_time");
+    private static final byte[] FIELD_LOG_DURATION = fieldName("log_duration_seconds");
+    private static final byte[] FIELD_LOCATION = fieldName("location");
+    private static final byte[] FIELD_START_LOCATION = fieldName("start_location");
+    private static final byte[] FIELD_ALTITUDE = fieldName("altitude");
+    private static final byte[] FIELD_ACCURACY = fieldName("accuracy");
+    private static final byte[] FIELD_BEARING = fieldName("bearing");
+    private static final byte[] FIELD_GPS_PROVIDER = fieldName("gps_provider");
+    private static final byte[] FIELD_SPEED = fieldName("speed");
+    private static final byte[] FIELD_SPEED_KMH = fieldName("speed_kmh");
+    private static final byte[] FIELD_SPEED_MPH = fieldName("speed_mph");
+    private static final byte[] FIELD_GPS_UPDATES = fieldName("gps_updates");
+    private static final byte[] FIELD_ACCELERATION = fieldName("acceleration");
+    private static final byte[] FIELD_ACCELERATION_KMH = fieldName("acceleration_kmh");
+    private static final byte[] FIELD_ACCELERATION_MPH = fieldName("acceleration_mph");
+    private static final byte[] FIELD_DISTANCE_METRES = fieldName("distance_metres");
+    private static final byte[] FIELD_DISTANCE_FEET = fieldName("distance_feet");
+    private static final byte[] FIELD_TOTAL_DISTANCE_METRES = fieldName("total_distance_metres");
+    private static final byte[] FIELD_TOTAL_DISTANCE_KM = fieldName("total_distance_km");
+    private static final byte[] FIELD_TOTAL_DISTANCE_MILES = fieldName("total_distance_miles");
+    private static final byte[] FIELD_LOUDNESS = fieldName("loudness");
+    private static final byte[] FIELD_FREQUENCY = fieldName("frequency");
+    private static final byte[] FIELD_AUDIO_RMS = fieldName("audio_rms");
+    private static final byte[] FIELD_AUDIO_DBFS = fieldName("audio_dbfs");
+    private static final byte[] FIELD_SPECTRAL_CENTROID = fieldName("spectral_centroid");
+    private static final byte[] FIELD_LOUDNESS_PEAK = fieldName("loudness_peak");
+    private static final byte[] FIELD_LOUDNESS_MEAN = fieldName("loudness_mean");
+    private static final byte[] FIELD_AUDIO_RMS_PEAK = fieldName("audio_rms_peak");
+    private static final byte[] FIELD_AUDIO_RMS_MEAN = fieldName("audio_rms_mean");
+    private static final byte[] FIELD_AUDIO_DBFS_PEAK = fieldName("audio_dbfs_peak");
+    private static final byte[] FIELD_AUDIO_BUFFERS = fieldName("audio_buffers");
+    private static final byte[] FIELD_TAG = fieldName("tag");
+    private static final byte[] FIELD_KEYFRAME = fieldName("keyframe");
+    private static final byte[] FIELD_FILTERED_LOCATION = fieldName("filtered_location");
+    private static final byte[] FIELD_FILTERED_SPEED = fieldName("filtered_speed");
+    private static final byte[] FIELD_METRIC_TYPE = fieldName("metric_type");
+    private static final byte[] FIELD_ROLLUP_SECONDS = fieldName("rollup_seconds");
+    private static final byte[] FIELD_ROLLUP_DOCUMENTS = fieldName("rollup_documents");
+
+    // Audio field numbers for the sparse filter, after the sensor channels.  The
+    // octave bands follow on from these.
+    private static final int AUDIO_LOUDNESS = 0;
+    private static final int AUDIO_FREQUENCY = 1;
+    private static final int AUDIO_RMS = 2;
+    private static final int AUDIO_DBFS = 3;
+    private static final int AUDIO_SPECTRAL_CENTROID = 4;
+    private static final int AUDIO_BANDS = 5;
+
+    // GPS field numbers for the rollups, after the octave bands
+    private static final int GPS_SPEED = 0;
+    private static final int GPS_ALTITUDE = 1;
+    private static final int GPS_ACCURACY = 2;
+    private static final int GPS_ACCELERATION = 3;
+    private static final int GPS_FILTERED_SPEED = 4;
+    private static final String[] GPS_ROLLUP_NAMES = {"speed", "altitude", "accuracy", "acceleration", "filtered_speed"};
+
+    private final GPSLogger gpsLogger;
+    private final AudioLogger audioLogger;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    private long timestamp;
+    private long startTime;
+
+    // The bucket the last encodeRollup() wrote
+    private long rollupStart;
+    private int rollupSeconds;
+
+    // start_time never changes during a session, so it is encoded once
+    private final TimestampFormatter timestampFormatter = new TimestampFormatter();
+    private final byte[] startTimeValue = new byte[TimestampFormatter.TIMESTAMP_LENGTH + 2];
+
+    // The GPS block only changes once per fix, so it is encoded once and copied
+    private byte[] gpsBlock = new byte[512];
+    private int gpsBlockLength = 0;
+    private GPSFix gpsBlockFix;
+
+    // Audio values for the document being built, copied in one consistent read
+    private final AudioLogger.Levels audio = new AudioLogger.Levels();
+
+    // Octave band field names, rebuilt if the bands change
+    private int[] bandCenters;
+    private byte[][] bandFieldNames;
+
+    private final byte[] digitScratch = new byte[20];
+
+    // Filtered lat, lon and speed at the document's timestamp
+    private final double[] filteredPosition = new double[3];
+
+    // One slot per sensor channel, laid out by the registry
+    private final SensorRegistry registry;
+    private final float[] channelValues;
+    private final boolean[] channelPresent;
+    private final int channelCount;
+
+    // Optional min/max/mean/stddev/count per channel over each document window
+    private ChannelAggregator aggregator;
+
+    // Optional change-only documents with a full keyframe now and then
+    private SparseFilter sparseFilter;
+
+    // Optional per sensor emission intervals, null for everything in every document
+    private EmissionSchedule schedule;
+
+    // Optional 1s/10s/60s summaries of every numeric field
+    private Rollups rollups;
+    private int rollupBandCount;
+
+    SensorDocument(SensorRegistry registry, GPSLogger gpsLogger, AudioLogger audioLogger) {
+        this.registry = registry;
+        this.gpsLogger = gpsLogger;
+        this.audioLogger = audioLogger;
+        channelCount = registry == null ? 0 : registry.channelCount();
+        channelValues = new float[channelCount];
+        channelPresent = new boolean[channelCount];
+    }
+
+    // New session, forget everything from the last one
+    void reset(long startTime) {
+        this.startTime = startTime;
+        startTimeValue[0] = '"';
+        timestampFormatter.write(startTime, startTimeValue, 1);
+        startTimeValue[startTimeValue.length - 1] = '"';
+        gpsBlockFix = null;
+        for (int i = 0; i < channelCount; i++) {
+            channelPresent[i] = false;
+        }
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    long rollupStart() {
+        return rollupStart;
+    }
+
+    int rollupSeconds() {
+        return rollupSeconds;
+    }
+
+    // Only put in the sensors the schedule says are due, and GPS and audio only
+    // in its full documents.  Null puts everything in every document.
+    void setSchedule(EmissionSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    // Keep window statistics for every reading, not just the last one
+    void setAggregating(boolean aggregating) {
+        if (aggregating && aggregator == null) {
+            aggregator = new ChannelAggregator(channelCount);
+        } else if (!aggregating) {
+            aggregator = null;
+        }
+    }
+
+    // Leave out fields that haven't changed, or null to always send everything
+    void setSparse(SparseFilter filter) {
+        sparseFilter = filter;
+        if (filter != null) {
+            for (int i = 0; i < channelCount; i++) {
+                filter.defineField(i, registry.channelName(i));
+            }
+            filter.defineField(channelCount + AUDIO_LOUDNESS, "loudness");
+            filter.defineField(channelCount + AUDIO_FREQUENCY, "frequency");
+            filter.defineField(channelCount + AUDIO_RMS, "audio_rms");
+            filter.defineField(channelCount + AUDIO_DBFS, "audio_dbfs");
+            filter.defineField(channelCount + AUDIO_SPECTRAL_CENTROID, "spectral_centroid");
+        }
+
+        // Band fields get defined when their names are built
+        bandCenters = null;
+    }
+
+    // Keep rollups of every numeric field.  Fields are numbered like the sparse
+    // filter's, with the GPS ones after the octave bands we have right now.
+    void setRollups(boolean enabled) {
+        if (!enabled) {
+            rollups = null;
+            return;
+        }
+        audioLogger.read(audio);
+        rollupBandCount = audio.bandCount;
+        String[] names = new String[channelCount + AUDIO_BANDS + rollupBandCount + GPS_ROLLUP_NAMES.length];
+        for (int i = 0; i < channelCount; i++) {
+            names[i] = registry.channelName(i);
+        }
+        names[channelCount + AUDIO_LOUDNESS] = "loudness";
+        names[channelCount + AUDIO_FREQUENCY] = "frequency";
+        names[channelCount + AUDIO_RMS] = "audio_rms";
+        names[channelCount + AUDIO_DBFS] = "audio_dbfs";
+        names[channelCount + AUDIO_SPECTRAL_CENTROID] = "spectral_centroid";
+        for (int i = 0; i < rollupBandCount; i++) {
+            names[channelCount + AUDIO_BANDS + i] = "audio_band_" + audio.bandCenters[i] + "hz";
+        }
+        System.arraycopy(GPS_ROLLUP_NAMES, 0, names, channelCount + AUDIO_BANDS + rollupBandCount,
+                GPS_ROLLUP_NAMES.length);
+        rollups = new Rollups(names, Rollups.LEVELS);
+    }
+
+    // Store the actual sensor data now unless it's returning NaN or something crazy big or small
+    void setChannel(int slot, float value) {
+        if (SensorRegistry.isValid(value)) {
+            channelValues[slot] = value;
+            channelPresent[slot] = true;
+            if (aggregator != null) {
+                aggregator.add(slot, value);
+            }
+            if (rollups != null) {
+                rollups.add(slot, value);
+            }
+        }
+    }
+
+    // Write the whole document into the buffer and return its length.  The tag is
+    // an already quoted and escaped JSON string, or null to leave it out.
+    // In aggregation mode this also closes the current window.  In sparse mode
+    // only the timestamps, the tag and whatever changed go in, except on keyframes.
+    // With a schedule, a window that isn't full only gets the sensors that are
+    // due, and never counts as a keyframe.
+    int encode(byte[] tagValue) {
+        boolean full = schedule == null || schedule.isFull();
+        boolean keyframe;
+        if (sparseFilter == null) {
+            keyframe = full;
+        } else if (full) {
+            keyframe = sparseFilter.startDocument(timestamp);
+        } else {
+            sparseFilter.startPartialDocument();
+            keyframe = false;
+        }
+        if (rollups != null) {
+            rollups.roll(timestamp);
+        }
+        length = 0;
+        writeByte('{');
+
+        writeRaw(FIELD_TIMESTAMP);
+        writeDate(timestamp);
+        writeByte(',');
+
+        if (keyframe) {
+            writeRaw(FIELD_START_TIME);
+            writeRaw(startTimeValue);
+            writeByte(',');
+        }
+
+        writeRaw(FIELD_LOG_DURATION);
+        writeLong((timestamp - startTime) / 1000);
+        writeByte(',');
+
+        // GPS and audio only go in the full documents
+        if (full) {
+            writeGpsAndAudio();
+        }
+
+        for (int i = 0; i < channelCount; i++) {
+            if (channelPresent[i] && isDue(i) && isChanged(i, channelValues[i])) {
+                writeRaw(registry.fieldName(i));
+                writeFloat(channelValues[i]);
+                writeByte(',');
+            }
+        }
+
+        if (aggregator != null) {
+            writeAggregates();
+        }
+
+        if (tagValue != null) {
+            writeRaw(FIELD_TAG);
+            writeRaw(tagValue);
+            writeByte(',');
+        }
+
+        // Lets queries pick out the complete documents
+        if (sparseFilter != null && keyframe) {
+            writeRaw(FIELD_KEYFRAME);
+            writeAscii("true");
+            writeByte(',');
+        }
+
+        // Swap the trailing comma for the closing brace
+        buffer[length - 1] = '}';
+        return length;
+    }
+
+    // GPS and audio as they were at the end of the window, the document goes
+    // out a while after that
+    private void writeGpsAndAudio() {
+        // Dump gps data into document if it's ready
+        GPSFix fix = gpsLogger.fixAt(timestamp);
+        if (fix != null && (sparseFilter == null || sparseFilter.gpsChanged(fix.updates))) {
+            if (gpsBlockFix != fix) {
+                encodeGpsBlock(fix);
+            }
+            writeRaw(gpsBlock, gpsBlockLength);
+        }
+
+        // The filtered position moves between fixes, so it goes in every full document
+        boolean filtered = gpsLogger.estimate(timestamp, filteredPosition);
+        if (filtered) {
+            writeRaw(FIELD_FILTERED_LOCATION);
+            writeLocation(filteredPosition[0], filteredPosition[1]);
+            writeByte(',');
+            writeDoubleField(FIELD_FILTERED_SPEED, filteredPosition[2]);
+        }
+
+        // Dump audio data, with every buffer since the last full document so
+        // short bangs still show up
+        audioLogger.readWindow(audio);
+        if (rollups != null) {
+            addRollupSamples(fix, filtered);
+        }
+        if (isChanged(channelCount + AUDIO_LOUDNESS, audio.loudness)) {
+            writeFloatField(FIELD_LOUDNESS, audio.loudness);
+        }
+        if (isChanged(channelCount + AUDIO_FREQUENCY, audio.frequency)) {
+            writeFloatField(FIELD_FREQUENCY, audio.frequency);
+        }
+        if (isChanged(channelCount + AUDIO_RMS, audio.rms)) {
+            writeFloatField(FIELD_AUDIO_RMS, audio.rms);
+        }
+        if (isChanged(channelCount + AUDIO_DBFS, audio.dbfs)) {
+            writeFloatField(FIELD_AUDIO_DBFS, audio.dbfs);
+        }
+        if (isChanged(channelCount + AUDIO_SPECTRAL_CENTROID, audio.spectralCentroid)) {
+            writeFloatField(FIELD_SPECTRAL_CENTROID, audio.spectralCentroid);
+        }
+        writeAudioBands();
+        if (audio.bufferCount > 0) {
+            writeFloatField(FIELD_LOUDNESS_PEAK, audio.loudnessPeak);
+            writeFloatField(FIELD_LOUDNESS_MEAN, audio.loudnessMean);
+            writeFloatField(FIELD_AUDIO_RMS_PEAK, audio.rmsPeak);
+            writeFloatField(FIELD_AUDIO_RMS_MEAN, audio.rmsMean);
+            writeFloatField(FIELD_AUDIO_DBFS_PEAK, audio.dbfsPeak);
+            writeRaw(FIELD_AUDIO_BUFFERS);
+            writeLong(audio.bufferCount);
+            writeByte(',');
+        }
+    }
+
+    // Audio and GPS only change once per document, so they're sampled here
+    private void addRollupSamples(GPSFix fix, boolean filtered) {
+        rollups.add(channelCount + AUDIO_LOUDNESS, audio.loudness);
+        rollups.add(channelCount + AUDIO_FREQUENCY, audio.frequency);
+        rollups.add(channelCount + AUDIO_RMS, audio.rms);
+        rollups.add(channelCount + AUDIO_DBFS, audio.dbfs);
+        rollups.add(channelCount + AUDIO_SPECTRAL_CENTROID, audio.spectralCentroid);
+        for (int i = 0; i < rollupBandCount && i < audio.bandCount; i++) {
+            rollups.add(channelCount + AUDIO_BANDS + i, audio.bandLevels[i]);
+        }
+        int gps = channelCount + AUDIO_BANDS + rollupBandCount;
+        if (fix != null) {
+            rollups.add(gps + GPS_SPEED, fix.speed);
+            rollups.add(gps + GPS_ALTITUDE, (float) fix.altitude);
+            rollups.add(gps + GPS_ACCURACY, fix.accuracy);
+            rollups.add(gps + GPS_ACCELERATION, fix.acceleration);
+        }
+        if (filtered) {
+            rollups.add(gps + GPS_FILTERED_SPEED, (float) filteredPosition[2]);
+        }
+        rollups.documentDone();
+    }
+
+    // Write the next finished rollup bucket into the buffer and return its
+    // length, or 0 if there isn't one.  Call after the document has been taken,
+    // this reuses its buffer.
+    int encodeRollup(byte[] tagValue) {
+        int level = rollups == null ? -1 : rollups.nextFinished();
+        if (level < 0) {
+            return 0;
+        }
+        rollupStart = rollups.start(level);
+        rollupSeconds = rollups.seconds(level);
+        length = 0;
+        writeByte('{');
+
+        writeRaw(FIELD_TIMESTAMP);
+        writeDate(rollupStart);
+        writeByte(',');
+        writeRaw(FIELD_METRIC_TYPE);
+        writeString("rollup");
+        writeByte(',');
+        writeRaw(FIELD_ROLLUP_SECONDS);
+        writeLong(rollupSeconds);
+        writeByte(',');
+        writeRaw(FIELD_ROLLUP_DOCUMENTS);
+        writeLong(rollups.documents(level));
+        writeByte(',');
+
+        // Where we were at the end of the bucket is close enough for a map
+        GPSFix fix = gpsLogger.fixAt(timestamp);
+        if (fix != null) {
+            writeRaw(FIELD_LOCATION);
+            writeLocation(fix.lat, fix.lon);
+            writeByte(',');
+        }
+
+        ChannelAggregator stats = rollups.stats(level);
+        for (int i = 0; i < rollups.fieldCount(); i++) {
+            if (stats.count(i) > 0) {
+                writeFloatField(rollups.statFieldName(i, SensorRegistry.STAT_MIN), stats.min(i));
+                writeFloatField(rollups.statFieldName(i, SensorRegistry.STAT_MAX), stats.max(i));
+                writeFloatField(rollups.statFieldName(i, SensorRegistry.STAT_MEAN), stats.mean(i));
+                writeFloatField(rollups.statFieldName(i, SensorRegistry.STAT_STDDEV), stats.stddev(i));
+                writeRaw(rollups.statFieldName(i, SensorRegistry.STAT_COUNT));
+                writeLong(stats.count(i));
+                writeByte(',');
+            }
+        }
+
+        if (tagValue != null) {
+            writeRaw(FIELD_TAG);
+            writeRaw(tagValue);
+            writeByte(',');
+        }
+        rollups.sent(level);
+
+        buffer[length - 1] = '}';
+        return length;
+    }
+
+    // Always true without a schedule
+    private boolean isDue(int slot) {
+        return schedule == null || schedule.isDue(slot / SensorRegistry.MAX_VALUES);
+    }
+
+    // Always true outside sparse mode
+    private boolean isChanged(int field, float value) {
+        return sparseFilter == null || sparseFilter.changed(field, value);
+    }
+
+    // The encoded document lives here until the next encode()
+    byte[] buffer() {
+        return buffer;
+    }
+
+    // Encode the GPS fields into their own buffer, then point the writer back at the document
+    private void encodeGpsBlock(GPSFix fix) {
+        byte[] document = buffer;
+        int documentLength = length;
+        buffer = gpsBlock;
+        length = 0;
+
+        writeRaw(FIELD_LOCATION);
+        writeLocation(fix.lat, fix.lon);
+        writeByte(',');
+        writeRaw(FIELD_START_LOCATION);
+        writeLocation(fix.latStart, fix.lonStart);
+        writeByte(',');
+        writeDoubleField(FIELD_ALTITUDE, fix.altitude);
+        writeFloatField(FIELD_ACCURACY, fix.accuracy);
+        writeFloatField(FIELD_BEARING, fix.bearing);
+        if (fix.provider != null) {
+            writeRaw(FIELD_GPS_PROVIDER);
+            writeString(fix.provider);
+            writeByte(',');
+        }
+        writeFloatField(FIELD_SPEED, fix.speed);
+        writeFloatField(FIELD_SPEED_KMH, fix.speedKMH);
+        writeFloatField(FIELD_SPEED_MPH, fix.speedMPH);
+        writeRaw(FIELD_GPS_UPDATES);
+        writeLong(fix.updates);
+        writeByte(',');
+        writeFloatField(FIELD_ACCELERATION, fix.acceleration);
+        writeFloatField(FIELD_ACCELERATION_KMH, fix.accelerationKMH);
+        writeFloatField(FIELD_ACCELERATION_MPH, fix.accelerationMPH);
+        writeDoubleField(FIELD_DISTANCE_METRES, fix.distanceMetres);
+        writeDoubleField(FIELD_DISTANCE_FEET, fix.distanceFeet);
+        writeDoubleField(FIELD_TOTAL_DISTANCE_METRES, fix.totalDistance);
+        writeDoubleField(FIELD_TOTAL_DISTANCE_KM, fix.totalDistanceKM);
+        writeDoubleField(FIELD_TOTAL_DISTANCE_MILES, fix.totalDistanceMiles);
+
+        gpsBlock = buffer;
+        gpsBlockLength = length;
+        gpsBlockFix = fix;
+        buffer = document;
+        length = documentLength;
+    }
+
+    // Statistics for every due channel that reported during its window, then
+    // start a new one for those
+    private void writeAggregates() {
+        for (int i = 0; i < channelCount; i++) {
+            if (!isDue(i)) {
+                continue;
+            }
+            if (aggregator.count(i) > 0) {
+                writeFloatField(registry.statFieldName(i, SensorRegistry.STAT_MIN), aggregator.min(i));
+                writeFloatField(registry.statFieldName(i, SensorRegistry.STAT_MAX), aggregator.max(i));
+                writeFloatField(registry.statFieldName(i, SensorRegistry.STAT_MEAN), aggregator.mean(i));
+                writeFloatField(registry.statFieldName(i, SensorRegistry.STAT_STDDEV), aggregator.stddev(i));
+                writeRaw(registry.statFieldName(i, SensorRegistry.STAT_COUNT));
+                writeLong(aggregator.count(i));
+                writeByte(',');
+            }
+            aggregator.reset(i);
+        }
+    }
+
+    // audio_band_1000hz and friends, in dBFS
+    private void writeAudioBands() {
+        int[] centers = audio.bandCenters;
+        float[] levels = audio.bandLevels;
+        if (centers != bandCenters) {
+            bandFieldNames = new byte[centers.length][];
+            for (int i = 0; i < centers.length; i++) {
+                String name = "audio_band_" + centers[i] + "hz";
+                bandFieldNames[i] = fieldName(name);
+                if (sparseFilter != null) {
+                    sparseFilter.defineField(channelCount + AUDIO_BANDS + i, name);
+                }
+            }
+            bandCenters = centers;
+        }
+        for (int i = 0; i < bandFieldNames.length && i < audio.bandCount; i++) {
+            if (isChanged(channelCount + AUDIO_BANDS + i, levels[i])) {
+                writeFloatField(bandFieldNames[i], levels[i]);
+            }
+        }
+    }
+
+    // "lat,long" the same way string concatenation writes doubles
+    private void writeLocation(double lat, double lon) {
+        writeByte('"');
+        writeShortest(lat, false, true);
+        writeByte(',');
+        writeShortest(lon, false, true);
+        writeByte('"');
+    }
+
+    private void writeDoubleField(byte[] name, double value) {
+        if (isFinite(value)) {
+            writeRaw(name);
+            writeDouble(value);
+            writeByte(',');
+        }
+    }
+
+    private void writeFloatField(byte[] name, float value) {
+        if (isFinite(value)) {
+            writeRaw(name);
+            writeFloat(value);
+            writeByte(',');
+        }
+    }
+
+    private void writeDate(long millis) {
+        ensureCapacity(length + TimestampFormatter.TIMESTAMP_LENGTH + 2);
+        buffer[length++] = '"';
+        length += timestampFormatter.write(millis, buffer, length);
+        buffer[length++] = '"';
+    }
+
+    // Whole numbers go out as longs, just like JSONObject.numberToString
+    void writeDouble(double value) {
+        if (value == 0 && 1 / value < 0) {
+            writeByte('-');
+            writeByte('0');
+        } else if (value == (double) (long) value) {
+            writeLong((long) value);
+        } else {
+            writeShortest(value, false, false);
+        }
+    }
+
+    void writeFloat(float value) {
+        if (value == 0 && 1 / value < 0) {
+            writeByte('-');
+            writeByte('0');
+        } else if (value == (float) (long) value) {
+            writeLong((long) value);
+        } else {
+            writeShortest(value, true, false);
+        }
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        ensureCapacity(length + 19);
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    // Find the fewest significant digits that read back as the same value, then lay
+    // them out the way Float.toString / Double.toString do.  NaN and Infinity
+    // aren't JSON, anything that gets this far without a check goes out as null.
+    private void writeShortest(double value, boolean isFloat, boolean allowWhole) {
+        if (!isFinite(value)) {
+            writeAscii("null");
+            return;
+        }
+        if (allowWhole && value == (double) (long) value && Math.abs(value) < 1e7) {
+            // Double.toString always shows a fraction
+            writeLong((long) value);
+            writeByte('.');
+            writeByte('0');
+            return;
+        }
+
+        double abs = Math.abs(value);
+        int exponent = (int) Math.floor(Math.log10(abs));
+        int maxDigits = isFloat ? MAX_FLOAT_DIGITS : MAX_DOUBLE_DIGITS;
+
+        for (int precision = 1; precision <= maxDigits; precision++) {
+            int scale = precision - 1 - exponent;
+            if (scale > 22 || scale < -22) {
+                break;
+            }
+
+            long digits = Math.round(scale >= 0 ? abs * POW10[scale] : abs / POW10[-scale]);
+            if (!roundTrips(digits, scale, abs, isFloat)) {
+                continue;
+            }
+
+            // When a neighbour also reads back the same, take whichever is closest,
+            // and the even one on a tie
+            double error = Math.abs(decimalValue(digits, scale) - abs);
+            for (long neighbour = digits - 1; neighbour <= digits + 1; neighbour += 2) {
+                if (neighbour > 0 && roundTrips(neighbour, scale, abs, isFloat)) {
+                    double neighbourError = Math.abs(decimalValue(neighbour, scale) - abs);
+                    if (neighbourError < error || (neighbourError == error && neighbour % 2 == 0)) {
+                        digits = neighbour;
+                        error = neighbourError;
+                    }
+                }
+            }
+
+            // Work the layout out from the digits themselves, log10 can be off by one
+            int digitCount = 1;
+            for (long d = digits; d >= 10; d /= 10) {
+                digitCount++;
+            }
+            int decimalExponent = digitCount - 1 - scale;
+            while (digitCount > 1 && digits % 10 == 0) {
+                digits /= 10;
+                digitCount--;
+            }
+
+            if (value < 0) {
+                writeByte('-');
+            }
+            writeDecimal(digits, digitCount, decimalExponent);
+            return;
+        }
+
+        // Out of our depth, let the JDK do it
+        writeAscii(isFloat ? Float.toString((float) value) : Double.toString(value));
+    }
+
+    private static double decimalValue(long digits, int scale) {
+        return scale >= 0 ? digits / POW10[scale] : digits * POW10[-scale];
+    }
+
+    private static boolean roundTrips(long digits, int scale, double value, boolean isFloat) {
+        double candidate = decimalValue(digits, scale);
+        return isFloat ? (float) candidate == (float) value : candidate == value;
+    }
+
+    // digits is d1 d2 ... dn, the value is d1.d2...dn x 10^exponent
+    private void writeDecimal(long digits, int digitCount, int exponent) {
+        for (int i = digitCount - 1; i >= 0; i--) {
+            digitScratch[i] = (byte) ('0' + digits % 10);
+            digits /= 10;
+        }
+
+        ensureCapacity(length + digitCount + 32);
+        if (exponent >= -3 && exponent < 7) {
+            if (exponent >= 0) {
+                // Integer part, padded with zeros if we ran out of digits
+                for (int i = 0; i <= exponent; i++) {
+                    buffer[length++] = i < digitCount ? digitScratch[i] : (byte) '0';
+                }
+                buffer[length++] = '.';
+                if (exponent + 1 >= digitCount) {
+                    buffer[length++] = '0';
+                } else {
+                    for (int i = exponent + 1; i < digitCount; i++) {
+                        buffer[length++] = digitScratch[i];
+                    }
+                }
+            } else {
+                buffer[length++] = '0';
+                buffer[length++] = '.';
+                for (int i = 0; i < -exponent - 1; i++) {
+                    buffer[length++] = '0';
+                }
+                for (int i = 0; i < digitCount; i++) {
+                    buffer[length++] = digitScratch[i];
+                }
+            }
+        } else {
+            // Computerized scientific notation, d.dddE-n
+            buffer[length++] = digitScratch[0];
+            buffer[length++] = '.';
+            if (digitCount == 1) {
+                buffer[length++] = '0';
+            }
+            for (int i = 1; i < digitCount; i++) {
+                buffer[length++] = digitScratch[i];
+            }
+            buffer[length++] = 'E';
+            writeLong(exponent);
+        }
+    }
+
+    // Quoted JSON string with the same escaping JSONStringer uses
+    void writeString(String value) {
+        ensureCapacity(length + value.length() * 6 + 2);
+        buffer[length++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer[length++] = '\\';
+                    buffer[length++] = (byte) c;
+                    break;
+                case '\t':
+                    buffer[length++] = '\\';
+                    buffer[length++] = 't';
+                    break;
+                case '\b':
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'b';
+                    break;
+                case '\n':
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'n';
+                    break;
+                case '\r':
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'r';
+                    break;
+                case '\f':
+                    buffer[length++] = '\\';
+                    buffer[length++] = 'f';
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        buffer[length++] = '\\';
+                        buffer[length++] = 'u';
+                        buffer[length++] = HEX[(c >> 12) & 0xF];
+                        buffer[length++] = HEX[(c >> 8) & 0xF];
+                        buffer[length++] = HEX[(c >> 4) & 0xF];
+                        buffer[length++] = HEX[c & 0xF];
+                    } else if (c < 0x80) {
+                        buffer[length++] = (byte) c;
+                    } else if (c < 0x800) {
+                        buffer[length++] = (byte) (0xC0 | (c >> 6));
+                        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                    } else {
+                        buffer[length++] = (byte) (0xE0 | (c >> 12));
+                        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                    }
+            }
+        }
+        buffer[length++] = '"';
+    }
+
+    private void writeAscii(String value) {
+        ensureCapacity(length + value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeRaw(byte[] bytes) {
+        writeRaw(bytes, bytes.length);
+    }
+
+    private void writeRaw(byte[] bytes, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(bytes, 0, buffer, length, count);
+        length += count;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    // "name": as bytes, with the name escaped like any other JSON string
+    static byte[] fieldName(String name) {
+        SensorDocument scratch = new SensorDocument(null, null, null);
+        scratch.writeString(name);
+        scratch.writeByte(':');
+        byte[] encoded = new byte[scratch.length];
+        System.arraycopy(scratch.buffer, 0, encoded, 0, scratch.length);
+        return encoded;
+    }
+
+    // Quoted and escaped JSON string value, for things like the tag
+    static byte[] stringValue(String value) {
+        SensorDocument scratch = new SensorDocument(null, null, null);
+        scratch.writeString(value);
+        byte[] encoded = new byte[scratch.length];
+        System.arraycopy(scratch.buffer, 0, encoded, 0, scratch.length);
+        return encoded;
+    }
+}
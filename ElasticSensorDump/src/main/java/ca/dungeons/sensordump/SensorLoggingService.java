@@ -0,0 +1,482 @@
+package ca.dungeons.sensordump;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.hardware.SensorManager;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+// Does the actual logging, in the foreground so it keeps going with the screen
+// off.  The activity binds to it to show progress and to start and stop it.
+public class SensorLoggingService extends Service {
+
+    interface Listener {
+        // Called on the ingest thread after each document goes to the sinks
+        void onDocumentIndexed();
+    }
+
+    static final String EXTRA_REFRESH_TIME = "refresh_time";
+
+    private static final String CHANNEL_ID = "logging";
+    private static final int NOTIFICATION_ID = 1;
+
+    // How long the sensor hub may hold on to readings before handing them over
+    private static int DEFAULT_SENSOR_BATCH_MS = 2000;
+
+    // Full document at least this often in sparse mode
+    private static int DEFAULT_KEYFRAME_SECONDS = 10;
+
+    // Room for documents waiting on each sink
+    private static int DEFAULT_SINK_QUEUE_KB = 1024;
+
+    // Local NDJSON files and UDP datagrams
+    private static int DEFAULT_FILE_SINK_MAX_MB = 16;
+    private static int DEFAULT_FILE_SINK_FILES = 8;
+    private static int DEFAULT_UDP_PORT = 5000;
+    private static int DEFAULT_UDP_MAX_DATAGRAM = 1400;
+
+    // Trigger bursts: document interval, how long they last and how far back they start
+    private static int DEFAULT_TRIGGER_BURST_MS = 50;
+    private static int DEFAULT_TRIGGER_BURST_SECONDS = 10;
+    private static int DEFAULT_TRIGGER_PRETRIGGER_MS = 2000;
+
+    class LocalBinder extends Binder {
+        SensorLoggingService getService() {
+            return SensorLoggingService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    private GPSLogger gpsLogger = new GPSLogger();
+    private AudioLogger audioLogger = new AudioLogger();
+    private ElasticSearchIndexer esIndexer;
+    private ElasticSearchIndexer secondaryIndexer;
+    private DocumentFanout fanout;
+    private Metrics metrics;
+
+    private SensorRegistry sensorRegistry;
+    private SensorDocument sensorDocument;
+    private SensorPipeline sensorPipeline;
+    private LocationManager locationManager;
+    private PowerManager.WakeLock wakeLock;
+    private BroadcastReceiver connectivityReceiver;
+
+    private SessionRecorder recorder;
+    private SessionReplayer replayer;
+    private Thread replayThread;
+
+    // Tears the last session down, see stopLogging()
+    private Thread stopThread;
+
+    private volatile Listener listener;
+
+    // Live or replayed, every document is passed on to whoever is listening
+    private final SensorPipeline.Listener pipelineListener = new SensorPipeline.Listener() {
+        @Override
+        public void onDocumentIndexed() {
+            Listener current = listener;
+            if (current != null) {
+                current.onDocumentIndexed();
+            }
+        }
+    };
+    private boolean logging = false;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Get a list of all available sensors on the device and work out their field names once
+        SensorManager sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        sensorRegistry = SensorRegistry.forDevice(sensorManager);
+        sensorDocument = new SensorDocument(sensorRegistry, gpsLogger, audioLogger);
+
+        sensorPipeline = new SensorPipeline(sensorManager, sensorRegistry, sensorDocument, gpsLogger, audioLogger,
+                pipelineListener);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (!logging) {
+            int refreshTime = intent == null ? 250 : intent.getIntExtra(EXTRA_REFRESH_TIME, 250);
+            startLogging(refreshTime);
+        }
+
+        // If we get killed, the user has to start again.  A restart would begin a new session anyway.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopLogging();
+        super.onDestroy();
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.Logging_Channel), NotificationManager.IMPORTANCE_LOW);
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(channel);
+        }
+
+        Intent activityIntent = new Intent(this, MainActivity.class);
+        activityIntent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, activityIntent, 0);
+
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_elastic_logo)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.Logging_Notification))
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .setContentIntent(contentIntent)
+                .build();
+    }
+
+    // Go through the sensor array and light them all up
+    private void startLogging(int refreshTime) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+
+        // The sensors, document and loggers are shared with the last session,
+        // which has to be finished with them.  Only waits if it was stopped a
+        // moment ago.
+        if (stopThread != null) {
+            try {
+                stopThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopThread = null;
+        }
+
+        // The screen can go off, the CPU has to keep going to drain the sensor
+        // batches and send documents
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "sensordump:logging");
+        wakeLock.acquire();
+
+        logging = true;
+
+        // Play a recorded session back instead of reading the sensors
+        String replayFile = sharedPrefs.getString("replay_file", "").trim();
+        if (replayFile.length() > 0) {
+            startReplay(sharedPrefs, new File(recordingsDir(), replayFile));
+            return;
+        }
+
+        // Octave bands for the audio analysis, the document needs them for its rollup fields
+        audioLogger.setBands(AudioLogger.parseBands(sharedPrefs.getString("audio_bands", AudioLogger.DEFAULT_BANDS)));
+
+        long startTime = System.currentTimeMillis();
+        // Smooth the GPS track, with the accelerometer filling in between fixes
+        gpsLogger.setFiltering(sharedPrefs.getBoolean("gps_filter", false));
+        gpsLogger.resetGPS();
+        metrics = new Metrics(sensorRegistry);
+        fanout = buildFanout(sharedPrefs, sensorRegistry, startTime, false);
+        configureDocument(sensorDocument, sharedPrefs);
+        watchConnectivity();
+
+        // Keep everything that goes into the documents, to replay later
+        if (sharedPrefs.getBoolean("record_session", false)) {
+            File file = new File(recordingsDir(), "session-" + startTime + ".esdr");
+            try {
+                recorder = new SessionRecorder(file, sensorRegistry, gpsLogger, audioLogger, startTime, refreshTime);
+            } catch (IOException e) {
+                Log.v("Recorder Error", e.toString());
+            }
+        }
+
+        // Bind all sensors to the capture thread and start building documents.
+        // The sensor hub batches readings for up to the report latency.
+        // Each sensor can be switched off or given its own interval in the settings.
+        int sensorBatchMs = ElasticSearchIndexer.getIntPref(sharedPrefs, "sensor_batch_ms", DEFAULT_SENSOR_BATCH_MS);
+        EmissionSchedule schedule = EmissionSchedule.fromPreferences(sharedPrefs, sensorRegistry);
+        sensorDocument.setSchedule(schedule);
+
+        // Rules that switch to a burst of high-rate documents, the refresh time
+        // becomes the baseline in between
+        TriggerRules triggers = TriggerRules.compile(sharedPrefs.getString("trigger_rules", ""), sensorRegistry);
+        sensorPipeline.setTriggers(triggers,
+                ElasticSearchIndexer.getIntPref(sharedPrefs, "trigger_burst_ms", DEFAULT_TRIGGER_BURST_MS),
+                ElasticSearchIndexer.getIntPref(sharedPrefs, "trigger_burst_seconds", DEFAULT_TRIGGER_BURST_SECONDS) * 1000L,
+                ElasticSearchIndexer.getIntPref(sharedPrefs, "trigger_pretrigger_ms", DEFAULT_TRIGGER_PRETRIGGER_MS));
+        sensorPipeline.start(fanout, metrics, startTime, refreshTime, sensorBatchMs, recorder, schedule);
+
+        // The activity asks for permissions, we only use what we've been given
+        startAudio();
+        startGps();
+    }
+
+    // Rollups, aggregation and sparse documents, the same whether the readings
+    // are live or replayed.  The audio bands have to be set first.
+    private void configureDocument(SensorDocument document, SharedPreferences sharedPrefs) {
+        // Rollups go out whatever the link, full resolution only when it's not metered
+        document.setRollups(sharedPrefs.getBoolean("rollups", false));
+
+        // Summarise every reading in the window instead of just the last one
+        document.setAggregating(sharedPrefs.getBoolean("aggregate", false));
+
+        // Only send what changed, with a full keyframe every so often
+        if (sharedPrefs.getBoolean("sparse", false)) {
+            int keyframeSeconds = ElasticSearchIndexer.getIntPref(sharedPrefs, "sparse_keyframe_seconds", DEFAULT_KEYFRAME_SECONDS);
+            float epsilon = ElasticSearchIndexer.getFloatPref(sharedPrefs, "sparse_epsilon", 0f);
+            String epsilons = sharedPrefs.getString("sparse_epsilons", "");
+            document.setSparse(new SparseFilter(keyframeSeconds * 1000L, epsilon,
+                    SparseFilter.parseEpsilons(epsilons)));
+        } else {
+            document.setSparse(null);
+        }
+    }
+
+    // The recording brings its own sensor list and band layout, so it gets its
+    // own registry and document.  GPS, audio and the sensors stay off, the
+    // recording stands in for them.
+    private void startReplay(SharedPreferences sharedPrefs, File file) {
+        try {
+            replayer = new SessionReplayer(file);
+        } catch (IOException e) {
+            Log.v("Replay Error", e.toString());
+            stopLogging();
+            return;
+        }
+        audioLogger.setBands(replayer.bandCenters());
+        gpsLogger.setFiltering(sharedPrefs.getBoolean("gps_filter", false));
+        final SensorRegistry replayRegistry = replayer.registry();
+        final SensorDocument replayDocument = new SensorDocument(replayRegistry, gpsLogger, audioLogger);
+        metrics = new Metrics(replayRegistry);
+        fanout = buildFanout(sharedPrefs, replayRegistry, replayer.startTime(), true);
+        configureDocument(replayDocument, sharedPrefs);
+        watchConnectivity();
+
+        // 0 goes as fast as the sinks take it
+        final float speed = ElasticSearchIndexer.getFloatPref(sharedPrefs, "replay_speed", 0f);
+        final SessionReplayer session = replayer;
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                session.replay(replayDocument, gpsLogger, audioLogger, fanout, metrics, speed, pipelineListener);
+            }
+        }, "session-replay");
+        replayThread.start();
+    }
+
+    // Everywhere the documents go.  The primary cluster always, the rest once
+    // they've been set up.  A replay waits for full queues instead of dropping.
+    private DocumentFanout buildFanout(SharedPreferences sharedPrefs, SensorRegistry registry, long startTime,
+                                       boolean replay) {
+        // Document ids start with the phone and the session, so the same session
+        // sent twice, or replayed, always gets the same ids
+        String sessionId = deviceId(sharedPrefs) + "-" + startTime;
+
+        List<DocumentSink> sinks = new ArrayList<>();
+        esIndexer = new ElasticSearchIndexer(getFilesDir(), metrics, "", sessionId);
+        esIndexer.updateURL(sharedPrefs);
+        sinks.add(esIndexer);
+
+        // A second cluster, with its own counters and spools
+        if (sharedPrefs.getString("secondary_host", "").trim().length() > 0) {
+            secondaryIndexer = new ElasticSearchIndexer(new File(getFilesDir(), "secondary"),
+                    new Metrics(registry), "secondary_", sessionId);
+            secondaryIndexer.updateURL(sharedPrefs);
+            sinks.add(secondaryIndexer);
+        }
+
+        // External app storage, so the files can be copied off over USB
+        if (sharedPrefs.getBoolean("file_sink", false)) {
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            long maxFileBytes = ElasticSearchIndexer.getIntPref(sharedPrefs, "file_sink_max_mb", DEFAULT_FILE_SINK_MAX_MB) * 1024L * 1024L;
+            int maxFiles = ElasticSearchIndexer.getIntPref(sharedPrefs, "file_sink_files", DEFAULT_FILE_SINK_FILES);
+            sinks.add(new FileSink(new File(dir, "ndjson"), maxFileBytes, maxFiles));
+        }
+
+        String udpHost = sharedPrefs.getString("udp_host", "").trim();
+        if (udpHost.length() > 0) {
+            sinks.add(new UdpSink(udpHost,
+                    ElasticSearchIndexer.getIntPref(sharedPrefs, "udp_port", DEFAULT_UDP_PORT),
+                    ElasticSearchIndexer.getIntPref(sharedPrefs, "udp_max_datagram", DEFAULT_UDP_MAX_DATAGRAM)));
+        }
+
+        int queueKB = ElasticSearchIndexer.getIntPref(sharedPrefs, "sink_queue_kb", DEFAULT_SINK_QUEUE_KB);
+        DocumentFanout documentFanout = new DocumentFanout(sinks, sharedPrefs.getString("tag", "phone_data"),
+                queueKB * 1024, replay);
+        documentFanout.start();
+        return documentFanout;
+    }
+
+    // Random, made up the first time we run and kept from then on
+    private static String deviceId(SharedPreferences sharedPrefs) {
+        String deviceId = sharedPrefs.getString("device_id", "");
+        if (deviceId.length() == 0) {
+            deviceId = Long.toHexString(new SecureRandom().nextLong());
+            sharedPrefs.edit().putString("device_id", deviceId).apply();
+        }
+        return deviceId;
+    }
+
+    private File recordingsDir() {
+        return new File(getFilesDir(), "recordings");
+    }
+
+    // Shut down the sensors by stopping listening to them.  The last windows,
+    // the replay and the sinks each get a moment to finish, seconds all told,
+    // so that happens on a thread of its own rather than the caller's, which
+    // is usually the UI thread.
+    void stopLogging() {
+        if (!logging) {
+            return;
+        }
+        logging = false;
+        stopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                finishLogging();
+            }
+        }, "session-stop");
+        stopThread.start();
+    }
+
+    private void finishLogging() {
+        sensorPipeline.stop();
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        if (replayer != null) {
+            replayer.stop();
+            replayThread.interrupt();
+            try {
+                replayThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replayer = null;
+            replayThread = null;
+        }
+        audioLogger.stopRecording();
+        if (fanout != null) {
+            fanout.stop();
+            fanout = null;
+        }
+        secondaryIndexer = null;
+        if (connectivityReceiver != null) {
+            unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+        }
+
+        // Disable GPS if we allowed it.
+        if (locationManager != null) {
+            try {
+                locationManager.removeUpdates(gpsLogger);
+            } catch (Exception e) {
+                Log.v("GPS Error", "GPS could not unbind");
+            }
+            locationManager = null;
+        }
+
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // Tell the indexer when we're on a metered link, or none at all
+    private void watchConnectivity() {
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+                boolean metered = network == null || !network.isConnected()
+                        || connectivityManager.isActiveNetworkMetered();
+                esIndexer.setMetered(metered);
+                if (secondaryIndexer != null) {
+                    secondaryIndexer.setMetered(metered);
+                }
+            }
+        };
+
+        // Sticky, so this also tells us where we are right now
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    // Record audio if we're allowed
+    void startAudio() {
+        if (logging && ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED) {
+            audioLogger.startRecording();
+        }
+    }
+
+    // Light up the GPS if we're allowed
+    void startGps() {
+        if (logging && locationManager == null
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, gpsLogger);
+        }
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void setRefreshTime(int refreshTime) {
+        sensorPipeline.setRefreshTime(refreshTime);
+    }
+
+    boolean isLogging() {
+        return logging;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    GPSLogger gpsLogger() {
+        return gpsLogger;
+    }
+
+    SensorRingBuffer ringBuffer() {
+        return sensorPipeline.ringBuffer();
+    }
+}
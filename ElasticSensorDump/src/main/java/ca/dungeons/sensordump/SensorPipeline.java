@@ -0,0 +1,476 @@
+package ca.dungeons.sensordump;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Sensor capture and document assembly, kept off the UI thread.
+//
+// Sensor events are delivered on their own HandlerThread and copied as
+// primitives into a ring buffer.  A separate ingest thread drains the ring into
+// the SensorDocument and hands a document to the sinks whenever the emission
+// schedule has something due: the full document every refresh period, and in
+// between that any sensor on a faster clock of its own.
+//
+// Sensors can be registered with a max report latency so the sensor hub batches
+// readings in its FIFO and hands them over in bursts.  Readings are placed in
+// documents by their own hardware timestamp rather than when they arrive, and a
+// document only goes out once every sensor has had the report latency to
+// deliver its readings for that window.
+//
+// With trigger rules every reading, and the audio and GPS as often as the
+// ingest thread comes round, is checked against the rules.  Documents are held
+// back by the pre-trigger time, so when a rule fires the burst of high-rate
+// documents can start that far back, from readings still waiting in
+// PendingReadings.  Afterwards it drops back to the refresh time.  Only the
+// sensors the rules look at are sampled at the burst rate all the time, the
+// rest are sped up for the burst, so the pre-trigger part of a burst has
+// their normal rate.
+//
+// Linear acceleration is also rotated into east/north with the latest rotation
+// vector and handed to the GPS logger, for its position filter.
+//
+// Stopping empties the sensor hub's FIFO and sends every window up to then,
+// including the ones still being held back.
+class SensorPipeline implements SensorEventListener2 {
+
+    interface Listener {
+        // Called on the ingest thread after each document goes to the sinks
+        void onDocumentIndexed();
+    }
+
+    private static final int RING_CAPACITY = 4096;
+
+    // Readings held back for their window, enough for the pre-trigger history
+    private static final int PENDING_CAPACITY = 8192;
+
+    // How often the ingest thread empties the ring between documents
+    private static final long DRAIN_INTERVAL = 20;
+
+    // Hardware timestamps this far from where we expect them come from a sensor
+    // that doesn't count in elapsed realtime, those get their arrival time instead
+    private static final long MAX_CLOCK_SKEW = 10000;
+
+    // After a long gap don't churn out every window we missed
+    private static final long MAX_CATCH_UP = 60000;
+
+    // Longest refresh time the seek bar offers, the audio buffers of a full
+    // window have to wait at least this long
+    private static final int LONGEST_REFRESH = 1000;
+
+    // On top of the report latency, how long stop() gives the ingest thread to
+    // send the last windows
+    private static final long STOP_MARGIN = 1000;
+
+    private final SensorManager sensorManager;
+    private final SensorRegistry sensorRegistry;
+    private final SensorDocument sensorDocument;
+    private final SensorRingBuffer ringBuffer = new SensorRingBuffer(RING_CAPACITY);
+    private final PendingReadings pendingReadings = new PendingReadings(PENDING_CAPACITY);
+    private final Listener listener;
+    private final GPSLogger gpsLogger;
+    private final AudioLogger audioLogger;
+
+    // Registry indexes of the sensors the position filter uses, -1 if missing
+    private final int rotationIndex;
+    private final int linearAccelerationIndex;
+
+    // Latest device orientation as a unit quaternion x, y, z, w
+    private final float[] rotation = new float[4];
+    private boolean hasRotation = false;
+
+    private HandlerThread captureThread;
+    private Handler captureHandler;
+    private Thread ingestThread;
+    private volatile boolean isRunning = false;
+    private volatile int sensorRefreshTime;
+    private int reportLatency;
+    private long sessionStart;
+    private DocumentFanout fanout;
+    private Metrics metrics;
+    private SessionRecorder recorder;
+    private EmissionSchedule schedule;
+
+    // Optional trigger rules and the burst they start
+    private TriggerRules triggers;
+    private int burstInterval;
+    private long burstMillis;
+    private long preTrigger;
+    private final AudioLogger.Levels triggerAudio = new AudioLogger.Levels();
+    private GPSFix lastTriggerFix;
+
+    // Sensors that only follow the refresh period are sampled at the burst
+    // rate while a burst runs, and slowed down again once it's over
+    private boolean samplingRaised;
+
+    // Wall clock minus the elapsed realtime clock SensorEvent.timestamp counts in, in ns
+    private long bootTimeOffset;
+
+    // Counts down as each sensor's FIFO has been emptied on the way out
+    private volatile CountDownLatch flushes;
+
+    SensorPipeline(SensorManager sensorManager, SensorRegistry sensorRegistry,
+                   SensorDocument sensorDocument, GPSLogger gpsLogger, AudioLogger audioLogger,
+                   Listener listener) {
+        this.sensorManager = sensorManager;
+        this.sensorRegistry = sensorRegistry;
+        this.sensorDocument = sensorDocument;
+        this.gpsLogger = gpsLogger;
+        this.audioLogger = audioLogger;
+        this.listener = listener;
+        rotationIndex = sensorRegistry.sensorIndex(Sensor.TYPE_ROTATION_VECTOR);
+        linearAccelerationIndex = sensorRegistry.sensorIndex(Sensor.TYPE_LINEAR_ACCELERATION);
+    }
+
+    // Rules that start a burst of documents every burstIntervalMillis, lasting
+    // burstMillis and reaching back preTriggerMillis, or null for none.  Takes
+    // effect on the next start().
+    void setTriggers(TriggerRules rules, int burstIntervalMillis, long burstDurationMillis, long preTriggerMillis) {
+        triggers = rules;
+        burstInterval = Math.max(EmissionSchedule.MIN_INTERVAL, burstIntervalMillis);
+        burstMillis = Math.max(0, burstDurationMillis);
+        preTrigger = Math.max(0, preTriggerMillis);
+    }
+
+    // reportLatencyMillis of 0 delivers every event as it happens, like before.
+    // sessionRecorder can be null when the session isn't being recorded.
+    // Sensors the schedule has switched off are never registered.
+    void start(DocumentFanout documentFanout, Metrics sessionMetrics, long startTime, int refreshTime,
+               int reportLatencyMillis, SessionRecorder sessionRecorder, EmissionSchedule emissionSchedule) {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        fanout = documentFanout;
+        metrics = sessionMetrics;
+        recorder = sessionRecorder;
+        schedule = emissionSchedule;
+        sensorRefreshTime = refreshTime;
+        reportLatency = Math.max(0, reportLatencyMillis);
+        sessionStart = startTime;
+        hasRotation = false;
+        lastTriggerFix = null;
+        sensorDocument.reset(startTime);
+
+        // Audio buffers wait for their full window, and then the hold back
+        audioLogger.setLongestWait(Math.max(LONGEST_REFRESH, refreshTime) + holdBack());
+
+        // Bind the sensors we want to the capture thread
+        captureThread = new HandlerThread("sensor-capture");
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+        samplingRaised = false;
+        for (int i = 0; i < sensorRegistry.sensorCount(); i++) {
+            if (schedule.isEnabled(i)) {
+                registerSensor(i, samplingPeriod(i, false));
+            }
+        }
+
+        ingestThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ingest();
+            }
+        }, "sensor-ingest");
+        ingestThread.start();
+    }
+
+    // A sensor with an interval of its own is sampled that often, there's no
+    // point in anything faster.  One a trigger rule looks at goes at the burst
+    // rate all along so the rule sees every change, the rest only during a
+    // burst, which has to have something new to put in its documents.
+    private int samplingPeriod(int sensorIndex, boolean bursting) {
+        int interval = schedule.interval(sensorIndex);
+        if (interval > 0) {
+            return interval * 1000;
+        }
+        if (triggers != null && (bursting || triggers.references(sensorIndex))) {
+            return burstInterval * 1000;
+        }
+        return SensorManager.SENSOR_DELAY_NORMAL;
+    }
+
+    private void registerSensor(int sensorIndex, int samplingPeriod) {
+        if (reportLatency > 0) {
+            sensorManager.registerListener(this, sensorRegistry.sensor(sensorIndex),
+                    samplingPeriod, reportLatency * 1000, captureHandler);
+        } else {
+            sensorManager.registerListener(this, sensorRegistry.sensor(sensorIndex),
+                    samplingPeriod, captureHandler);
+        }
+    }
+
+    // Move the refresh period sensors to the burst rate or back.  A sensor
+    // can't be registered twice, so each one is taken off and put back.
+    private void setSamplingRaised(boolean raised) {
+        if (raised == samplingRaised || !isRunning) {
+            return;
+        }
+        samplingRaised = raised;
+        for (int i = 0; i < sensorRegistry.sensorCount(); i++) {
+            if (!schedule.isEnabled(i)) {
+                continue;
+            }
+            int samplingPeriod = samplingPeriod(i, raised);
+            if (samplingPeriod != samplingPeriod(i, !raised)) {
+                sensorManager.unregisterListener(this, sensorRegistry.sensor(i));
+                registerSensor(i, samplingPeriod);
+            }
+        }
+    }
+
+    // Waits for the ingest thread to send the last windows, which can take the
+    // report latency and then some, so not on the UI thread
+    void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+
+        // The sensors stay registered until the ingest thread has flushed them.
+        // It also moves sensors between rates, so it has to be done first.
+        try {
+            ingestThread.join(reportLatency + STOP_MARGIN);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sensorManager.unregisterListener(this);
+        captureThread.quitSafely();
+    }
+
+    void setRefreshTime(int refreshTime) {
+        sensorRefreshTime = refreshTime;
+    }
+
+    @Override
+    public final void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // I don't really care about this yet.
+    }
+
+    // Capture thread: everything that was in this sensor's FIFO is in the ring
+    @Override
+    public final void onFlushCompleted(Sensor sensor) {
+        CountDownLatch latch = flushes;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    // Capture thread: copy the readings and get out of the way
+    @Override
+    public final void onSensorChanged(SensorEvent event) {
+        int sensorIndex = sensorRegistry.sensorIndex(event.sensor.getType());
+        if (sensorIndex >= 0) {
+            metrics.sensorEvent(sensorIndex);
+            ringBuffer.offer(sensorIndex, event.timestamp, event.values);
+        }
+    }
+
+    // Ingest thread: sort readings into their windows, and send a document for
+    // every window that can't get any more readings
+    private void ingest() {
+        bootTimeOffset = System.currentTimeMillis() * 1000000L - SystemClock.elapsedRealtimeNanos();
+        schedule.start(sessionStart, sensorRefreshTime);
+
+        long holdBack = holdBack();
+        while (isRunning) {
+            long now = System.currentTimeMillis();
+            drainReadings(now);
+            if (triggers != null) {
+                checkLevels(now);
+                if (samplingRaised && !schedule.isBursting(now)) {
+                    setSamplingRaised(false);
+                }
+            }
+
+            long windowEnd = closeWindows(now - holdBack);
+
+            long wait = Math.min(DRAIN_INTERVAL, windowEnd + holdBack - System.currentTimeMillis());
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    // Stopping
+                }
+            }
+        }
+
+        // Nothing more is coming after what the sensor hub still has, so the
+        // windows don't need holding back any longer
+        flushSensors();
+        closeWindows(System.currentTimeMillis());
+    }
+
+    // Send a document for every window that ends by settled.  Returns the end
+    // of the next window.
+    private long closeWindows(long settled) {
+        long windowEnd = schedule.nextEnd();
+        if (settled - windowEnd > MAX_CATCH_UP) {
+            schedule.skipTo(settled, sensorRefreshTime);
+            windowEnd = schedule.nextEnd();
+        }
+        while (windowEnd <= settled) {
+            schedule.close(windowEnd, sensorRefreshTime);
+            pendingReadings.applyBefore(windowEnd, sensorDocument, recorder);
+            if (schedule.isFull()) {
+                audioLogger.closeWindow(windowEnd, recorder);
+            }
+            if (recorder != null) {
+                recorder.document(windowEnd);
+            }
+            indexDocument(windowEnd);
+            windowEnd = schedule.nextEnd();
+        }
+        return windowEnd;
+    }
+
+    // Get every reading out of the sensor hub's FIFO and into the pending
+    // readings.  Waits up to the report latency for the sensors to say they're
+    // done, emptying the ring as they go.
+    private void flushSensors() {
+        if (reportLatency > 0) {
+            int registered = 0;
+            for (int i = 0; i < sensorRegistry.sensorCount(); i++) {
+                if (schedule.isEnabled(i)) {
+                    registered++;
+                }
+            }
+            CountDownLatch latch = new CountDownLatch(registered);
+            flushes = latch;
+            if (sensorManager.flush(this)) {
+                long deadline = System.currentTimeMillis() + reportLatency;
+                try {
+                    while (!latch.await(DRAIN_INTERVAL, TimeUnit.MILLISECONDS)
+                            && System.currentTimeMillis() < deadline) {
+                        drainReadings(System.currentTimeMillis());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            flushes = null;
+        }
+        drainReadings(System.currentTimeMillis());
+    }
+
+    // Hold documents back long enough that every sensor has delivered, and that
+    // a burst can still cover the history
+    private long holdBack() {
+        return reportLatency + (triggers != null ? preTrigger : 0);
+    }
+
+    private void indexDocument(long timestamp) {
+        try {
+            sensorDocument.setTimestamp(timestamp);
+            fanout.index(sensorDocument);
+            listener.onDocumentIndexed();
+        } catch (Exception e) {
+            Log.v("Sensor Logging error", e.toString());
+        }
+    }
+
+    private void drainReadings(long now) {
+        while (ringBuffer.poll()) {
+            if (pendingReadings.isFull()) {
+                // No room to wait, the oldest readings will have to go in early
+                pendingReadings.applyBefore(Long.MAX_VALUE, sensorDocument, recorder);
+            }
+            long time = eventTime(ringBuffer.timestamp(), now);
+            pendingReadings.add(ringBuffer, time);
+            if (triggers != null && triggers.reading(ringBuffer, time)) {
+                startBurst(time);
+            }
+            if (gpsLogger.isFiltering()) {
+                fuseReading(time);
+            }
+        }
+    }
+
+    // Audio levels and GPS speed for the trigger rules, a new fix only once
+    private void checkLevels(long now) {
+        if (triggers.hasAudio()) {
+            audioLogger.read(triggerAudio);
+            if (triggers.audio(triggerAudio, now)) {
+                startBurst(now);
+            }
+        }
+        GPSFix fix = gpsLogger.fix();
+        if (triggers.hasSpeed() && fix != null && fix != lastTriggerFix) {
+            lastTriggerFix = fix;
+            if (fix.hasSpeed && triggers.speed(fix.speed, now)) {
+                startBurst(now);
+            }
+        }
+    }
+
+    // A rule fired at time, go to the burst rate from the pre-trigger time on
+    private void startBurst(long time) {
+        if (!schedule.isBursting(time)) {
+            Log.i("Trigger", triggers.firedRule());
+        }
+        schedule.burst(time - preTrigger, time + burstMillis, burstInterval);
+        setSamplingRaised(true);
+    }
+
+    // Keep track of which way the phone is facing, and feed acceleration in world
+    // coordinates to the position filter
+    private void fuseReading(long time) {
+        int sensorIndex = ringBuffer.sensorIndex();
+        if (sensorIndex == rotationIndex && ringBuffer.valueCount() >= 3) {
+            float x = ringBuffer.value(0);
+            float y = ringBuffer.value(1);
+            float z = ringBuffer.value(2);
+
+            // Older devices leave out the scalar part
+            float w;
+            if (ringBuffer.valueCount() >= 4) {
+                w = ringBuffer.value(3);
+            } else {
+                float squared = 1 - x * x - y * y - z * z;
+                w = squared > 0 ? (float) Math.sqrt(squared) : 0;
+            }
+            rotation[0] = x;
+            rotation[1] = y;
+            rotation[2] = z;
+            rotation[3] = w;
+            hasRotation = true;
+        } else if (sensorIndex == linearAccelerationIndex && hasRotation && ringBuffer.valueCount() >= 3) {
+            float ax = ringBuffer.value(0);
+            float ay = ringBuffer.value(1);
+            float az = ringBuffer.value(2);
+            float x = rotation[0];
+            float y = rotation[1];
+            float z = rotation[2];
+            float w = rotation[3];
+
+            // First two rows of the rotation matrix, as SensorManager.getRotationMatrixFromVector
+            // builds it.  The world frame has x pointing east and y pointing north.
+            double east = (1 - 2 * y * y - 2 * z * z) * ax + (2 * x * y - 2 * z * w) * ay + (2 * x * z + 2 * y * w) * az;
+            double north = (2 * x * y + 2 * z * w) * ax + (1 - 2 * x * x - 2 * z * z) * ay + (2 * y * z - 2 * x * w) * az;
+            gpsLogger.onAcceleration(east, north, time);
+        }
+    }
+
+    // Wall clock millis for a SensorEvent.timestamp
+    private long eventTime(long timestamp, long now) {
+        long time = (timestamp + bootTimeOffset) / 1000000L;
+        if (time > now + MAX_CLOCK_SKEW || time < now - reportLatency - MAX_CLOCK_SKEW) {
+            return now;
+        }
+        return time;
+    }
+
+    SensorRingBuffer ringBuffer() {
+        return ringBuffer;
+    }
+}
@@ -0,0 +1,228 @@
+package ca.dungeons.sensordump;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Every sensor we log, worked out once when the activity starts.  Each sensor
+// gets a block of MAX_VALUES channel slots with their field names already
+// encoded, so handling an event is only a couple of array lookups.
+class SensorRegistry {
+
+    // SensorEvent.values never holds more than this many readings
+    static final int MAX_VALUES = 16;
+
+    // Standard Android sensor types are small numbers, look those up directly
+    private static final int DIRECT_TYPES = 64;
+
+    // Window statistics for the aggregation mode, in field name suffix order
+    static final int STAT_MIN = 0;
+    static final int STAT_MAX = 1;
+    static final int STAT_MEAN = 2;
+    static final int STAT_STDDEV = 3;
+    static final int STAT_COUNT = 4;
+    static final String[] STAT_SUFFIXES = {"_min", "_max", "_mean", "_stddev", "_count"};
+
+    private final Sensor[] sensors;
+    private final int[] types;
+    private final String[] sensorNames;
+    private final String[] channelNames;
+    private final byte[][] fieldNames;
+    private byte[][] statFieldNames;
+
+    private final int[] directIndex = new int[DIRECT_TYPES];
+    private final int[] vendorTypes;
+    private final int[] vendorIndex;
+
+    SensorRegistry(List<Sensor> deviceSensors) {
+        // One entry per sensor type, the same sensor SensorManager.getDefaultSensor gives us
+        List<Sensor> unique = new ArrayList<>();
+        Set<Integer> seenTypes = new HashSet<>();
+        for (Sensor sensor : deviceSensors) {
+            if (sensor != null && seenTypes.add(sensor.getType())) {
+                unique.add(sensor);
+            }
+        }
+
+        sensors = unique.toArray(new Sensor[unique.size()]);
+        types = new int[sensors.length];
+        sensorNames = new String[sensors.length];
+        channelNames = new String[sensors.length * MAX_VALUES];
+        fieldNames = new byte[sensors.length * MAX_VALUES][];
+        for (int i = 0; i < sensors.length; i++) {
+            types[i] = sensors[i].getType();
+        }
+        vendorTypes = new int[countVendorTypes()];
+        vendorIndex = new int[vendorTypes.length];
+        indexTypes();
+
+        nameChannels();
+    }
+
+    // Every sensor the phone has, the service and the settings screen have to
+    // agree on the names
+    static SensorRegistry forDevice(SensorManager sensorManager) {
+        List<Sensor> usableSensors = new ArrayList<>();
+        for (Sensor deviceSensor : sensorManager.getSensorList(Sensor.TYPE_ALL)) {
+            usableSensors.add(sensorManager.getDefaultSensor(deviceSensor.getType()));
+        }
+        return new SensorRegistry(usableSensors);
+    }
+
+    // The sensors from a recorded session, with the names they had on the phone.
+    // There are no Sensor objects, so these can't be registered with anything.
+    SensorRegistry(int[] recordedTypes, String[] recordedNames) {
+        sensors = new Sensor[recordedTypes.length];
+        types = recordedTypes.clone();
+        sensorNames = recordedNames.clone();
+        channelNames = new String[types.length * MAX_VALUES];
+        fieldNames = new byte[types.length * MAX_VALUES][];
+        vendorTypes = new int[countVendorTypes()];
+        vendorIndex = new int[vendorTypes.length];
+        indexTypes();
+        nameFields();
+    }
+
+    private int countVendorTypes() {
+        int vendorCount = 0;
+        for (int type : types) {
+            if (type < 0 || type >= DIRECT_TYPES) {
+                vendorCount++;
+            }
+        }
+        return vendorCount;
+    }
+
+    private void indexTypes() {
+        Arrays.fill(directIndex, -1);
+        int vendorCount = vendorTypes.length;
+
+        // Vendor sensors live up in the 65536+ range, keep those sorted for a binary search
+        long[] vendors = new long[vendorCount];
+        vendorCount = 0;
+        for (int i = 0; i < sensors.length; i++) {
+            if (types[i] >= 0 && types[i] < DIRECT_TYPES) {
+                directIndex[types[i]] = i;
+            } else {
+                vendors[vendorCount++] = ((long) types[i] << 32) | i;
+            }
+        }
+        Arrays.sort(vendors);
+        for (int i = 0; i < vendorCount; i++) {
+            vendorTypes[i] = (int) (vendors[i] >> 32);
+            vendorIndex[i] = (int) vendors[i];
+        }
+    }
+
+    // android.sensor.accelerometer becomes accelerometer0, accelerometer1 ...
+    // Vendor sensors can end up with the same short name as a stock one, so
+    // those borrow the next part of their name to stay apart.
+    private void nameChannels() {
+        Set<String> usedNames = new HashSet<>();
+        for (int i = 0; i < sensors.length; i++) {
+            String stringType = sensors[i].getStringType();
+            String sensorName;
+            if (stringType == null || stringType.length() == 0) {
+                sensorName = "sensor" + types[i] + "_";
+            } else {
+                // We don't need the android.sensor. and motorola.sensor. stuff
+                String[] sensorHierarchyName = stringType.split("\\.");
+                if (sensorHierarchyName.length == 0) {
+                    sensorName = stringType;
+                } else {
+                    sensorName = sensorHierarchyName[sensorHierarchyName.length - 1];
+                    if (usedNames.contains(sensorName)) {
+                        // com.motorola.sensor.light becomes motorola_light
+                        for (int part = sensorHierarchyName.length - 2; part >= 0; part--) {
+                            if (!sensorHierarchyName[part].equals("sensor")) {
+                                sensorName = sensorHierarchyName[part] + "_" + sensorName;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            if (usedNames.contains(sensorName)) {
+                sensorName = sensorName + "_" + types[i];
+            }
+            usedNames.add(sensorName);
+            sensorNames[i] = sensorName;
+        }
+        nameFields();
+    }
+
+    private void nameFields() {
+        for (int i = 0; i < sensorNames.length; i++) {
+            for (int value = 0; value < MAX_VALUES; value++) {
+                channelNames[i * MAX_VALUES + value] = sensorNames[i] + value;
+                fieldNames[i * MAX_VALUES + value] = SensorDocument.fieldName(sensorNames[i] + value);
+            }
+        }
+    }
+
+    int sensorType(int sensorIndex) {
+        return types[sensorIndex];
+    }
+
+    // Registry index for a sensor type, or -1 if we don't log it
+    int sensorIndex(int type) {
+        if (type >= 0 && type < DIRECT_TYPES) {
+            return directIndex[type];
+        }
+        int found = Arrays.binarySearch(vendorTypes, type);
+        return found >= 0 ? vendorIndex[found] : -1;
+    }
+
+    // Channel slot for one value of one sensor
+    static int slot(int sensorIndex, int valueIndex) {
+        return sensorIndex * MAX_VALUES + valueIndex;
+    }
+
+    // Keep NaN and anything too big or small for a long out of the document
+    static boolean isValid(float value) {
+        return !Float.isNaN(value) && value < Long.MAX_VALUE && value > Long.MIN_VALUE;
+    }
+
+    int sensorCount() {
+        return sensors.length;
+    }
+
+    Sensor sensor(int sensorIndex) {
+        return sensors[sensorIndex];
+    }
+
+    // Short name without the channel number, e.g. accelerometer
+    String sensorName(int sensorIndex) {
+        return sensorNames[sensorIndex];
+    }
+
+    int channelCount() {
+        return fieldNames.length;
+    }
+
+    byte[] fieldName(int slot) {
+        return fieldNames[slot];
+    }
+
+    String channelName(int slot) {
+        return channelNames[slot];
+    }
+
+    // accelerometer0_min and friends.  Only built for channels that actually
+    // report, the first time we need them.
+    byte[] statFieldName(int slot, int stat) {
+        if (statFieldNames == null) {
+            statFieldNames = new byte[fieldNames.length * STAT_SUFFIXES.length][];
+        }
+        int index = slot * STAT_SUFFIXES.length + stat;
+        if (statFieldNames[index] == null) {
+            statFieldNames[index] = SensorDocument.fieldName(channelNames[slot] + STAT_SUFFIXES[stat]);
+        }
+        return statFieldNames[index];
+    }
+}
@@ -0,0 +1,117 @@
+package ca.dungeons.sensordump;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single producer / single consumer ring of raw sensor readings.  The capture
+// thread writes, the ingest thread reads, and neither of them ever takes a lock
+// or allocates.  Readings are stored as primitives in flat arrays.
+//
+// When the ring is full the newest reading is dropped and counted, so the
+// overflow counter tells us when capture is outrunning the ingest thread.
+class SensorRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+
+    private final int[] sensorIndexes;
+    private final int[] valueCounts;
+    private final long[] timestamps;
+    private final float[] values;
+
+    // head is only written by the consumer, tail only by the producer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile long overflows = 0;
+    private volatile long highWaterMark = 0;
+
+    // The reading the consumer is looking at, valid until the next poll()
+    private long readPosition = -1;
+
+    SensorRingBuffer(int minimumCapacity) {
+        int size = 1;
+        while (size < minimumCapacity) {
+            size <<= 1;
+        }
+        capacity = size;
+        mask = size - 1;
+        sensorIndexes = new int[size];
+        valueCounts = new int[size];
+        timestamps = new long[size];
+        values = new float[size * SensorRegistry.MAX_VALUES];
+    }
+
+    // Producer side.  Returns false if the reading had to be dropped.
+    boolean offer(int sensorIndex, long timestamp, float[] eventValues) {
+        long currentTail = tail.get();
+        long occupancy = currentTail - head.get();
+        if (occupancy >= capacity) {
+            overflows++;
+            return false;
+        }
+
+        int slot = (int) (currentTail & mask);
+        int count = Math.min(eventValues.length, SensorRegistry.MAX_VALUES);
+        sensorIndexes[slot] = sensorIndex;
+        valueCounts[slot] = count;
+        timestamps[slot] = timestamp;
+        System.arraycopy(eventValues, 0, values, slot * SensorRegistry.MAX_VALUES, count);
+
+        if (occupancy + 1 > highWaterMark) {
+            highWaterMark = occupancy + 1;
+        }
+
+        // Publish the reading once it's all written
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    // Consumer side.  Moves to the next reading, returns false if there isn't one.
+    // The previous reading's slot is handed back to the producer here.
+    boolean poll() {
+        long currentHead = head.get();
+        if (readPosition >= 0) {
+            currentHead++;
+            head.lazySet(currentHead);
+            readPosition = -1;
+        }
+        if (currentHead >= tail.get()) {
+            return false;
+        }
+        readPosition = currentHead;
+        return true;
+    }
+
+    int sensorIndex() {
+        return sensorIndexes[(int) (readPosition & mask)];
+    }
+
+    int valueCount() {
+        return valueCounts[(int) (readPosition & mask)];
+    }
+
+    long timestamp() {
+        return timestamps[(int) (readPosition & mask)];
+    }
+
+    float value(int valueIndex) {
+        return values[(int) (readPosition & mask) * SensorRegistry.MAX_VALUES + valueIndex];
+    }
+
+    // Readings waiting for the consumer
+    int occupancy() {
+        return (int) (tail.get() - head.get());
+    }
+
+    long overflows() {
+        return overflows;
+    }
+
+    long highWaterMark() {
+        return highWaterMark;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,291 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Records everything that goes into the documents of a session into a compact
+// binary file, so SessionReplayer can push it through the indexer again later.
+//
+// Header: magic, version, start time, refresh time, the sensor dictionary
+// (type and name per registry index) and the octave band centres.  Then one
+// record after another, each starting with its type byte:
+//
+//   READING   sensor id, time delta, value count, values
+//   FIX       time delta, lat, lon, altitude, accuracy, has bearing/speed flags,
+//             bearing, speed, provider id (followed by the name the first time)
+//   BUFFER    time delta, value count, then one analysed audio buffer's
+//             loudness, frequency, rms, dBFS, spectral centroid and band levels,
+//             as it goes into its window
+//   DOCUMENT  time delta, a document was sent for the window ending here
+//
+// A fix is written with the time it came in, before the first document whose
+// window ends after it.  The document's audio comes from the buffers.
+//
+// Times are zigzag varint deltas from the previous record.  Each value is
+// XORed with the last value of the same field, and the result written as a
+// varint.  Readings that barely move keep their sign and exponent, so most of
+// the high bits cancel out.  Readings are written as the ingest thread folds
+// them into documents, so a replay puts every one back in the same window.
+//
+// Only the ingest thread writes, nothing here is thread safe.
+class SessionRecorder {
+
+    static final int MAGIC = 0x45534452; // ESDR
+    static final int VERSION = 1;
+
+    static final int RECORD_READING = 1;
+    static final int RECORD_FIX = 2;
+    static final int RECORD_BUFFER = 3;
+    static final int RECORD_DOCUMENT = 4;
+
+    static final int FLAG_HAS_BEARING = 1;
+    static final int FLAG_HAS_SPEED = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Longest possible record that isn't a provider name
+    private static final int MAX_RECORD = 16 + SensorRegistry.MAX_VALUES * 5;
+
+    private final GPSLogger gpsLogger;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length = 0;
+    private boolean failed = false;
+
+    private long lastTime;
+    private final int[] lastChannelBits;
+    private final int[] lastBufferBits;
+    private long lastLatBits;
+    private long lastLonBits;
+    private long lastAltitudeBits;
+    private int lastAccuracyBits;
+    private int lastBearingBits;
+    private int lastSpeedBits;
+
+    private GPSFix lastFix;
+    private String[] providers = new String[4];
+    private int providerCount = 0;
+
+    SessionRecorder(File file, SensorRegistry registry, GPSLogger gpsLogger, AudioLogger audioLogger,
+                    long startTime, int refreshTime) throws IOException {
+        this.gpsLogger = gpsLogger;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        out = new FileOutputStream(file);
+
+        lastTime = startTime;
+        lastChannelBits = new int[registry.channelCount()];
+        int[] bandCenters = audioLogger.bandCenters();
+        lastBufferBits = new int[AudioFeatureRing.BANDS + bandCenters.length];
+
+        writeInt(MAGIC);
+        writeVarLong(VERSION);
+        writeLong(startTime);
+        writeVarLong(refreshTime);
+        writeVarLong(registry.sensorCount());
+        for (int i = 0; i < registry.sensorCount(); i++) {
+            writeVarLong(zigzag(registry.sensorType(i)));
+            writeString(registry.sensorName(i));
+        }
+        writeVarLong(bandCenters.length);
+        for (int center : bandCenters) {
+            writeVarLong(center);
+        }
+    }
+
+    // One reading, as it goes into the document
+    void reading(int sensorIndex, long time, float[] values, int offset, int count) {
+        if (failed) {
+            return;
+        }
+        ensureRoom(MAX_RECORD);
+        buffer[length++] = RECORD_READING;
+        writeVarLong(sensorIndex);
+        writeTime(time);
+        writeVarLong(count);
+        int base = SensorRegistry.slot(sensorIndex, 0);
+        for (int i = 0; i < count; i++) {
+            int bits = Float.floatToRawIntBits(values[offset + i]);
+            writeVarLong((bits ^ lastChannelBits[base + i]) & 0xffffffffL);
+            lastChannelBits[base + i] = bits;
+        }
+    }
+
+    // One audio buffer, as the ingest thread folds it into its window
+    void audioBuffer(AudioFeatureRing ring) {
+        if (failed) {
+            return;
+        }
+        int count = Math.min(ring.valueCount(), lastBufferBits.length);
+        ensureRoom(16 + count * 5);
+        buffer[length++] = RECORD_BUFFER;
+        writeTime(ring.time());
+        writeVarLong(count);
+        for (int i = 0; i < count; i++) {
+            int bits = Float.floatToRawIntBits(ring.value(i));
+            writeVarLong((bits ^ lastBufferBits[i]) & 0xffffffffL);
+            lastBufferBits[i] = bits;
+        }
+    }
+
+    // The window ending at timestamp has gone out.  Every fix up to the one it
+    // used is recorded first, so a replay adds up the same distances.
+    void document(long timestamp) {
+        if (failed) {
+            return;
+        }
+        GPSFix fix = gpsLogger.fixAt(timestamp);
+        if (fix != null && fix != lastFix) {
+            GPSFix[] fixes = gpsLogger.recentFixes();
+            for (GPSFix recent : fixes) {
+                if ((lastFix == null || recent.updates > lastFix.updates) && recent.updates <= fix.updates) {
+                    writeFix(recent, recent.time);
+                }
+            }
+            lastFix = fix;
+        }
+
+        ensureRoom(MAX_RECORD);
+        buffer[length++] = RECORD_DOCUMENT;
+        writeTime(timestamp);
+    }
+
+    void close() {
+        if (failed) {
+            return;
+        }
+        flush();
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.v("Recorder Error", e.toString());
+        }
+        failed = true;
+    }
+
+    private void writeFix(GPSFix fix, long time) {
+        ensureRoom(MAX_RECORD);
+        buffer[length++] = RECORD_FIX;
+        writeTime(time);
+
+        long latBits = Double.doubleToRawLongBits(fix.lat);
+        long lonBits = Double.doubleToRawLongBits(fix.lon);
+        long altitudeBits = Double.doubleToRawLongBits(fix.altitude);
+        int accuracyBits = Float.floatToRawIntBits(fix.accuracy);
+        int bearingBits = Float.floatToRawIntBits(fix.bearing);
+        int speedBits = Float.floatToRawIntBits(fix.speed);
+        writeVarLong(latBits ^ lastLatBits);
+        writeVarLong(lonBits ^ lastLonBits);
+        writeVarLong(altitudeBits ^ lastAltitudeBits);
+        writeVarLong((accuracyBits ^ lastAccuracyBits) & 0xffffffffL);
+        buffer[length++] = (byte) ((fix.hasBearing ? FLAG_HAS_BEARING : 0) | (fix.hasSpeed ? FLAG_HAS_SPEED : 0));
+        writeVarLong((bearingBits ^ lastBearingBits) & 0xffffffffL);
+        writeVarLong((speedBits ^ lastSpeedBits) & 0xffffffffL);
+        lastLatBits = latBits;
+        lastLonBits = lonBits;
+        lastAltitudeBits = altitudeBits;
+        lastAccuracyBits = accuracyBits;
+        lastBearingBits = bearingBits;
+        lastSpeedBits = speedBits;
+
+        // Providers get an id the first time we see them
+        String provider = fix.provider == null ? "" : fix.provider;
+        int id = 0;
+        while (id < providerCount && !providers[id].equals(provider)) {
+            id++;
+        }
+        writeVarLong(id);
+        if (id == providerCount) {
+            if (providerCount == providers.length) {
+                String[] grown = new String[providerCount * 2];
+                System.arraycopy(providers, 0, grown, 0, providerCount);
+                providers = grown;
+            }
+            providers[providerCount++] = provider;
+            writeString(provider);
+        }
+    }
+
+    private void writeTime(long time) {
+        writeVarLong(zigzag(time - lastTime));
+        lastTime = time;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        buffer[length++] = (byte) (value >>> 24);
+        buffer[length++] = (byte) (value >>> 16);
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRoom(bytes.length + 10);
+        writeVarLong(bytes.length);
+        if (bytes.length > buffer.length - length) {
+            // Only a silly long name, write it straight through
+            flush();
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                fail(e);
+            }
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureRoom(int needed) {
+        if (buffer.length - length < needed) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (length == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, length);
+        } catch (IOException e) {
+            fail(e);
+        }
+        length = 0;
+    }
+
+    // A full disk shouldn't stop the logging, only the recording
+    private void fail(IOException e) {
+        Log.v("Recorder Error", e.toString());
+        failed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Already broken
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Plays a SessionRecorder file back through the same SensorDocument and sinks
+// the live sensors use, either as fast as the sinks will take it or at a
+// multiple of the recorded rate.  Good for load
+// tests and backfills that don't need a phone in a car.
+class SessionReplayer {
+
+    private final InputStream in;
+    private final long startTime;
+    private final int refreshTime;
+    private final SensorRegistry registry;
+    private final int[] bandCenters;
+
+    private volatile boolean stopped = false;
+
+    // Decoding state, mirrors the recorder's
+    private long lastTime;
+    private int[] lastChannelBits;
+    private int[] lastBufferBits;
+    private long lastLatBits;
+    private long lastLonBits;
+    private long lastAltitudeBits;
+    private int lastAccuracyBits;
+    private int lastBearingBits;
+    private int lastSpeedBits;
+    private String[] providers = new String[4];
+    private int providerCount = 0;
+
+    private final float[] values = new float[SensorRegistry.MAX_VALUES];
+    private final float[] bufferBandLevels;
+
+    // Read the header, the records are read by replay()
+    SessionReplayer(File file) throws IOException {
+        in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        int magic = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        if (magic != SessionRecorder.MAGIC) {
+            in.close();
+            throw new IOException("Not a session recording: " + file);
+        }
+        long version = readVarLong();
+        if (version != SessionRecorder.VERSION) {
+            in.close();
+            throw new IOException("Unknown recording version " + version);
+        }
+        long time = 0;
+        for (int i = 0; i < 8; i++) {
+            time = (time << 8) | readByte();
+        }
+        startTime = time;
+        refreshTime = (int) readVarLong();
+
+        int sensorCount = (int) readVarLong();
+        int[] types = new int[sensorCount];
+        String[] names = new String[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            types[i] = (int) unzigzag(readVarLong());
+            names[i] = readString();
+        }
+        registry = new SensorRegistry(types, names);
+
+        bandCenters = new int[(int) readVarLong()];
+        for (int i = 0; i < bandCenters.length; i++) {
+            bandCenters[i] = (int) readVarLong();
+        }
+
+        lastTime = startTime;
+        lastChannelBits = new int[registry.channelCount()];
+        lastBufferBits = new int[AudioFeatureRing.BANDS + bandCenters.length];
+        bufferBandLevels = new float[bandCenters.length];
+    }
+
+    SensorRegistry registry() {
+        return registry;
+    }
+
+    int[] bandCenters() {
+        return bandCenters;
+    }
+
+    long startTime() {
+        return startTime;
+    }
+
+    int refreshTime() {
+        return refreshTime;
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    // Push every record through.  A speed of zero or less doesn't wait at all,
+    // otherwise documents go out at speed times the recorded rate.  The GPS and
+    // audio loggers must not be running, the recording stands in for them.
+    void replay(SensorDocument document, GPSLogger gpsLogger, AudioLogger audioLogger,
+                DocumentFanout fanout, Metrics metrics, float speed, SensorPipeline.Listener listener) {
+        document.reset(startTime);
+        gpsLogger.resetGPS();
+        long wallStart = System.currentTimeMillis();
+        long documents = 0;
+
+        try {
+            while (!stopped) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                switch (type) {
+                    case SessionRecorder.RECORD_READING:
+                        int sensorIndex = (int) readVarLong();
+                        readTime();
+                        int count = (int) readVarLong();
+                        int base = SensorRegistry.slot(sensorIndex, 0);
+                        for (int i = 0; i < count; i++) {
+                            lastChannelBits[base + i] ^= (int) readVarLong();
+                            values[i] = Float.intBitsToFloat(lastChannelBits[base + i]);
+                        }
+                        metrics.sensorEvent(sensorIndex);
+                        for (int i = 0; i < count; i++) {
+                            document.setChannel(SensorRegistry.slot(sensorIndex, i), values[i]);
+                        }
+                        break;
+
+                    case SessionRecorder.RECORD_FIX:
+                        readFix(gpsLogger);
+                        break;
+
+                    case SessionRecorder.RECORD_BUFFER:
+                        readBuffer(audioLogger);
+                        break;
+
+                    case SessionRecorder.RECORD_DOCUMENT:
+                        long timestamp = readTime();
+                        audioLogger.closeWindow(timestamp, null);
+                        if (speed > 0) {
+                            long due = wallStart + (long) ((timestamp - startTime) / speed);
+                            long wait = due - System.currentTimeMillis();
+                            if (wait > 0) {
+                                Thread.sleep(wait);
+                            }
+                        }
+                        document.setTimestamp(timestamp);
+                        fanout.index(document);
+                        listener.onDocumentIndexed();
+                        documents++;
+                        break;
+
+                    default:
+                        throw new IOException("Bad record type " + type);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        } catch (IOException e) {
+            Log.v("Replay Error", e.toString());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.v("Replay Error", e.toString());
+            }
+        }
+        Log.i("Replay", documents + " documents in " + (System.currentTimeMillis() - wallStart) + "ms");
+    }
+
+    private void readFix(GPSLogger gpsLogger) throws IOException {
+        long time = readTime();
+        lastLatBits ^= readVarLong();
+        lastLonBits ^= readVarLong();
+        lastAltitudeBits ^= readVarLong();
+        lastAccuracyBits ^= (int) readVarLong();
+        int flags = readByte();
+        lastBearingBits ^= (int) readVarLong();
+        lastSpeedBits ^= (int) readVarLong();
+
+        int id = (int) readVarLong();
+        if (id == providerCount) {
+            if (providerCount == providers.length) {
+                String[] grown = new String[providerCount * 2];
+                System.arraycopy(providers, 0, grown, 0, providerCount);
+                providers = grown;
+            }
+            providers[providerCount++] = readString();
+        } else if (id > providerCount) {
+            throw new IOException("Bad provider id " + id);
+        }
+        String provider = providers[id].length() == 0 ? null : providers[id];
+
+        float bearing = Float.intBitsToFloat(lastBearingBits);
+        float speed = Float.intBitsToFloat(lastSpeedBits);
+        gpsLogger.onFix(Double.longBitsToDouble(lastLatBits), Double.longBitsToDouble(lastLonBits),
+                Double.longBitsToDouble(lastAltitudeBits), Float.intBitsToFloat(lastAccuracyBits),
+                (flags & SessionRecorder.FLAG_HAS_BEARING) != 0 ? bearing : Float.NaN,
+                (flags & SessionRecorder.FLAG_HAS_SPEED) != 0 ? speed : Float.NaN,
+                provider, time);
+    }
+
+    // One audio buffer back into the ring, for the next document to close
+    private void readBuffer(AudioLogger audioLogger) throws IOException {
+        long time = readTime();
+        int count = (int) readVarLong();
+        if (count > lastBufferBits.length) {
+            throw new IOException("Bad buffer value count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            lastBufferBits[i] ^= (int) readVarLong();
+        }
+        for (int i = 0; i < bufferBandLevels.length; i++) {
+            bufferBandLevels[i] = Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.BANDS + i]);
+        }
+        audioLogger.addBuffer(time, Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.LOUDNESS]),
+                Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.FREQUENCY]),
+                Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.RMS]),
+                Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.DBFS]),
+                Float.intBitsToFloat(lastBufferBits[AudioFeatureRing.SPECTRAL_CENTROID]),
+                bufferBandLevels);
+    }
+
+    private long readTime() throws IOException {
+        lastTime += unzigzag(readVarLong());
+        return lastTime;
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private String readString() throws IOException {
+        int length = (int) readVarLong();
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
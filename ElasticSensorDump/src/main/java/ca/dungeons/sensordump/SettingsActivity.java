@@ -1,10 +1,17 @@
 package ca.dungeons.sensordump;
 
+import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.hardware.SensorManager;
+import android.preference.CheckBoxPreference;
+import android.preference.EditTextPreference;
 import android.preference.PreferenceActivity;
 import android.os.Bundle;
+import android.preference.PreferenceCategory;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
+import android.text.InputType;
 import android.util.Log;
 
 public class SettingsActivity extends PreferenceActivity
@@ -23,6 +30,41 @@ public class SettingsActivity extends PreferenceActivity
         {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.preferences);
+            addSensorPreferences();
+        }
+
+        // A switch and an interval for every sensor on this phone, under the
+        // names they get in the documents
+        private void addSensorPreferences()
+        {
+            Activity activity = getActivity();
+            SensorManager sensorManager = (SensorManager) activity.getSystemService(Context.SENSOR_SERVICE);
+            SensorRegistry registry = SensorRegistry.forDevice(sensorManager);
+
+            PreferenceCategory category = new PreferenceCategory(activity);
+            category.setTitle("Sensors");
+            getPreferenceScreen().addPreference(category);
+
+            for (int i = 0; i < registry.sensorCount(); i++)
+            {
+                String name = registry.sensorName(i);
+
+                CheckBoxPreference enabled = new CheckBoxPreference(activity);
+                enabled.setKey(EmissionSchedule.enabledKey(name));
+                enabled.setTitle(name);
+                enabled.setSummary("Log " + registry.sensor(i).getName());
+                enabled.setDefaultValue(true);
+                category.addPreference(enabled);
+
+                EditTextPreference interval = new EditTextPreference(activity);
+                interval.setKey(EmissionSchedule.intervalKey(name));
+                interval.setTitle(name + " interval");
+                interval.setSummary("How often in ms to send " + name + ", 0 for every document");
+                interval.setDefaultValue(String.valueOf(EmissionSchedule.FOLLOW_REFRESH));
+                interval.getEditText().setInputType(InputType.TYPE_CLASS_NUMBER);
+                category.addPreference(interval);
+                interval.setDependency(enabled.getKey());
+            }
         }
     }
-}
\ No newline at end of file
+}
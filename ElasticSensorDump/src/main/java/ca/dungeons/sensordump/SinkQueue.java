@@ -0,0 +1,215 @@
+package ca.dungeons.sensordump;
+
+import android.os.Process;
+import android.util.Log;
+
+// A bounded queue of encoded documents in front of one DocumentSink, with the
+// thread that feeds it.  The ingest thread copies each document in and moves
+// on, whatever state the sink is in.
+//
+// Documents sit back to back in one byte ring, each behind a small header
+// (length, timestamp, rollup seconds), so nothing is allocated per document.
+// When the ring is full the oldest documents make room, unless the queue was
+// made to block, which a replay wants so it doesn't lose anything.
+class SinkQueue {
+
+    private static final int HEADER_SIZE = 16;
+
+    // How often an idle sink hears from us
+    private static final long IDLE_INTERVAL = 1000;
+
+    private final DocumentSink sink;
+    private final boolean blockWhenFull;
+    private final byte[] ring;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private int head = 0;
+    private int used = 0;
+    private int docs = 0;
+    private long droppedDocs = 0;
+    private boolean stopping = false;
+    private Thread worker;
+
+    // The document the worker has taken off the ring, only touched by the worker
+    private byte[] taken = new byte[4096];
+    private final byte[] takenHeader = new byte[HEADER_SIZE];
+    private int takenLength;
+    private long takenTimestamp;
+    private int takenRollupSeconds;
+
+    SinkQueue(DocumentSink sink, int capacityBytes, boolean blockWhenFull) {
+        this.sink = sink;
+        this.blockWhenFull = blockWhenFull;
+        this.ring = new byte[Math.max(64 * 1024, capacityBytes)];
+    }
+
+    void start() {
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                drain();
+            }
+        }, "sink-" + sink.name());
+        worker.start();
+    }
+
+    // Let the sink finish what's queued, then stop it
+    synchronized void requestStop() {
+        stopping = true;
+        notifyAll();
+    }
+
+    // Wait for the sink to catch up, one that is still stuck at the deadline
+    // gets interrupted
+    void awaitStop(long deadline) {
+        if (worker == null) {
+            return;
+        }
+        try {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            Log.v("Sink Stuck", sink.name());
+            worker.interrupt();
+        }
+    }
+
+    // Copy a document in.  Returns false if it had to be dropped.
+    synchronized boolean offer(long timestamp, byte[] doc, int length, int rollupSeconds) {
+        int needed = HEADER_SIZE + length;
+        if (stopping || needed > ring.length) {
+            dropped();
+            return false;
+        }
+        while (ring.length - used < needed) {
+            if (!blockWhenFull) {
+                dropOldest();
+                continue;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (stopping || Thread.currentThread().isInterrupted()) {
+                dropped();
+                return false;
+            }
+        }
+
+        header[0] = (byte) (length >>> 24);
+        header[1] = (byte) (length >>> 16);
+        header[2] = (byte) (length >>> 8);
+        header[3] = (byte) length;
+        for (int i = 0; i < 8; i++) {
+            header[4 + i] = (byte) (timestamp >>> (56 - 8 * i));
+        }
+        header[12] = (byte) (rollupSeconds >>> 24);
+        header[13] = (byte) (rollupSeconds >>> 16);
+        header[14] = (byte) (rollupSeconds >>> 8);
+        header[15] = (byte) rollupSeconds;
+
+        int tail = (head + used) % ring.length;
+        tail = put(tail, header, HEADER_SIZE);
+        put(tail, doc, length);
+        used += needed;
+        docs++;
+        notifyAll();
+        return true;
+    }
+
+    // Worker thread: hand documents to the sink until we're stopped and empty
+    private void drain() {
+        boolean wrote = false;
+        while (true) {
+            boolean got = false;
+            synchronized (this) {
+                if (docs == 0 && !wrote) {
+                    if (stopping) {
+                        break;
+                    }
+                    try {
+                        wait(IDLE_INTERVAL);
+                    } catch (InterruptedException e) {
+                        stopping = true;
+                    }
+                }
+                if (docs > 0) {
+                    take();
+                    got = true;
+                    notifyAll();
+                }
+            }
+
+            try {
+                if (got) {
+                    sink.write(takenTimestamp, taken, takenLength, takenRollupSeconds);
+                    wrote = true;
+                } else {
+                    sink.idle();
+                    wrote = false;
+                }
+            } catch (RuntimeException e) {
+                // One bad document or a broken sink shouldn't kill the thread
+                Log.v("Sink Error", sink.name() + " " + e.toString());
+            }
+        }
+        sink.stop();
+    }
+
+    // Move the oldest document into the worker's buffer
+    private void take() {
+        head = get(head, takenHeader, HEADER_SIZE);
+        takenLength = readInt(takenHeader, 0);
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = (timestamp << 8) | (takenHeader[4 + i] & 0xff);
+        }
+        takenTimestamp = timestamp;
+        takenRollupSeconds = readInt(takenHeader, 12);
+        if (taken.length < takenLength) {
+            taken = new byte[Math.max(takenLength, taken.length * 2)];
+        }
+        head = get(head, taken, takenLength);
+        used -= HEADER_SIZE + takenLength;
+        docs--;
+    }
+
+    private void dropOldest() {
+        int length = ((ring[head] & 0xff) << 24) | ((ring[(head + 1) % ring.length] & 0xff) << 16)
+                | ((ring[(head + 2) % ring.length] & 0xff) << 8) | (ring[(head + 3) % ring.length] & 0xff);
+        head = (head + HEADER_SIZE + length) % ring.length;
+        used -= HEADER_SIZE + length;
+        docs--;
+        dropped();
+    }
+
+    // Don't flood the log while a sink is down
+    private void dropped() {
+        if (droppedDocs++ % 1000 == 0) {
+            Log.v("Sink Dropped", sink.name() + " " + droppedDocs);
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    // Copy into the ring at position, wrapping around the end.  Returns the position after.
+    private int put(int position, byte[] data, int length) {
+        int first = Math.min(length, ring.length - position);
+        System.arraycopy(data, 0, ring, position, first);
+        System.arraycopy(data, first, ring, 0, length - first);
+        return (position + length) % ring.length;
+    }
+
+    private int get(int position, byte[] into, int length) {
+        int first = Math.min(length, ring.length - position);
+        System.arraycopy(ring, position, into, 0, first);
+        System.arraycopy(ring, 0, into, first, length - first);
+        return (position + length) % ring.length;
+    }
+}
@@ -0,0 +1,105 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Sparse documents: a field only goes out when it has moved more than its
+// epsilon since we last sent it.  Every keyframe interval a full document goes
+// out anyway, so the latest value of anything is never more than one keyframe
+// back.
+//
+// Fields are numbered by the document, the filter only needs their names to
+// look up the epsilon.
+class SparseFilter {
+
+    private final long keyframeInterval;
+    private final float defaultEpsilon;
+    private final Map<String, Float> epsilons;
+
+    private float[] epsilon = new float[0];
+    private float[] lastSent = new float[0];
+    private boolean[] sent = new boolean[0];
+
+    private boolean keyframe = false;
+    private long lastKeyframe = 0;
+    private boolean hasKeyframe = false;
+    private int lastGpsUpdates = -1;
+
+    SparseFilter(long keyframeMillis, float defaultEpsilon, Map<String, Float> epsilons) {
+        this.keyframeInterval = Math.max(0, keyframeMillis);
+        this.defaultEpsilon = Math.max(0, defaultEpsilon);
+        this.epsilons = epsilons;
+    }
+
+    // Per field epsilons as a comma separated list, e.g. light0=5,pressure0=0.1
+    static Map<String, Float> parseEpsilons(String list) {
+        Map<String, Float> parsed = new HashMap<>();
+        for (String part : list.split(",")) {
+            if (part.trim().length() == 0) {
+                continue;
+            }
+            String[] pair = part.split("=");
+            try {
+                parsed.put(pair[0].trim(), Float.parseFloat(pair[1].trim()));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.v("Bad epsilon", part);
+            }
+        }
+        return parsed;
+    }
+
+    // Give a field number its name, and forget what we last sent for it
+    void defineField(int field, String name) {
+        if (field >= epsilon.length) {
+            int size = Math.max(field + 1, epsilon.length * 2);
+            float[] grownEpsilon = new float[size];
+            float[] grownLastSent = new float[size];
+            boolean[] grownSent = new boolean[size];
+            System.arraycopy(epsilon, 0, grownEpsilon, 0, epsilon.length);
+            System.arraycopy(lastSent, 0, grownLastSent, 0, lastSent.length);
+            System.arraycopy(sent, 0, grownSent, 0, sent.length);
+            epsilon = grownEpsilon;
+            lastSent = grownLastSent;
+            sent = grownSent;
+        }
+        Float override = epsilons.get(name);
+        epsilon[field] = override != null ? Math.max(0, override) : defaultEpsilon;
+        sent[field] = false;
+    }
+
+    // Called once per document, returns true if this one has to be complete
+    boolean startDocument(long timestamp) {
+        keyframe = !hasKeyframe || timestamp - lastKeyframe >= keyframeInterval;
+        if (keyframe) {
+            hasKeyframe = true;
+            lastKeyframe = timestamp;
+        }
+        return keyframe;
+    }
+
+    // A document with only the sensors that are due, never a keyframe
+    void startPartialDocument() {
+        keyframe = false;
+    }
+
+    // Should this value go in the document?  If so, it's now the last one sent.
+    boolean changed(int field, float value) {
+        if (keyframe || !sent[field] || Math.abs(value - lastSent[field]) > epsilon[field]) {
+            lastSent[field] = value;
+            sent[field] = true;
+            return true;
+        }
+        return false;
+    }
+
+    // The GPS block goes out with each new fix
+    boolean gpsChanged(int gpsUpdates) {
+        if (keyframe || gpsUpdates != lastGpsUpdates) {
+            lastGpsUpdates = gpsUpdates;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package ca.dungeons.sensordump;
+
+import java.util.TimeZone;
+
+// Writes timestamps in the same shape as SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ")
+// without creating a formatter, a Date or a String for every event.  The date,
+// time and zone for the current second are worked out once and cached, so most
+// calls only have to fill in the milliseconds.  A new second is written over
+// the old one, so write() never allocates at all.
+//
+// The cache isn't locked, so each thread that writes timestamps needs its own.
+// nextDayStart() and formatDay() don't touch it.
+class TimestampFormatter {
+
+    // 2017-01-31T23:59:59.999-0500
+    static final int TIMESTAMP_LENGTH = 28;
+
+    private static final int MILLIS_OFFSET = 20;
+    private static final int ZONE_OFFSET = 23;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final TimeZone timeZone;
+
+    // Everything but the milliseconds for cachedSecond
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedText = new byte[TIMESTAMP_LENGTH];
+
+    TimestampFormatter() {
+        this(TimeZone.getDefault());
+    }
+
+    TimestampFormatter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    // Write the timestamp into dest at offset and return the number of bytes written
+    int write(long millis, byte[] dest, int offset) {
+        long epochSecond = floorDiv(millis, 1000);
+        if (epochSecond != cachedSecond) {
+            writeSecond(epochSecond, cachedText);
+            cachedSecond = epochSecond;
+        }
+
+        System.arraycopy(cachedText, 0, dest, offset, TIMESTAMP_LENGTH);
+        int ms = (int) (millis - epochSecond * 1000);
+        dest[offset + MILLIS_OFFSET] = (byte) ('0' + ms / 100);
+        dest[offset + MILLIS_OFFSET + 1] = (byte) ('0' + ms / 10 % 10);
+        dest[offset + MILLIS_OFFSET + 2] = (byte) ('0' + ms % 10);
+        return TIMESTAMP_LENGTH;
+    }
+
+    String format(long millis) {
+        byte[] text = new byte[TIMESTAMP_LENGTH];
+        write(millis, text, 0);
+        return new String(text, 0, TIMESTAMP_LENGTH);
+    }
+
+    // yyyyMMdd, used for the daily index suffix
+    String formatDay(long millis) {
+        long local = millis + timeZone.getOffset(millis);
+        byte[] text = new byte[8];
+        writeDate(floorDiv(local, MILLIS_PER_DAY), text, 0, false);
+        return new String(text, 0, 8);
+    }
+
+    // When the local day after this one starts, for rolling over daily indexes.
+    // The zone offset is taken at both ends so a DST change earlier in the day
+    // doesn't move midnight.
+    long nextDayStart(long millis) {
+        int offset = timeZone.getOffset(millis);
+        long next = (floorDiv(millis + offset, MILLIS_PER_DAY) + 1) * MILLIS_PER_DAY - offset;
+        return next - (timeZone.getOffset(next) - offset);
+    }
+
+    // Everything but the milliseconds for one second of wall clock time
+    private void writeSecond(long epochSecond, byte[] text) {
+        long millis = epochSecond * 1000;
+        int offsetMillis = timeZone.getOffset(millis);
+        long local = millis + offsetMillis;
+        long days = floorDiv(local, MILLIS_PER_DAY);
+        int secondOfDay = (int) ((local - days * MILLIS_PER_DAY) / 1000);
+
+        writeDate(days, text, 0, true);
+        text[10] = 'T';
+        writeTwo(secondOfDay / 3600, text, 11);
+        text[13] = ':';
+        writeTwo(secondOfDay / 60 % 60, text, 14);
+        text[16] = ':';
+        writeTwo(secondOfDay % 60, text, 17);
+        text[19] = '.';
+
+        int offsetMinutes = offsetMillis / 60000;
+        text[ZONE_OFFSET] = (byte) (offsetMinutes < 0 ? '-' : '+');
+        offsetMinutes = Math.abs(offsetMinutes);
+        writeTwo(offsetMinutes / 60, text, ZONE_OFFSET + 1);
+        writeTwo(offsetMinutes % 60, text, ZONE_OFFSET + 3);
+    }
+
+    // Civil date from days since the epoch, see Howard Hinnant's civil_from_days
+    private static void writeDate(long epochDay, byte[] dest, int offset, boolean dashes) {
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeTwo(year / 100, dest, offset);
+        writeTwo(year % 100, dest, offset + 2);
+        if (dashes) {
+            dest[offset + 4] = '-';
+            writeTwo(month, dest, offset + 5);
+            dest[offset + 7] = '-';
+            writeTwo(day, dest, offset + 8);
+        } else {
+            writeTwo(month, dest, offset + 4);
+            writeTwo(day, dest, offset + 6);
+        }
+    }
+
+    private static void writeTwo(int value, byte[] dest, int offset) {
+        dest[offset] = (byte) ('0' + value / 10);
+        dest[offset + 1] = (byte) ('0' + value % 10);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+}
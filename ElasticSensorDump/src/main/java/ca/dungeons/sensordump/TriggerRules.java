@@ -0,0 +1,390 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Rules that switch the pipeline into a high-rate burst when something
+// interesting happens.  Rules are separated by ';', and a rule fires when all
+// of its conditions, separated by '&', hold at once:
+//
+//   accelerometer_magnitude>25
+//   loudness>20000 for 100
+//   rate(speed)<-4 & speed>8
+//
+// A field is any sensor channel (accelerometer0), a sensor's magnitude over its
+// first three values (accelerometer_magnitude), loudness, audio_rms, audio_dbfs
+// or speed.  rate() is the change per second between two readings, and
+// "for ms" means the condition has to hold that long before it counts.
+//
+// The rules are compiled once into flat arrays.  Sensor conditions are listed
+// per sensor so a reading only looks at the conditions on its own sensor, and
+// evaluating never allocates.  Only the ingest thread evaluates.
+class TriggerRules {
+
+    // Where a condition's value comes from
+    private static final int SOURCE_CHANNEL = 0;
+    private static final int SOURCE_MAGNITUDE = 1;
+    private static final int SOURCE_LOUDNESS = 2;
+    private static final int SOURCE_AUDIO_RMS = 3;
+    private static final int SOURCE_AUDIO_DBFS = 4;
+    private static final int SOURCE_SPEED = 5;
+
+    private static final String MAGNITUDE_SUFFIX = "_magnitude";
+
+    // A condition only counts towards its rule while it's this recent, or
+    // twice the gap between its values if they come slower than that.  A gap
+    // longer than the cap is a sensor going quiet, not a slow one.
+    private static final long FRESH_MILLIS = 500;
+    private static final long MAX_GAP_MILLIS = 5000;
+
+    // One entry per condition, grouped by rule
+    private final int[] sources;
+    private final int[] sensorIndexes;
+    private final int[] valueIndexes;
+    private final boolean[] rates;
+    private final boolean[] above;
+    private final float[] thresholds;
+    private final long[] durations;
+    private final int[] ruleOf;
+
+    // Conditions of rule r are ruleStart[r] until ruleStart[r + 1]
+    private final int[] ruleStart;
+    private final String[] ruleTexts;
+
+    // Conditions on sensor s are sensorConditions[sensorStart[s]] until
+    // sensorConditions[sensorStart[s + 1]], the audio and GPS ones are apart
+    private final int[] sensorStart;
+    private final int[] sensorConditions;
+    private final int[] audioConditions;
+    private final int[] speedConditions;
+
+    // Evaluation state per condition
+    private final boolean[] seen;
+    private final float[] lastValue;
+    private final long[] lastTime;
+    private final long[] holdingSince;
+    private final boolean[] satisfied;
+    private final long[] evaluatedAt;
+    private final long[] evaluatedGap;
+
+    private int firedRule = -1;
+
+    // One condition as it comes out of the parser, only used while compiling
+    private static class Condition {
+        int source;
+        int sensorIndex = -1;
+        int valueIndex;
+        boolean rate;
+        boolean above;
+        float threshold;
+        long duration;
+        int rule;
+    }
+
+    private TriggerRules(List<Condition> parsed, List<Integer> parsedRuleStarts, List<String> parsedTexts,
+                         int sensorCount) {
+        int count = parsed.size();
+        sources = new int[count];
+        sensorIndexes = new int[count];
+        valueIndexes = new int[count];
+        rates = new boolean[count];
+        above = new boolean[count];
+        thresholds = new float[count];
+        durations = new long[count];
+        ruleOf = new int[count];
+        for (int c = 0; c < count; c++) {
+            Condition condition = parsed.get(c);
+            sources[c] = condition.source;
+            sensorIndexes[c] = condition.sensorIndex;
+            valueIndexes[c] = condition.valueIndex;
+            rates[c] = condition.rate;
+            above[c] = condition.above;
+            thresholds[c] = condition.threshold;
+            durations[c] = condition.duration;
+            ruleOf[c] = condition.rule;
+        }
+
+        ruleStart = new int[parsedRuleStarts.size() + 1];
+        for (int r = 0; r < parsedRuleStarts.size(); r++) {
+            ruleStart[r] = parsedRuleStarts.get(r);
+        }
+        ruleStart[parsedRuleStarts.size()] = count;
+        ruleTexts = parsedTexts.toArray(new String[parsedTexts.size()]);
+
+        // Bucket the sensor conditions by sensor
+        sensorStart = new int[sensorCount + 1];
+        int audioCount = 0;
+        int speedCount = 0;
+        for (int c = 0; c < count; c++) {
+            if (sources[c] == SOURCE_CHANNEL || sources[c] == SOURCE_MAGNITUDE) {
+                sensorStart[sensorIndexes[c] + 1]++;
+            } else if (sources[c] == SOURCE_SPEED) {
+                speedCount++;
+            } else {
+                audioCount++;
+            }
+        }
+        for (int s = 0; s < sensorCount; s++) {
+            sensorStart[s + 1] += sensorStart[s];
+        }
+        sensorConditions = new int[sensorStart[sensorCount]];
+        audioConditions = new int[audioCount];
+        speedConditions = new int[speedCount];
+        int[] filled = new int[sensorCount];
+        audioCount = 0;
+        speedCount = 0;
+        for (int c = 0; c < count; c++) {
+            if (sources[c] == SOURCE_CHANNEL || sources[c] == SOURCE_MAGNITUDE) {
+                int s = sensorIndexes[c];
+                sensorConditions[sensorStart[s] + filled[s]++] = c;
+            } else if (sources[c] == SOURCE_SPEED) {
+                speedConditions[speedCount++] = c;
+            } else {
+                audioConditions[audioCount++] = c;
+            }
+        }
+
+        seen = new boolean[count];
+        lastValue = new float[count];
+        lastTime = new long[count];
+        holdingSince = new long[count];
+        Arrays.fill(holdingSince, -1);
+        satisfied = new boolean[count];
+        evaluatedAt = new long[count];
+        Arrays.fill(evaluatedAt, -1);
+        evaluatedGap = new long[count];
+    }
+
+    // Compile the rules, or null if there aren't any that make sense.  Rules
+    // with a field we don't know or a bad number are logged and left out.
+    static TriggerRules compile(String text, SensorRegistry registry) {
+        List<Condition> conditions = new ArrayList<>();
+        List<Integer> ruleStarts = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+
+        for (String rule : text.split(";")) {
+            if (rule.trim().length() == 0) {
+                continue;
+            }
+            List<Condition> parsed = new ArrayList<>();
+            for (String part : rule.split("&")) {
+                Condition condition = parseCondition(part.trim(), registry);
+                if (condition == null) {
+                    parsed = null;
+                    break;
+                }
+                condition.rule = ruleStarts.size();
+                parsed.add(condition);
+            }
+            if (parsed == null) {
+                Log.v("Bad trigger rule", rule);
+                continue;
+            }
+            ruleStarts.add(conditions.size());
+            texts.add(rule.trim());
+            conditions.addAll(parsed);
+        }
+        if (ruleStarts.isEmpty()) {
+            return null;
+        }
+        return new TriggerRules(conditions, ruleStarts, texts, registry.sensorCount());
+    }
+
+    // [rate(]field[)] > or < number [for ms], or null if it doesn't make sense
+    private static Condition parseCondition(String text, SensorRegistry registry) {
+        Condition condition = new Condition();
+        int op = text.indexOf('>');
+        condition.above = true;
+        if (op < 0) {
+            op = text.indexOf('<');
+            condition.above = false;
+        }
+        if (op <= 0) {
+            return null;
+        }
+
+        String field = text.substring(0, op).trim();
+        if (field.startsWith("rate(") && field.endsWith(")")) {
+            field = field.substring(5, field.length() - 1).trim();
+            condition.rate = true;
+        }
+
+        String rest = text.substring(op + 1).trim();
+        int forAt = rest.indexOf(" for ");
+        try {
+            if (forAt >= 0) {
+                condition.duration = Math.max(0, Long.parseLong(rest.substring(forAt + 5).trim()));
+                rest = rest.substring(0, forAt).trim();
+            }
+            condition.threshold = Float.parseFloat(rest);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (field.equals("loudness")) {
+            condition.source = SOURCE_LOUDNESS;
+        } else if (field.equals("audio_rms")) {
+            condition.source = SOURCE_AUDIO_RMS;
+        } else if (field.equals("audio_dbfs")) {
+            condition.source = SOURCE_AUDIO_DBFS;
+        } else if (field.equals("speed")) {
+            condition.source = SOURCE_SPEED;
+        } else if (field.endsWith(MAGNITUDE_SUFFIX)) {
+            condition.source = SOURCE_MAGNITUDE;
+            String sensorName = field.substring(0, field.length() - MAGNITUDE_SUFFIX.length());
+            for (int s = 0; s < registry.sensorCount() && condition.sensorIndex < 0; s++) {
+                if (registry.sensorName(s).equals(sensorName)) {
+                    condition.sensorIndex = s;
+                }
+            }
+            if (condition.sensorIndex < 0) {
+                return null;
+            }
+        } else {
+            condition.source = SOURCE_CHANNEL;
+            for (int slot = 0; slot < registry.channelCount() && condition.sensorIndex < 0; slot++) {
+                if (registry.channelName(slot).equals(field)) {
+                    condition.sensorIndex = slot / SensorRegistry.MAX_VALUES;
+                    condition.valueIndex = slot % SensorRegistry.MAX_VALUES;
+                }
+            }
+            if (condition.sensorIndex < 0) {
+                return null;
+            }
+        }
+        return condition;
+    }
+
+    // The reading the ring is looking at.  True if it made a rule fire.
+    boolean reading(SensorRingBuffer ringBuffer, long time) {
+        int sensorIndex = ringBuffer.sensorIndex();
+        boolean fired = false;
+        for (int i = sensorStart[sensorIndex]; i < sensorStart[sensorIndex + 1]; i++) {
+            int c = sensorConditions[i];
+            float value;
+            if (sources[c] == SOURCE_MAGNITUDE) {
+                int count = Math.min(3, ringBuffer.valueCount());
+                float sum = 0;
+                for (int v = 0; v < count; v++) {
+                    sum += ringBuffer.value(v) * ringBuffer.value(v);
+                }
+                value = (float) Math.sqrt(sum);
+            } else if (valueIndexes[c] < ringBuffer.valueCount()) {
+                value = ringBuffer.value(valueIndexes[c]);
+            } else {
+                continue;
+            }
+            fired |= evaluate(c, value, time);
+        }
+        return fired;
+    }
+
+    // The latest audio levels.  True if they made a rule fire.
+    boolean audio(AudioLogger.Levels levels, long time) {
+        boolean fired = false;
+        for (int c : audioConditions) {
+            float value;
+            if (sources[c] == SOURCE_LOUDNESS) {
+                value = levels.loudness;
+            } else if (sources[c] == SOURCE_AUDIO_RMS) {
+                value = levels.rms;
+            } else {
+                value = levels.dbfs;
+            }
+            fired |= evaluate(c, value, time);
+        }
+        return fired;
+    }
+
+    // A new GPS fix.  True if it made a rule fire.
+    boolean speed(float speed, long time) {
+        boolean fired = false;
+        for (int c : speedConditions) {
+            fired |= evaluate(c, speed, time);
+        }
+        return fired;
+    }
+
+    // Whether any rule looks at this sensor's readings
+    boolean references(int sensorIndex) {
+        return sensorStart[sensorIndex + 1] > sensorStart[sensorIndex];
+    }
+
+    boolean hasAudio() {
+        return audioConditions.length > 0;
+    }
+
+    boolean hasSpeed() {
+        return speedConditions.length > 0;
+    }
+
+    // The last rule that fired, for the log
+    String firedRule() {
+        return firedRule >= 0 ? ruleTexts[firedRule] : null;
+    }
+
+    // Update one condition, then see whether its whole rule holds now
+    private boolean evaluate(int c, float value, long time) {
+        if (!SensorRegistry.isValid(value)) {
+            return false;
+        }
+        if (evaluatedAt[c] >= 0 && time > evaluatedAt[c]) {
+            // After a silence "for" starts counting again
+            if (isStale(c, time)) {
+                holdingSince[c] = -1;
+            }
+            evaluatedGap[c] = Math.min(MAX_GAP_MILLIS, time - evaluatedAt[c]);
+        }
+        evaluatedAt[c] = Math.max(evaluatedAt[c], time);
+
+        float measured = value;
+        if (rates[c]) {
+            long elapsed = time - lastTime[c];
+            if (seen[c] && elapsed <= 0) {
+                // Same time as the last one, wait for a reading we can take a rate over
+                return false;
+            }
+            boolean first = !seen[c];
+            measured = first ? 0 : (value - lastValue[c]) * 1000f / elapsed;
+            seen[c] = true;
+            lastValue[c] = value;
+            lastTime[c] = time;
+            if (first) {
+                return false;
+            }
+        }
+
+        boolean holds = above[c] ? measured > thresholds[c] : measured < thresholds[c];
+        if (!holds) {
+            holdingSince[c] = -1;
+            satisfied[c] = false;
+            return false;
+        }
+        if (holdingSince[c] < 0) {
+            holdingSince[c] = time;
+        }
+        satisfied[c] = time - holdingSince[c] >= durations[c];
+        if (!satisfied[c]) {
+            return false;
+        }
+
+        // The other conditions have to hold now too, not just when we last
+        // heard from them.  A sensor that stopped reporting or a fix from a
+        // minute ago doesn't count.
+        int rule = ruleOf[c];
+        for (int other = ruleStart[rule]; other < ruleStart[rule + 1]; other++) {
+            if (!satisfied[other] || isStale(other, time)) {
+                return false;
+            }
+        }
+        firedRule = rule;
+        return true;
+    }
+
+    private boolean isStale(int c, long time) {
+        return time - evaluatedAt[c] > Math.max(FRESH_MILLIS, 2 * evaluatedGap[c]);
+    }
+}
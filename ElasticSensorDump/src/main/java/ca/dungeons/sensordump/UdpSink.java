@@ -0,0 +1,94 @@
+package ca.dungeons.sensordump;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+// Documents as NDJSON lines in UDP datagrams, for a Logstash or Beats style
+// listener on the local network.  No connection, no acknowledgements and no
+// retries, so it costs next to nothing and loses whatever the network drops.
+//
+// Lines are packed into a datagram until the next one wouldn't fit, keep the
+// size under the path MTU so nothing gets fragmented.
+class UdpSink implements DocumentSink {
+
+    private final String host;
+    private final int port;
+    private final byte[] packet;
+    private int length = 0;
+
+    private DatagramSocket socket;
+    private DatagramPacket datagram;
+    private long oversizedDocs = 0;
+    private boolean failing = false;
+
+    UdpSink(String host, int port, int maxDatagramBytes) {
+        this.host = host;
+        this.port = port;
+        this.packet = new byte[Math.max(512, Math.min(65507, maxDatagramBytes))];
+    }
+
+    @Override
+    public void write(long timestamp, byte[] doc, int docLength, int rollupSeconds) {
+        if (docLength + 1 > packet.length) {
+            if (oversizedDocs++ % 1000 == 0) {
+                Log.v("UDP Oversized", "" + oversizedDocs);
+            }
+            return;
+        }
+        if (length + docLength + 1 > packet.length) {
+            send();
+        }
+        System.arraycopy(doc, 0, packet, length, docLength);
+        length += docLength;
+        packet[length++] = '\n';
+    }
+
+    @Override
+    public void idle() {
+        send();
+    }
+
+    @Override
+    public void stop() {
+        send();
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "udp";
+    }
+
+    private void send() {
+        if (length == 0) {
+            return;
+        }
+        try {
+            // The name is looked up here, on the sink thread, and again after a failure
+            if (socket == null) {
+                socket = new DatagramSocket();
+                datagram = new DatagramPacket(packet, 0, InetAddress.getByName(host), port);
+            }
+            datagram.setLength(length);
+            socket.send(datagram);
+            failing = false;
+        } catch (IOException e) {
+            if (!failing) {
+                Log.v("UDP Error", e.toString());
+                failing = true;
+            }
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+        length = 0;
+    }
+}
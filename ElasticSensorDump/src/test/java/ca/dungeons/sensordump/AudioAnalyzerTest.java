@@ -0,0 +1,106 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Synthetic tones with known level and pitch
+public class AudioAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FFT_SIZE = 4096;
+    private static final int[] BANDS = {63, 125, 250, 500, 1000, 2000, 4000, 8000, 16000};
+    private static final int BAND_1K = 4;
+
+    private final AudioAnalyzer analyzer = new AudioAnalyzer(SAMPLE_RATE, FFT_SIZE, BANDS);
+
+    @Test
+    public void sineLevels() {
+        analyzer.analyze(tone(8192, 0.5, 1000), 0, 8192);
+
+        // A sine's RMS is its amplitude over root two, -9.03 dBFS at half scale
+        assertEquals(0.5 / Math.sqrt(2), analyzer.rms(), 0.001);
+        assertEquals(20 * Math.log10(0.5 / Math.sqrt(2)), analyzer.dbfs(), 0.05);
+        assertEquals(50, analyzer.loudness(), 0.1);
+    }
+
+    @Test
+    public void sinePitch() {
+        // Off the bin centres too, the peak is interpolated between bins
+        for (double frequency : new double[]{440, 1000, 1234.5, 3000.7, 9876}) {
+            analyzer.analyze(tone(FFT_SIZE, 0.25, frequency), 0, FFT_SIZE);
+            assertEquals(frequency, analyzer.dominantFrequency(), 1.0);
+            assertEquals(frequency, analyzer.spectralCentroid(), frequency * 0.05);
+        }
+    }
+
+    @Test
+    public void sineLandsInItsBand() {
+        analyzer.analyze(tone(FFT_SIZE, 0.5, 1000), 0, FFT_SIZE);
+        assertEquals(BANDS.length, analyzer.bandCount());
+        assertEquals(1000, analyzer.bandCenter(BAND_1K));
+
+        // All of the energy is in the 1 kHz band, the window's leakage barely
+        // reaches the next ones
+        assertEquals(analyzer.dbfs(), analyzer.bandLevel(BAND_1K), 0.5);
+        for (int band = 0; band < BANDS.length; band++) {
+            if (band != BAND_1K) {
+                assertTrue(band + " " + analyzer.bandLevel(band), analyzer.bandLevel(band) < analyzer.dbfs() - 40);
+            }
+        }
+    }
+
+    @Test
+    public void twoTonesCentroidBetween() {
+        short[] low = tone(FFT_SIZE, 0.25, 500);
+        short[] high = tone(FFT_SIZE, 0.25, 4000);
+        short[] mix = new short[FFT_SIZE];
+        for (int i = 0; i < FFT_SIZE; i++) {
+            mix[i] = (short) (low[i] + high[i]);
+        }
+        analyzer.analyze(mix, 0, FFT_SIZE);
+
+        // Equal power at both, so the centroid is halfway
+        assertEquals(2250, analyzer.spectralCentroid(), 50);
+        assertEquals(analyzer.bandLevel(3), analyzer.bandLevel(6), 0.5);
+    }
+
+    @Test
+    public void silence() {
+        analyzer.analyze(new short[FFT_SIZE], 0, FFT_SIZE);
+        assertEquals(0, analyzer.rms(), 0);
+        assertEquals(AudioAnalyzer.MIN_DB, analyzer.dbfs(), 0);
+        assertEquals(0, analyzer.loudness(), 0);
+        assertEquals(0, analyzer.dominantFrequency(), 0);
+        for (int band = 0; band < BANDS.length; band++) {
+            assertEquals(AudioAnalyzer.MIN_DB, analyzer.bandLevel(band), 0);
+        }
+    }
+
+    @Test
+    public void shortBufferIsZeroPadded() {
+        // Fewer samples than the FFT, the pitch comes out coarser but right
+        analyzer.analyze(tone(1024, 0.5, 2000), 0, 1024);
+        assertEquals(2000, analyzer.dominantFrequency(), 25);
+        assertEquals(0.5 / Math.sqrt(2), analyzer.rms(), 0.005);
+    }
+
+    @Test
+    public void offsetAndCount() {
+        short[] samples = new short[FFT_SIZE * 2];
+        short[] sine = tone(FFT_SIZE, 0.5, 1500);
+        System.arraycopy(sine, 0, samples, FFT_SIZE, FFT_SIZE);
+        analyzer.analyze(samples, FFT_SIZE, FFT_SIZE);
+        assertEquals(1500, analyzer.dominantFrequency(), 1.0);
+    }
+
+    // count samples of a sine at amplitude times full scale
+    private static short[] tone(int count, double amplitude, double frequency) {
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,84 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Batches come out whole and in order, and once the listener hands the bodies
+// back, batching doesn't allocate any more than the encoder does
+public class BulkBatcherTest {
+
+    private static final byte[] ACTION = "{\"create\":{\"_id\":\"x\"}}\n".getBytes(StandardCharsets.UTF_8);
+
+    private BulkBatcher batcher;
+
+    @Test
+    public void batchesByCountAndSize() {
+        final List<String> batches = new ArrayList<>();
+        batcher = new BulkBatcher(3, 1024, 0, new BulkBatcher.Listener() {
+            @Override
+            public void onBatchReady(byte[] body, int length, int docCount) {
+                batches.add(docCount + ":" + new String(body, 0, length, StandardCharsets.UTF_8));
+                batcher.recycle(body);
+            }
+        });
+        for (int i = 0; i < 7; i++) {
+            byte[] doc = ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+            batcher.add(ACTION, ACTION.length, doc, 0, doc.length);
+        }
+        batcher.flush();
+
+        assertEquals(3, batches.size());
+        assertEquals("3:" + pair(0) + pair(1) + pair(2), batches.get(0));
+        assertEquals("3:" + pair(3) + pair(4) + pair(5), batches.get(1));
+        assertEquals("1:" + pair(6), batches.get(2));
+    }
+
+    @Test
+    public void recycledBodiesDoNotAllocate() {
+        final int[] batches = new int[1];
+        batcher = new BulkBatcher(100, 512 * 1024, 0, new BulkBatcher.Listener() {
+            @Override
+            public void onBatchReady(byte[] body, int length, int docCount) {
+                batches[0]++;
+                batcher.recycle(body);
+            }
+        });
+        byte[] doc = new byte[600];
+        Arrays.fill(doc, (byte) '1');
+
+        for (int i = 0; i < 20000; i++) {
+            batcher.add(ACTION, ACTION.length, doc, 0, doc.length);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long after = threads.getThreadAllocatedBytes(thread);
+        long measuring = after - before;
+
+        int documents = 10000;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < documents; i++) {
+            batcher.add(ACTION, ACTION.length, doc, 0, doc.length);
+        }
+        after = threads.getThreadAllocatedBytes(thread);
+
+        // A Batch to carry each body out from under the lock is all there is
+        long allocated = after - before - measuring;
+        assertTrue(batches[0] > 100);
+        assertTrue(allocated + " bytes over " + documents + " documents", allocated < documents);
+    }
+
+    private static String pair(int n) {
+        return new String(ACTION, StandardCharsets.UTF_8) + "{\"n\":" + n + "}\n";
+    }
+}
@@ -0,0 +1,159 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// Spooled documents come back in order, across segments and restarts, and a
+// chunk that was never committed comes back again
+public class DocumentSpoolTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysInOrderAcrossSegments() throws IOException {
+        File dir = folder.newFolder("spool");
+        DocumentSpool spool = new DocumentSpool(dir, SEGMENT_BYTES, 1024 * 1024);
+        for (int i = 0; i < 200; i++) {
+            append(spool, i);
+        }
+        assertEquals(200, spool.pendingDocs());
+
+        List<Integer> replayed = new ArrayList<>();
+        DocumentSpool.Chunk chunk;
+        while ((chunk = spool.drain(1000)) != null) {
+            ids(chunk, replayed);
+            spool.commit(chunk);
+        }
+        assertEquals(200, replayed.size());
+        for (int i = 0; i < replayed.size(); i++) {
+            assertEquals(i, replayed.get(i).intValue());
+        }
+        assertEquals(0, spool.pendingDocs());
+    }
+
+    @Test
+    public void uncommittedChunkSurvivesRestart() throws IOException {
+        File dir = folder.newFolder("spool");
+        DocumentSpool spool = new DocumentSpool(dir, SEGMENT_BYTES, 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            append(spool, i);
+        }
+        List<Integer> replayed = new ArrayList<>();
+        DocumentSpool.Chunk committed = spool.drain(1000);
+        ids(committed, replayed);
+        spool.commit(committed);
+
+        // Sent, but the answer never came before the app went away
+        DocumentSpool.Chunk lost = spool.drain(1000);
+        spool.sync();
+
+        DocumentSpool reopened = new DocumentSpool(dir, SEGMENT_BYTES, 1024 * 1024);
+        assertEquals(100 - committed.docCount, reopened.pendingDocs());
+        DocumentSpool.Chunk again = reopened.drain(1000);
+        assertEquals(lost.docCount, again.docCount);
+
+        DocumentSpool.Chunk chunk = again;
+        while (chunk != null) {
+            ids(chunk, replayed);
+            reopened.commit(chunk);
+            chunk = reopened.drain(1000);
+        }
+        assertEquals(100, replayed.size());
+        for (int i = 0; i < replayed.size(); i++) {
+            assertEquals(i, replayed.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws IOException {
+        DocumentSpool spool = new DocumentSpool(folder.newFolder("spool"), SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+        for (int i = 0; i < 1000; i++) {
+            append(spool, i);
+        }
+        assertEquals(1000, spool.pendingDocs() + spool.droppedDocs());
+
+        // Whatever is left is the newest, still in order
+        List<Integer> replayed = new ArrayList<>();
+        DocumentSpool.Chunk chunk;
+        while ((chunk = spool.drain(SEGMENT_BYTES)) != null) {
+            ids(chunk, replayed);
+            spool.commit(chunk);
+        }
+        assertEquals(999, replayed.get(replayed.size() - 1).intValue());
+        for (int i = 1; i < replayed.size(); i++) {
+            assertEquals(replayed.get(i - 1) + 1, replayed.get(i).intValue());
+        }
+        assertNull(spool.drain(SEGMENT_BYTES));
+    }
+
+    @Test
+    public void drainsOneDocumentUnderTinyLimit() throws IOException {
+        DocumentSpool spool = new DocumentSpool(folder.newFolder("spool"), SEGMENT_BYTES, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            append(spool, i);
+        }
+        List<Integer> replayed = new ArrayList<>();
+        DocumentSpool.Chunk chunk;
+        while ((chunk = spool.drain(1)) != null) {
+            assertEquals(1, chunk.docCount);
+            ids(chunk, replayed);
+            spool.commit(chunk);
+        }
+        assertEquals(3, replayed.size());
+    }
+
+    @Test
+    public void skipsTornEndOfSegment() throws IOException {
+        DocumentSpool spool = new DocumentSpool(folder.newFolder("spool"), SEGMENT_BYTES, 1024 * 1024);
+        append(spool, 0);
+        // What a crash part way through a write can leave behind
+        byte[] torn = "{\"create\":{\"_id\":\"1\"}}\n{\"n\"".getBytes(StandardCharsets.UTF_8);
+        spool.append(torn, torn.length, 1);
+        // Too big for what's left, so this starts the next segment
+        byte[] big = new byte[SEGMENT_BYTES - 64];
+        Arrays.fill(big, (byte) ' ');
+        byte[] pair = "{\"create\":{\"_id\":\"2\"}}\n{}\n".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(pair, 0, big, 0, pair.length - 1);
+        big[big.length - 1] = '\n';
+        spool.append(big, big.length, 1);
+
+        List<Integer> replayed = new ArrayList<>();
+        DocumentSpool.Chunk chunk;
+        while ((chunk = spool.drain(SEGMENT_BYTES * 4)) != null) {
+            ids(chunk, replayed);
+            spool.commit(chunk);
+        }
+        assertEquals(2, replayed.size());
+        assertEquals(0, replayed.get(0).intValue());
+        assertEquals(2, replayed.get(1).intValue());
+        assertEquals(0, spool.pendingDocs());
+    }
+
+    private static void append(DocumentSpool spool, int id) {
+        byte[] body = ("{\"create\":{\"_id\":\"" + id + "\"}}\n{\"n\":" + id + "}\n").getBytes(StandardCharsets.UTF_8);
+        spool.append(body, body.length, 1);
+    }
+
+    private static void ids(DocumentSpool.Chunk chunk, List<Integer> into) {
+        String[] lines = new String(chunk.data, 0, chunk.length, StandardCharsets.UTF_8).split("\n");
+        assertEquals(chunk.docCount * 2, lines.length);
+        for (int i = 0; i < lines.length; i += 2) {
+            int start = lines[i].indexOf("\"_id\":\"") + 7;
+            into.add(Integer.parseInt(lines[i].substring(start, lines[i].indexOf('"', start))));
+        }
+    }
+}
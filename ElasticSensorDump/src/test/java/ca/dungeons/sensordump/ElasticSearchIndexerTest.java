@@ -0,0 +1,435 @@
+package ca.dungeons.sensordump;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The whole way out, BulkBatcher through the senders and the spool, against a
+// stand-in _bulk endpoint on localhost.  The stand-in can be down, slow, hang
+// up part way through a request, and turn whole requests or single items away
+// the way a busy cluster does.  Whatever it does, every document has to be
+// created exactly once.  Each test prints its documents per second and the
+// bytes per document that went over the wire, resends included.
+public class ElasticSearchIndexerTest {
+
+    private static final String SESSION = "test";
+    private static final long START = 1500000000000L;
+    private static final long DEADLINE_MS = 60000;
+    // A value the stand-in can't read, the whole _bulk it's in gets a 400
+    private static final String POISON = "\"poison\"";
+
+    // Lowest rate the throughput run has to manage, far below what it does.
+    // It's a floor for something gone badly wrong, not a benchmark.
+    private static final double MIN_DOCS_PER_SECOND = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public TestName testName = new TestName();
+
+    private BulkStandIn standIn;
+    private ElasticSearchIndexer indexer;
+    private final Set<String> sent = new HashSet<>();
+    private long nextTimestamp = START;
+    private long started;
+    private double docsPerSecond;
+    private double bytesPerDoc;
+
+    @Before
+    public void setUp() throws IOException {
+        standIn = new BulkStandIn();
+        Metrics metrics = new Metrics(new SensorRegistry(new int[0], new String[0]));
+        indexer = new ElasticSearchIndexer(folder.newFolder("es"), metrics, "", SESSION);
+        indexer.updateURL(new TestPreferences()
+                .set("host", "127.0.0.1")
+                .set("port", standIn.port())
+                .set("bulk_max_docs", 10)
+                .set("bulk_linger_ms", 50)
+                .set("max_retries", 1)
+                .set("sender_threads", 2));
+    }
+
+    @After
+    public void tearDown() {
+        indexer.stop();
+        standIn.stop();
+    }
+
+    @Test
+    public void everyDocumentOnceThroughRejections() throws InterruptedException {
+        standIn.rejectEvery(7, 11, 5);
+        for (int i = 0; i < 300; i++) {
+            write();
+        }
+        finish();
+    }
+
+    @Test
+    public void everyDocumentOnceThroughTimeoutsAndDrops() throws InterruptedException {
+        // Every request a little slow, some slower than the read timeout, and
+        // some hung up on after their documents went in
+        standIn.delay(5, 4, 3000);
+        standIn.dropEvery(3);
+        for (int i = 0; i < 300; i++) {
+            write();
+        }
+        // Let the faults play out before finish() stops them
+        long deadline = System.currentTimeMillis() + DEADLINE_MS;
+        while ((standIn.slowed.get() < 2 || standIn.dropped.get() < 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(3000);
+        finish();
+    }
+
+    @Test
+    public void throughput() throws InterruptedException {
+        indexer.updateURL(new TestPreferences()
+                .set("host", "127.0.0.1")
+                .set("port", standIn.port())
+                .set("bulk_max_docs", 100)
+                .set("bulk_linger_ms", 50)
+                .set("sender_threads", 2));
+        // About a full document with a handful of sensors, GPS and audio
+        char[] readings = new char[480];
+        Arrays.fill(readings, '1');
+        String value = new String(readings);
+
+        standIn.delay(10, 0, 0);
+        for (int i = 0; i < 20000; i++) {
+            write(value);
+        }
+        finish();
+
+        // Nothing went over the wire twice, each document cost its own lines and no more
+        assertEquals(standIn.createdBytes.get(), standIn.bulkBytes.get());
+        assertTrue(docsPerSecond + " documents per second", docsPerSecond >= MIN_DOCS_PER_SECOND);
+    }
+
+    @Test
+    public void everyDocumentOnceAfterTheSpool() throws InterruptedException {
+        // Down long enough for every batch to run out of retries and land in the spool
+        standIn.down = true;
+        for (int i = 0; i < 40; i++) {
+            write();
+        }
+        long deadline = System.currentTimeMillis() + DEADLINE_MS;
+        while (standIn.refused.get() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(500);
+        assertEquals(0, standIn.created.size());
+
+        // Back up, but busy.  New documents bring the spooled ones along.
+        standIn.down = false;
+        standIn.rejectEvery(7, 11, 5);
+        for (int i = 0; i < 100; i++) {
+            write();
+            Thread.sleep(5);
+        }
+        finish();
+    }
+
+    @Test
+    public void badDocumentDoesNotHoldUpTheSpool() throws InterruptedException {
+        // The whole batch with it gets a 400, the spool splits it off
+        for (int i = 0; i < 60; i++) {
+            if (i == 25) {
+                write(POISON);
+            } else {
+                write();
+            }
+        }
+        finish();
+    }
+
+    @Test
+    public void everyDocumentOnceAfterAuthFailure() throws InterruptedException {
+        // Wrong password for a while, the documents wait in the spool
+        standIn.refuseWith = 401;
+        for (int i = 0; i < 40; i++) {
+            write();
+        }
+        long deadline = System.currentTimeMillis() + DEADLINE_MS;
+        while (standIn.refused.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, standIn.created.size());
+
+        standIn.refuseWith = 0;
+        finish();
+    }
+
+    @Test
+    public void noLingerSendsOnceTheQueueIsEmpty() throws InterruptedException {
+        indexer.updateURL(new TestPreferences()
+                .set("host", "127.0.0.1")
+                .set("port", standIn.port())
+                .set("bulk_max_docs", 1000)
+                .set("bulk_linger_ms", 0));
+        for (int i = 0; i < 5; i++) {
+            write();
+        }
+        indexer.idle();
+        long deadline = System.currentTimeMillis() + DEADLINE_MS;
+        while (standIn.created.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(sent, new HashSet<>(standIn.created));
+    }
+
+    // One small document with its own _id
+    private void write() {
+        write("1.5");
+    }
+
+    private void write(String value) {
+        if (started == 0) {
+            started = System.nanoTime();
+        }
+        long timestamp = nextTimestamp++;
+        byte[] doc = ("{\"@timestamp\":" + timestamp + ",\"light0\":" + value + "}").getBytes(StandardCharsets.UTF_8);
+        indexer.write(timestamp, doc, doc.length, 0);
+        if (!value.equals(POISON)) {
+            sent.add(SESSION + "-" + timestamp);
+        }
+    }
+
+    // Stop the faults and keep a trickle of documents going, each one gives the
+    // spool a chance to replay, until everything sent has arrived
+    private void finish() throws InterruptedException {
+        standIn.clearFaults();
+        long deadline = System.currentTimeMillis() + DEADLINE_MS;
+        for (int checks = 1; !standIn.created.containsAll(sent); checks++) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+            Thread.sleep(20);
+            if (checks % 5 == 0) {
+                write();
+            }
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Thread.sleep(200);
+
+        assertEquals(sent, new HashSet<>(standIn.created));
+        assertEquals(Collections.<String>emptySet(), standIn.duplicates);
+
+        docsPerSecond = sent.size() / seconds;
+        bytesPerDoc = (double) standIn.bulkBytes.get() / standIn.created.size();
+        System.out.println(String.format(Locale.ROOT, "%s: %d documents, %.0f/s, %.1f bytes each over the wire",
+                testName.getMethodName(), sent.size(), docsPerSecond, bytesPerDoc));
+    }
+
+    // Just enough of Elastic: a template endpoint that says yes, and a _bulk
+    // that creates each _id once and answers per item.  A 409 is only a
+    // duplicate if the sender was told about the 201 first, after a timeout or
+    // a dropped connection it can't know and has to send again.
+    private static class BulkStandIn implements HttpHandler {
+
+        private final HttpServer server;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        final Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> acknowledged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> duplicates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger refused = new AtomicInteger();
+        final AtomicInteger slowed = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+
+        // Every _bulk byte that came in, and the bytes of the items that were
+        // created by it.  The difference is what was sent more than once.
+        final AtomicLong bulkBytes = new AtomicLong();
+        final AtomicLong createdBytes = new AtomicLong();
+
+        volatile boolean down = false;
+        // Every _bulk refused outright with this, 0 for never
+        volatile int refuseWith = 0;
+
+        // Every nth request turned away whole with a 429 or a 503, and every
+        // third item of every nth request with a 429.  0 for never.
+        private volatile int tooManyEvery;
+        private volatile int unavailableEvery;
+        private volatile int itemsEvery;
+
+        // Every _bulk answered after latencyMs, and every nth one after slowMs,
+        // long enough for the sender to give up on it
+        private volatile int latencyMs;
+        private volatile int slowEvery;
+        private volatile int slowMs;
+
+        // Every nth _bulk has its items created and then the connection closed
+        // without an answer
+        private volatile int dropEvery;
+
+        BulkStandIn() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newFixedThreadPool(8));
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        void rejectEvery(int tooMany, int unavailable, int items) {
+            tooManyEvery = tooMany;
+            unavailableEvery = unavailable;
+            itemsEvery = items;
+        }
+
+        void delay(int latency, int every, int slow) {
+            latencyMs = latency;
+            slowEvery = every;
+            slowMs = slow;
+        }
+
+        void dropEvery(int every) {
+            dropEvery = every;
+        }
+
+        void clearFaults() {
+            rejectEvery(0, 0, 0);
+            delay(0, 0, 0);
+            dropEvery(0);
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = read(exchange.getRequestBody());
+            String body = new String(bytes, StandardCharsets.UTF_8);
+            String path = exchange.getRequestURI().getPath();
+            if (!path.equals("/_bulk")) {
+                // Template
+                respond(exchange, 200, "{\"acknowledged\":true}");
+                return;
+            }
+
+            int request = requests.incrementAndGet();
+            bulkBytes.addAndGet(bytes.length);
+            boolean slow = isNth(request, slowEvery);
+            if (slow) {
+                slowed.incrementAndGet();
+            }
+            try {
+                Thread.sleep(slow ? slowMs : latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (down || isNth(request, unavailableEvery)) {
+                refused.incrementAndGet();
+                respond(exchange, 503, "{\"error\":\"unavailable\"}");
+                return;
+            }
+            if (refuseWith > 0) {
+                refused.incrementAndGet();
+                respond(exchange, refuseWith, "{\"error\":\"refused\"}");
+                return;
+            }
+            if (body.contains(POISON)) {
+                respond(exchange, 400, "{\"error\":\"parse_exception\"}");
+                return;
+            }
+            if (isNth(request, tooManyEvery)) {
+                refused.incrementAndGet();
+                respond(exchange, 429, "{\"error\":\"too many requests\"}");
+                return;
+            }
+
+            String[] lines = body.split("\n");
+            Set<String> createdHere = new HashSet<>();
+            StringBuilder response = new StringBuilder("{\"took\":1,\"errors\":false,\"items\":[");
+            for (int item = 0; item * 2 < lines.length; item++) {
+                String id = id(lines[item * 2]);
+                int status;
+                if (isNth(request, itemsEvery) && item % 3 == 0) {
+                    status = 429;
+                } else if (created.add(id)) {
+                    createdHere.add(id);
+                    createdBytes.addAndGet(lines[item * 2].length() + lines[item * 2 + 1].length() + 2);
+                    status = 201;
+                } else {
+                    if (acknowledged.contains(id)) {
+                        duplicates.add(id);
+                    }
+                    status = 409;
+                }
+                if (item > 0) {
+                    response.append(',');
+                }
+                response.append("{\"create\":{\"_id\":\"").append(id).append("\",\"status\":").append(status).append("}}");
+            }
+            response.append("]}");
+
+            if (isNth(request, dropEvery)) {
+                dropped.incrementAndGet();
+                exchange.close();
+                return;
+            }
+            respond(exchange, 200, response.toString());
+            acknowledged.addAll(createdHere);
+        }
+
+        private static boolean isNth(int request, int every) {
+            return every > 0 && request % every == 0;
+        }
+
+        private static String id(String action) {
+            int start = action.indexOf("\"_id\":\"") + 7;
+            return action.substring(start, action.indexOf('"', start));
+        }
+
+        private static byte[] read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] scratch = new byte[4096];
+            int read;
+            while ((read = in.read(scratch)) != -1) {
+                out.write(scratch, 0, read);
+            }
+            return out.toByteArray();
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+// Against published WGS84 geodesic distances
+public class GeodesicTest {
+
+    @Test
+    public void flindersPeakToBuninyong() {
+        // Vincenty's direct/inverse worked example, as published by Geoscience Australia
+        double distance = Geodesic.distance(dms(-37, 57, 3.72030), dms(144, 25, 29.52440),
+                dms(-37, 39, 10.15610), dms(143, 55, 35.38390));
+        assertEquals(54972.271, distance, 0.001);
+    }
+
+    @Test
+    public void quarterMeridian() {
+        assertEquals(10001965.729, Geodesic.distance(0, 0, 90, 0), 0.001);
+        assertEquals(10001965.729, Geodesic.distance(-90, 0, 0, 123), 0.001);
+    }
+
+    @Test
+    public void alongTheEquator() {
+        assertEquals(111319.491, Geodesic.distance(0, 0, 0, 1), 0.001);
+        assertEquals(111319.491, Geodesic.distance(0, 179.5, 0, -179.5), 0.001);
+    }
+
+    @Test
+    public void samePointIsZero() {
+        assertEquals(0, Geodesic.distance(45.5, -75.25, 45.5, -75.25), 0);
+    }
+
+    @Test
+    public void symmetric() {
+        assertEquals(Geodesic.distance(51.47, -0.45, 40.64, -73.78),
+                Geodesic.distance(40.64, -73.78, 51.47, -0.45), 1e-6);
+    }
+
+    @Test
+    public void nearlyAntipodalFallsBack() {
+        // Vincenty doesn't converge on these, haversine is good to 0.5%
+        double halfMeridian = 2 * 10001965.729;
+        assertEquals(halfMeridian, Geodesic.distance(0, 0, 0, 180), halfMeridian * 0.005);
+        assertEquals(19936288.579, Geodesic.distance(0, 0, 0.5, 179.7), 19936288.579 * 0.005);
+    }
+
+    @Test
+    public void localScaleMatchesTheEllipsoid() {
+        for (int lat = -80; lat <= 80; lat += 10) {
+            assertEquals(Geodesic.distance(lat - 0.005, 10, lat + 0.005, 10) * 100,
+                    Geodesic.metresPerDegreeLat(lat), 1.0);
+            assertEquals(Geodesic.distance(lat, 9.995, lat, 10.005) * 100,
+                    Geodesic.metresPerDegreeLon(lat), 1.0);
+        }
+    }
+
+    private static double dms(int degrees, int minutes, double seconds) {
+        double value = Math.abs(degrees) + minutes / 60.0 + seconds / 3600.0;
+        return degrees < 0 ? -value : value;
+    }
+}
@@ -0,0 +1,131 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Synthetic tracks with known truth, distances measured with Geodesic
+public class PositionFilterTest {
+
+    private static final double LAT = 45.0;
+    private static final double LON = -75.0;
+
+    private final Random random = new Random(1);
+    private final double metresPerLat = Geodesic.metresPerDegreeLat(LAT);
+    private final double metresPerLon = Geodesic.metresPerDegreeLon(LAT);
+
+    @Test
+    public void noisyStraightLineKeepsItsLength() {
+        double[] estimate = new double[3];
+        double filtered = straightLine(true, estimate);
+        assertEquals(1200, filtered, 1200 * 0.03);
+        assertEquals(10, estimate[2], 0.5);
+    }
+
+    @Test
+    public void noisyStraightLineWithoutSpeed() {
+        // Only positions to go on, so it can't do as well
+        double[] estimate = new double[3];
+        double filtered = straightLine(false, estimate);
+        assertEquals(1200, filtered, 1200 * 0.1);
+        assertEquals(10, estimate[2], 1.5);
+    }
+
+    // 10 m/s north for two minutes, fixes every second with 5 m of noise.
+    // Returns the length of the filtered track, the raw one is far longer.
+    private double straightLine(boolean withSpeed, double[] estimate) {
+        PositionFilter filter = new PositionFilter();
+        double raw = 0;
+        double filtered = 0;
+        double[] lastRaw = null;
+        double[] lastFiltered = null;
+        for (int second = 0; second <= 120; second++) {
+            double lat = LAT + (10.0 * second + random.nextGaussian() * 5) / metresPerLat;
+            double lon = LON + random.nextGaussian() * 5 / metresPerLon;
+            float speed = withSpeed ? 10 + (float) random.nextGaussian() * 0.3f : -1;
+            float bearing = withSpeed ? 360 + (float) random.nextGaussian() * 2 : Float.NaN;
+            filter.update(lat, lon, 5f, speed, bearing % 360, second * 1000L);
+            assertTrue(filter.estimate(second * 1000L, estimate));
+            if (lastRaw != null) {
+                raw += Geodesic.distance(lastRaw[0], lastRaw[1], lat, lon);
+                filtered += Geodesic.distance(lastFiltered[0], lastFiltered[1], estimate[0], estimate[1]);
+            }
+            lastRaw = new double[]{lat, lon};
+            lastFiltered = new double[]{estimate[0], estimate[1]};
+        }
+        assertTrue("raw " + raw, raw > 1200 * 1.2);
+        return filtered;
+    }
+
+    @Test
+    public void parkedJitterAddsLittleDistance() {
+        // Five minutes in a parking lot with 5 m of noise and a little speed
+        // noise, through the logger so its parked speed counts too
+        GPSLogger gpsLogger = new GPSLogger();
+        gpsLogger.setFiltering(true);
+        double raw = 0;
+        double lastLat = LAT;
+        double lastLon = LON;
+        for (int second = 0; second <= 300; second++) {
+            double lat = LAT + random.nextGaussian() * 5 / metresPerLat;
+            double lon = LON + random.nextGaussian() * 5 / metresPerLon;
+            gpsLogger.onFix(lat, lon, 100, 5f, random.nextFloat() * 360, Math.abs((float) random.nextGaussian() * 0.2f), "gps", second * 1000L);
+            if (second > 0) {
+                raw += Geodesic.distance(lastLat, lastLon, lat, lon);
+            }
+            lastLat = lat;
+            lastLon = lon;
+        }
+
+        double filtered = gpsLogger.fix().totalDistance;
+        assertTrue("raw " + raw + " filtered " + filtered, filtered < raw * 0.05);
+    }
+
+    @Test
+    public void estimatesBetweenFixes() {
+        // 10 m/s east with speed and bearing, exact fixes
+        PositionFilter filter = new PositionFilter();
+        for (int second = 0; second <= 20; second++) {
+            filter.update(LAT, LON + 10.0 * second / metresPerLon, 3f, 10f, 90f, second * 1000L);
+        }
+        double[] estimate = new double[3];
+        assertTrue(filter.estimate(20500, estimate));
+        assertEquals(205, Geodesic.distance(LAT, LON, estimate[0], estimate[1]), 1);
+        assertEquals(10, estimate[2], 0.5);
+    }
+
+    @Test
+    public void estimatesReachBack() {
+        PositionFilter filter = new PositionFilter();
+        double[] estimate = new double[3];
+        assertFalse(filter.estimate(0, estimate));
+
+        for (int second = 10; second <= 30; second++) {
+            filter.update(LAT, LON + 10.0 * (second - 10) / metresPerLon, 3f, 10f, 90f, second * 1000L);
+        }
+
+        // Before the first fix there's nothing to go on
+        assertFalse(filter.estimate(9999, estimate));
+
+        // A document held back for its window gets where we were then
+        assertTrue(filter.estimate(15500, estimate));
+        assertEquals(55, Geodesic.distance(LAT, LON, estimate[0], estimate[1]), 2);
+    }
+
+    @Test
+    public void longTripStaysOnTrack() {
+        // 30 km east, past where the filter moves its origin
+        PositionFilter filter = new PositionFilter();
+        for (int second = 0; second <= 1000; second++) {
+            filter.update(LAT, LON + 30.0 * second / metresPerLon, 3f, 30f, 90f, second * 1000L);
+        }
+        double[] estimate = new double[3];
+        assertTrue(filter.estimate(1000000, estimate));
+        assertEquals(0, Geodesic.distance(LAT, LON + 30000 / metresPerLon, estimate[0], estimate[1]), 3);
+        assertEquals(30000, Geodesic.distance(LAT, LON, estimate[0], estimate[1]), 30);
+    }
+}
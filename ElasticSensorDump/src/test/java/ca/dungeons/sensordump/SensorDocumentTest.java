@@ -0,0 +1,147 @@
+package ca.dungeons.sensordump;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// The encoder runs for every document on the ingest thread, so once it's warm
+// it mustn't allocate at all, and whatever it writes has to be valid JSON
+public class SensorDocumentTest {
+
+    private static final long START = 1500000000000L;
+    private static final int WINDOW = 250;
+    private static final byte[] TAG = SensorDocument.stringValue("phone_data");
+
+    private SensorRegistry registry;
+    private GPSLogger gpsLogger;
+    private AudioLogger audioLogger;
+    private SensorDocument document;
+    private final Random random = new Random(1);
+    private final float[] bandLevels = new float[16];
+    private long timestamp = START;
+
+    @Before
+    public void setUp() {
+        registry = new SensorRegistry(new int[]{1, 4, 6, 65599},
+                new String[]{"accelerometer", "gyroscope", "pressure", "moto_accelerometer"});
+        gpsLogger = new GPSLogger();
+        audioLogger = new AudioLogger();
+        document = new SensorDocument(registry, gpsLogger, audioLogger);
+        document.reset(START);
+    }
+
+    @Test
+    public void encodeDoesNotAllocate() {
+        assertNoAllocation();
+    }
+
+    @Test
+    public void encodeDoesNotAllocateWhileAggregating() {
+        document.setAggregating(true);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void encodeDoesNotAllocateWithRollups() {
+        document.setRollups(true);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void nonFiniteValuesStayOut() throws Exception {
+        gpsLogger.onFix(45.0, -75.0, 100.0, 5f, Float.NaN, Float.POSITIVE_INFINITY, "gps", START);
+        audioLogger.addBuffer(START + 10, Float.NaN, Float.POSITIVE_INFINITY, 0.5f, -6f, 1000f, bandLevels);
+        audioLogger.closeWindow(START + WINDOW, null);
+        document.setChannel(SensorRegistry.slot(0, 0), Float.NaN);
+        document.setChannel(SensorRegistry.slot(0, 1), 1.5f);
+        document.setTimestamp(START + WINDOW);
+
+        JSONObject parsed = new JSONObject(encode());
+        assertFalse(parsed.has("loudness"));
+        assertFalse(parsed.has("frequency"));
+        assertFalse(parsed.has("accelerometer0"));
+        assertEquals(1.5, parsed.getDouble("accelerometer1"), 0);
+        assertEquals(0.5, parsed.getDouble("audio_rms"), 1e-6);
+        assertEquals("phone_data", parsed.getString("tag"));
+    }
+
+    @Test
+    public void everyDocumentIsValidJson() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            nextWindow();
+            JSONObject parsed = new JSONObject(encode());
+            assertTrue(parsed.has("@timestamp"));
+        }
+    }
+
+    // Warm up until the JIT is done with it, then count the bytes this thread
+    // allocates over a run of documents, readings, fixes and audio included
+    private void assertNoAllocation() {
+        for (int i = 0; i < 20000; i++) {
+            nextWindow();
+            document.encode(TAG);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long after = threads.getThreadAllocatedBytes(thread);
+        long measuring = after - before;
+
+        int documents = 10000;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < documents; i++) {
+            setChannels();
+            timestamp += WINDOW;
+            document.setTimestamp(timestamp);
+            document.encode(TAG);
+        }
+        after = threads.getThreadAllocatedBytes(thread);
+
+        // Less than a byte per document is measuring noise, not the encoder
+        long allocated = after - before - measuring;
+        assertTrue(allocated + " bytes over " + documents + " documents", allocated < documents);
+    }
+
+    private void nextWindow() {
+        setChannels();
+        timestamp += WINDOW;
+        if (random.nextInt(4) == 0) {
+            gpsLogger.onFix(45 + random.nextDouble() * 1e-3, -75 + random.nextDouble() * 1e-3,
+                    100 + random.nextDouble(), 5f, random.nextFloat() * 360, random.nextFloat() * 30, "gps",
+                    timestamp - 100);
+        }
+        for (int b = 0; b < 6; b++) {
+            for (int q = 0; q < bandLevels.length; q++) {
+                bandLevels[q] = -random.nextFloat() * 90;
+            }
+            audioLogger.addBuffer(timestamp - WINDOW + b * 40, random.nextFloat() * 100,
+                    300 + random.nextFloat() * 900, random.nextFloat(), -random.nextFloat() * 60,
+                    random.nextFloat() * 4000, bandLevels);
+        }
+        audioLogger.closeWindow(timestamp, null);
+        document.setTimestamp(timestamp);
+    }
+
+    private void setChannels() {
+        for (int sensor = 0; sensor < registry.sensorCount(); sensor++) {
+            for (int value = 0; value < 3; value++) {
+                document.setChannel(SensorRegistry.slot(sensor, value), (random.nextFloat() - 0.5f) * 20);
+            }
+        }
+    }
+
+    private String encode() {
+        int length = document.encode(TAG);
+        return new String(document.buffer(), 0, length, StandardCharsets.UTF_8);
+    }
+}
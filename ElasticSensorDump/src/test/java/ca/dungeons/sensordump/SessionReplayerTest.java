@@ -0,0 +1,146 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// A session recorded the way SensorPipeline feeds the recorder and played back
+// has to come out as the same documents, byte for byte
+public class SessionReplayerTest {
+
+    private static final long START = 1500000000000L;
+    private static final int REFRESH = 250;
+    private static final int[] TYPES = {1, 4, 65599};
+    private static final String[] NAMES = {"accelerometer", "gyroscope", "moto_accelerometer"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayMatchesTheLiveDocuments() throws IOException {
+        File file = new File(folder.getRoot(), "session.esdr");
+        SensorRegistry registry = new SensorRegistry(TYPES, NAMES);
+        GPSLogger gpsLogger = new GPSLogger();
+        AudioLogger audioLogger = new AudioLogger();
+        SensorDocument document = new SensorDocument(registry, gpsLogger, audioLogger);
+        document.reset(START);
+        SessionRecorder recorder = new SessionRecorder(file, registry, gpsLogger, audioLogger, START, REFRESH);
+
+        List<String> live = new ArrayList<>();
+        Random random = new Random(1);
+        float[] values = new float[SensorRegistry.MAX_VALUES];
+        float[] bandLevels = new float[audioLogger.bandCenters().length];
+        for (int window = 1; window <= 2000; window++) {
+            long end = START + window * (long) REFRESH;
+
+            // Readings, a few of them nonsense the document leaves out
+            for (int k = 0; k < 12; k++) {
+                int sensor = k % TYPES.length;
+                int count = sensor == 2 ? 1 : 3;
+                for (int i = 0; i < count; i++) {
+                    values[i] = random.nextInt(50) == 0 ? Float.NaN : (random.nextFloat() - 0.5f) * 20;
+                }
+                recorder.reading(sensor, end - REFRESH + k * 20, values, 0, count);
+                for (int i = 0; i < count; i++) {
+                    document.setChannel(SensorRegistry.slot(sensor, i), values[i]);
+                }
+            }
+
+            // A fix every second, some without a bearing, some of them twice a window
+            if (window % 4 == 0) {
+                gpsLogger.onFix(45 + window * 1e-5, -75, 100 + window * 0.01, 3.5f,
+                        window % 8 == 0 ? Float.NaN : 90f, 12.5f, "gps", end - 100);
+            }
+            if (window % 10 == 0) {
+                gpsLogger.onFix(45 + window * 1e-5, -75.001, 100, 8f, Float.NaN, Float.NaN, "network", end - 50);
+            }
+
+            for (int buffer = 0; buffer < 6; buffer++) {
+                for (int q = 0; q < bandLevels.length; q++) {
+                    bandLevels[q] = -random.nextFloat() * 90;
+                }
+                audioLogger.addBuffer(end - REFRESH + buffer * 40 + random.nextInt(30), random.nextFloat() * 100,
+                        300 + random.nextFloat() * 900, random.nextFloat(), -random.nextFloat() * 60,
+                        1500 * random.nextFloat(), bandLevels);
+            }
+            audioLogger.closeWindow(end, recorder);
+            recorder.document(end);
+
+            document.setTimestamp(end);
+            int length = document.encode(null);
+            live.add(new String(document.buffer(), 0, length, StandardCharsets.UTF_8));
+        }
+        recorder.close();
+
+        SessionReplayer replayer = new SessionReplayer(file);
+        assertEquals(START, replayer.startTime());
+        assertEquals(REFRESH, replayer.refreshTime());
+        assertArrayEquals(audioLogger.bandCenters(), replayer.bandCenters());
+        SensorRegistry replayedRegistry = replayer.registry();
+        assertEquals(registry.sensorCount(), replayedRegistry.sensorCount());
+        for (int i = 0; i < registry.sensorCount(); i++) {
+            assertEquals(registry.sensorName(i), replayedRegistry.sensorName(i));
+        }
+
+        GPSLogger replayGps = new GPSLogger();
+        AudioLogger replayAudio = new AudioLogger();
+        replayAudio.setBands(replayer.bandCenters());
+        SensorDocument replayDocument = new SensorDocument(replayedRegistry, replayGps, replayAudio);
+        final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+        DocumentSink sink = new DocumentSink() {
+            @Override
+            public void write(long timestamp, byte[] doc, int length, int rollupSeconds) {
+                replayed.add(new String(doc, 0, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void idle() {
+            }
+
+            @Override
+            public void stop() {
+            }
+
+            @Override
+            public String name() {
+                return "test";
+            }
+        };
+        DocumentFanout fanout = new DocumentFanout(Collections.singletonList(sink), "", 1024 * 1024, true);
+        fanout.start();
+        replayer.replay(replayDocument, replayGps, replayAudio, fanout, new Metrics(replayedRegistry), 0,
+                new SensorPipeline.Listener() {
+                    @Override
+                    public void onDocumentIndexed() {
+                    }
+                });
+        fanout.stop();
+
+        assertEquals(live.size(), replayed.size());
+        for (int i = 0; i < live.size(); i++) {
+            assertEquals("document " + i, live.get(i), replayed.get(i));
+        }
+
+        // Every reading is in the recording, not just the ones the documents
+        // kept, and they're pure noise here, the worst case for the XOR coding.
+        // It still has to come out well under the NDJSON it stands for, about
+        // 2.5 to 1 at the moment.
+        long ndjson = 0;
+        for (String doc : live) {
+            ndjson += doc.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        assertTrue(file.length() + " bytes recorded for " + ndjson + " bytes of NDJSON", file.length() * 2 < ndjson);
+    }
+}
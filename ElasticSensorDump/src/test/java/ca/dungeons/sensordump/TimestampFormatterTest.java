@@ -0,0 +1,50 @@
+package ca.dungeons.sensordump;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+// Same text as the SimpleDateFormat it replaced, on both sides of DST changes
+// and in zones with half hour offsets
+public class TimestampFormatterTest {
+
+    private static final String[] ZONES = {"UTC", "America/Toronto", "Asia/Kolkata", "Australia/Adelaide",
+            "America/St_Johns", "Pacific/Chatham"};
+
+    @Test
+    public void matchesSimpleDateFormat() {
+        Random random = new Random(1);
+        for (String zone : ZONES) {
+            TimeZone timeZone = TimeZone.getTimeZone(zone);
+            TimestampFormatter formatter = new TimestampFormatter(timeZone);
+            SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+            reference.setTimeZone(timeZone);
+
+            long millis = 1400000000000L;
+            for (int i = 0; i < 100000; i++) {
+                // Mostly small steps so the cached second gets used, now and then a jump
+                millis += random.nextInt(10) == 0 ? random.nextInt(100000000) : random.nextInt(700);
+                assertEquals(zone, reference.format(new Date(millis)), formatter.format(millis));
+            }
+        }
+    }
+
+    @Test
+    public void dayRollsOverAtLocalMidnight() {
+        TimeZone toronto = TimeZone.getTimeZone("America/Toronto");
+        TimestampFormatter formatter = new TimestampFormatter(toronto);
+
+        // 2017-03-12, the day the clocks went forward, is only 23 hours long
+        long start = 1489294800000L;
+        assertEquals("20170312", formatter.formatDay(start));
+        long next = formatter.nextDayStart(start);
+        assertEquals(23 * 3600 * 1000L, next - start);
+        assertEquals("20170313", formatter.formatDay(next));
+        assertEquals("20170312", formatter.formatDay(next - 1));
+    }
+}
@@ -0,0 +1,44 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+// One buffer of microphone audio: levels, the windowed FFT and the octave bands.
+// 1024 is what AudioLogger uses.
+@State(Scope.Thread)
+public class AudioAnalyzerBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int[] BANDS = {63, 125, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    @Param({"1024", "4096"})
+    public int fftSize;
+
+    private AudioAnalyzer analyzer;
+    private short[] samples;
+
+    @Setup
+    public void setUp() {
+        analyzer = new AudioAnalyzer(SAMPLE_RATE, fftSize, BANDS);
+
+        // A couple of tones in some noise
+        Random random = new Random(1);
+        samples = new short[fftSize];
+        for (int i = 0; i < samples.length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * t) + 4000 * Math.sin(2 * Math.PI * 3150 * t)
+                    + random.nextGaussian() * 1000);
+        }
+    }
+
+    @Benchmark
+    public float analyze() {
+        analyzer.analyze(samples, 0, samples.length);
+        return analyzer.dominantFrequency();
+    }
+}
@@ -0,0 +1,67 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// What the indexer does with each document it's handed: build the action line
+// for its timestamp and add both to the _bulk body.  A document every 250ms,
+// so with daily indexes the day changes now and then.
+@State(Scope.Thread)
+public class BulkActionsBenchmark {
+
+    private static final long START = 1500000000000L;
+    private static final int WINDOW = 250;
+
+    @Param({"false", "true"})
+    public boolean daily;
+
+    private BulkActions actions;
+    private BulkBatcher batcher;
+    private byte[] doc;
+    private long timestamp;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        actions = new BulkActions("sensor_dump", daily, "esd", "a1b2c3");
+        batcher = new BulkBatcher(100, 512 * 1024, 0, new BulkBatcher.Listener() {
+            @Override
+            public void onBatchReady(byte[] body, int length, int docCount) {
+                blackhole.consume(body);
+                batcher.recycle(body);
+            }
+        });
+
+        // About the size of a full document
+        char[] filler = new char[600];
+        Arrays.fill(filler, '1');
+        doc = ("{\"@timestamp\":\"2017-07-14T02:40:00.250-0400\",\"accelerometer0\":" + new String(filler) + "}")
+                .getBytes(StandardCharsets.UTF_8);
+        timestamp = START;
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Benchmark
+    public int action() {
+        timestamp += WINDOW;
+        return actions.write(timestamp, 0);
+    }
+
+    @Benchmark
+    public void write() {
+        timestamp += WINDOW;
+        int length = actions.write(timestamp, 0);
+        batcher.add(actions.buffer(), length, doc, 0, doc.length);
+    }
+}
@@ -0,0 +1,56 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Adding one encoded document to the _bulk body, with a full batch handed off
+// every so often.  The listener swallows the batch and hands the body back
+// like the indexer does once a request is done, this is the batcher's own
+// cost without the network.
+@State(Scope.Thread)
+public class BulkBatcherBenchmark {
+
+    @Param({"100", "1000"})
+    public int maxDocs;
+
+    private BulkBatcher batcher;
+    private byte[] action;
+    private byte[] doc;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        batcher = new BulkBatcher(maxDocs, 512 * 1024, 0, new BulkBatcher.Listener() {
+            @Override
+            public void onBatchReady(byte[] body, int length, int docCount) {
+                blackhole.consume(body);
+                batcher.recycle(body);
+            }
+        });
+        action = "{\"create\":{\"_index\":\"sensor_dump\",\"_type\":\"esd\",\"_id\":\"a1b2c3-1500000000250\"}}\n"
+                .getBytes(StandardCharsets.UTF_8);
+
+        // About the size of a full document
+        char[] filler = new char[600];
+        Arrays.fill(filler, '1');
+        doc = ("{\"@timestamp\":\"2017-07-14T02:40:00.250-0400\",\"accelerometer0\":" + new String(filler) + "}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Benchmark
+    public void add() {
+        batcher.add(action, action.length, doc, 0, doc.length);
+    }
+}
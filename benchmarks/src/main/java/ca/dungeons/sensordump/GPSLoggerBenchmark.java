@@ -0,0 +1,55 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+// One GPS fix with everything worked out from it: distance, acceleration, the
+// fix history, and the Kalman filter when it's on.  A drive at about 50km/h
+// with a fix a second and a few metres of noise.
+@State(Scope.Thread)
+public class GPSLoggerBenchmark {
+
+    private static final long START = 1500000000000L;
+    private static final int FIXES = 1024;
+
+    @Param({"false", "true"})
+    public boolean filtering;
+
+    private GPSLogger gpsLogger;
+    private double[] lats;
+    private double[] lons;
+    private float[] speeds;
+    private long fixTime;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        gpsLogger = new GPSLogger();
+        gpsLogger.setFiltering(filtering);
+
+        Random random = new Random(1);
+        lats = new double[FIXES];
+        lons = new double[FIXES];
+        speeds = new float[FIXES];
+        for (int i = 0; i < FIXES; i++) {
+            lats[i] = 45.4215 + i * 0.0001 + random.nextGaussian() * 0.00003;
+            lons[i] = -75.6972 + i * 0.00005 + random.nextGaussian() * 0.00003;
+            speeds[i] = 13.9f + (float) random.nextGaussian();
+        }
+        fixTime = START;
+    }
+
+    @Benchmark
+    public GPSFix onFix() {
+        int i = next;
+        next = (i + 1) % FIXES;
+        fixTime += 1000;
+        gpsLogger.onFix(lats[i], lons[i], 70.5, 4.5f, 40.0f, speeds[i], "gps", fixTime);
+        return gpsLogger.fix();
+    }
+}
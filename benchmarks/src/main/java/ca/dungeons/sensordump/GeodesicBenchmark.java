@@ -0,0 +1,33 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Distance between two fixes a second apart, which is what every GPS update
+// costs, and a long line where Vincenty needs more iterations
+@State(Scope.Thread)
+public class GeodesicBenchmark {
+
+    public double lat1 = 45.4215;
+    public double lon1 = -75.6972;
+    public double lat2 = 45.42162;
+    public double lon2 = -75.69705;
+    public double farLat = -37.6528;
+    public double farLon = 143.9265;
+
+    @Benchmark
+    public double vincenty() {
+        return Geodesic.distance(lat1, lon1, lat2, lon2);
+    }
+
+    @Benchmark
+    public double vincentyFar() {
+        return Geodesic.distance(lat1, lon1, farLat, farLon);
+    }
+
+    @Benchmark
+    public double haversine() {
+        return Geodesic.haversine(lat1, lon1, lat2, lon2);
+    }
+}
@@ -0,0 +1,69 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+// One full document a window: three axis sensors, a GPS fix and the audio
+// window, the way the ingest thread encodes them
+@State(Scope.Thread)
+public class SensorDocumentBenchmark {
+
+    private static final long START = 1500000000000L;
+    private static final int WINDOW = 250;
+
+    @Param({"false", "true"})
+    public boolean aggregating;
+
+    private SensorRegistry registry;
+    private SensorDocument document;
+    private byte[] tag;
+    private float[] values;
+    private long timestamp;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        registry = new SensorRegistry(new int[]{1, 2, 4, 9, 10, 11},
+                new String[]{"accelerometer", "magnetic_field", "gyroscope", "gravity", "linear_acceleration",
+                        "rotation_vector"});
+        GPSLogger gpsLogger = new GPSLogger();
+        AudioLogger audioLogger = new AudioLogger();
+        document = new SensorDocument(registry, gpsLogger, audioLogger);
+        document.reset(START);
+        document.setAggregating(aggregating);
+        tag = SensorDocument.stringValue("phone_data");
+
+        Random random = new Random(1);
+        gpsLogger.onFix(45.4215, -75.6972, 70.5, 4.5f, 123.4f, 13.9f, "gps", START);
+        float[] bandLevels = new float[audioLogger.bandCenters().length];
+        for (int i = 0; i < bandLevels.length; i++) {
+            bandLevels[i] = -random.nextFloat() * 90;
+        }
+        audioLogger.addBuffer(START, 42.5f, 440.25f, 0.125f, -18.06f, 1234.5f, bandLevels);
+        audioLogger.closeWindow(START + 1, null);
+
+        // Readings like a phone gives them, cycled through so the floats vary
+        values = new float[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (random.nextFloat() - 0.5f) * 20;
+        }
+        timestamp = START;
+    }
+
+    @Benchmark
+    public int encode() {
+        for (int sensor = 0; sensor < registry.sensorCount(); sensor++) {
+            for (int value = 0; value < 3; value++) {
+                document.setChannel(SensorRegistry.slot(sensor, value), values[next++ & (values.length - 1)]);
+            }
+        }
+        timestamp += WINDOW;
+        document.setTimestamp(timestamp);
+        return document.encode(tag);
+    }
+}
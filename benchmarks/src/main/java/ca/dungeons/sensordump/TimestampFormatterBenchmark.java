@@ -0,0 +1,40 @@
+package ca.dungeons.sensordump;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+// Document timestamps, against the SimpleDateFormat they replaced.  Each call
+// moves on 250 ms, so every fourth one starts a new second.
+@State(Scope.Thread)
+public class TimestampFormatterBenchmark {
+
+    private final TimestampFormatter formatter = new TimestampFormatter(TimeZone.getTimeZone("America/Toronto"));
+    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+    private final byte[] buffer = new byte[TimestampFormatter.TIMESTAMP_LENGTH];
+    private long millis;
+
+    @Setup
+    public void setUp() {
+        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("America/Toronto"));
+        millis = 1500000000000L;
+    }
+
+    @Benchmark
+    public byte[] write() {
+        millis += 250;
+        formatter.write(millis, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public String simpleDateFormat() {
+        millis += 250;
+        return simpleDateFormat.format(new Date(millis));
+    }
+}